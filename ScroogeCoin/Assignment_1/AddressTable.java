@@ -0,0 +1,47 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every distinct output address a small integer id, so that compact {@link UTXOPool}
+ * implementations can store an {@code int} per entry instead of a reference to a key object.
+ * <p>
+ * Id 0 stands for a null address. Ids are never reused and addresses are kept for the lifetime of
+ * the table, which is why one table is shared by a pool and all of its copies: the number of
+ * distinct addresses is small next to the number of unspent outputs they own.
+ */
+class AddressTable {
+
+    private final ConcurrentHashMap<PublicKey, Integer> ids = new ConcurrentHashMap<>();
+    private volatile PublicKey[] keys = new PublicKey[16];
+    private int size = 1; // id 0 is the null address
+
+    /** @return the id of {@code address}, assigning a new one if it was not seen before */
+    int intern(PublicKey address) {
+        if (address == null) return 0;
+        Integer id = ids.get(address);
+        if (id != null) return id;
+        synchronized (this) {
+            id = ids.get(address);
+            if (id != null) return id;
+            PublicKey[] k = keys;
+            if (size == k.length) {
+                k = Arrays.copyOf(k, k.length * 2);
+            }
+            k[size] = address;
+            keys = k; // volatile write publishes the new slot
+            ids.put(address, size);
+            return size++;
+        }
+    }
+
+    /** @return the address with the given id */
+    PublicKey get(int id) {
+        return keys[id];
+    }
+
+    /** @return the number of ids handed out, including the one of the null address */
+    synchronized int size() {
+        return size;
+    }
+}
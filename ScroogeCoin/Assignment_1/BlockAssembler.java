@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills a block of limited size with the candidate transactions that pay the most, where
+ * {@link Greedy} and {@link ExactSelector} assume a block can hold any number of transactions.
+ * <p>
+ * The size of a transaction is its {@link TransactionCodec} encoding. {@link #assemble(Transaction[], long)}
+ * is the fast mode: it takes packages (a candidate with its unselected ancestors) by fee rate, as
+ * {@link Greedy#selectPackages(Transaction[], long)} does, passing over the ones that no longer fit,
+ * so the rest of the space still goes to smaller packages. Dependencies and conflicts are always
+ * respected: a candidate comes with all its parents, and never with another spender of one of its
+ * inputs.
+ * <p>
+ * Fee rate order is not optimal when sizes vary: a dense package can take the room two others
+ * would have filled better. {@link #assemble(Transaction[], long, long)} starts from the fast
+ * answer and improves it by local search until its time budget runs out: it tries leaving out
+ * each chosen transaction in turn, lowest fee rate first, and refills the block around the ones
+ * left out; any better block becomes the new starting point. Candidates are checked only once for
+ * the whole search.
+ */
+public class BlockAssembler {
+
+    private final Greedy greedy;
+
+    public BlockAssembler(UTXOPool pool) {
+        this(pool, null);
+    }
+
+    /** Verifies the signatures of the candidates on {@code validator} instead of one by one */
+    public BlockAssembler(UTXOPool pool, ParallelValidator validator) {
+        this.greedy = new Greedy(pool, validator);
+    }
+
+    /**
+     * @return the block of at most {@code maxBytes} encoded bytes chosen by fee rate, in an order
+     *         in which its transactions can be applied to the pool
+     */
+    public Block assemble(Transaction[] candidates, long maxBytes) {
+        return assemble(candidates, maxBytes, 0);
+    }
+
+    /**
+     * Same as {@link #assemble(Transaction[], long)}, then spends up to {@code budgetMillis}
+     * looking for a block of the same size limit with a higher total fee.
+     */
+    public Block assemble(Transaction[] candidates, long maxBytes, long budgetMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        if (candidates == null || candidates.length == 0) return new Block(new Transaction[0], 0, 0);
+        Greedy.PackageGraph graph = greedy.packageGraph(candidates);
+
+        BitSet excluded = new BitSet();
+        List<Integer> best = graph.select(maxBytes, excluded);
+        double bestFee = graph.fee(best);
+        boolean improved = true;
+        while (improved && System.nanoTime() < deadline) {
+            improved = false;
+            List<Integer> tries = new ArrayList<>(best);
+            tries.sort(Comparator.<Integer>comparingDouble(c -> graph.fee[c] / graph.size[c])
+                    .thenComparingInt(c -> c));
+            for (int c : tries) {
+                if (System.nanoTime() >= deadline) break;
+                BitSet without = (BitSet) excluded.clone();
+                without.set(c);
+                List<Integer> block = graph.select(maxBytes, without);
+                double fee = graph.fee(block);
+                if (fee > bestFee + 1e-9) {
+                    excluded = without;
+                    best = block;
+                    bestFee = fee;
+                    improved = true;
+                    break;
+                }
+            }
+        }
+        return new Block(graph.transactions(best), bestFee, graph.size(best));
+    }
+
+    /** Result of {@link #assemble}: the chosen transactions, their total fee and encoded size */
+    public static final class Block {
+        private final Transaction[] transactions;
+        private final double fee;
+        private final long size;
+
+        Block(Transaction[] transactions, double fee, long size) {
+            this.transactions = transactions;
+            this.fee = fee;
+            this.size = size;
+        }
+
+        /** @return the chosen transactions, parents before children */
+        public Transaction[] getTransactions() {
+            return transactions.clone();
+        }
+
+        public double getFee() {
+            return fee;
+        }
+
+        /** @return the total encoded size of the transactions, at most the limit asked for */
+        public long getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps a block template, the best block of at most a given encoded size it knows how to build
+ * from a {@link Mempool}, up to date as the pool changes, so that {@link #getTemplate()} only
+ * copies the current selection however large the pool is.
+ * <p>
+ * The builder listens to the pool, which has already checked every transaction, so no signature
+ * is ever verified here. Transactions are scored as packages, like in
+ * {@link Greedy#selectPackages(Transaction[], long)}: a transaction and its ancestors not in the
+ * template, by fee rate. Every change is handled locally:
+ * <ul>
+ * <li>a new transaction goes in with its package if there is room; otherwise the template's
+ * cheapest leaves (transactions none of whose children are in the template) whose fee rate is
+ * below the package's are taken out to make room, if that frees enough of it and they pay less in
+ * total than the package;</li>
+ * <li>a transaction leaving the pool leaves the template, and a transaction confirmed by
+ * {@link #connectBlock} leaves it without its children, which now spend confirmed outputs;</li>
+ * <li>after each change the best few packages waiting are tried in the space left.</li>
+ * </ul>
+ * Scores of waiting packages are updated as their ancestors enter and leave the template. Local
+ * updates can drift from what a fresh greedy pass would choose; {@link #rebuild()} runs one over
+ * the whole pool. Not thread-safe, like the pool it listens to.
+ */
+public class BlockTemplateBuilder implements Mempool.Listener {
+
+    /** Waiting packages tried after each change */
+    private static final int REFILL_SCAN = 32;
+
+    private final Mempool mempool;
+    private final long maxBytes;
+
+    private final Map<ByteArrayWrapper, Node> nodes = new HashMap<>();
+    /** the template, parents before children */
+    private final LinkedHashSet<Node> template = new LinkedHashSet<>();
+    /** transactions waiting outside the template, best package fee rate first */
+    private final TreeSet<Node> waiting = new TreeSet<>(
+            Comparator.comparingDouble((Node n) -> -n.packageRate()).thenComparingLong(n -> n.sequence));
+    /** template transactions without children in the template, lowest fee rate first */
+    private final TreeSet<Node> leaves = new TreeSet<>(
+            Comparator.comparingDouble((Node n) -> n.fee / n.size).thenComparingLong(n -> -n.sequence));
+
+    private long size;
+    private double fee;
+    private long sequence;
+    /** the template as returned by getTemplate, null once it changes */
+    private Transaction[] cached;
+
+    /**
+     * Creates a builder for blocks of at most {@code maxBytes} encoded bytes, starting from the
+     * transactions already in {@code mempool}, and keeps it up to date with the pool from then on.
+     */
+    public BlockTemplateBuilder(Mempool mempool, long maxBytes) {
+        this.mempool = mempool;
+        this.maxBytes = maxBytes;
+        for (Transaction tx : mempool.getTransactions()) {
+            link(tx, mempool.getFee(tx), TransactionCodec.encodedSize(tx));
+        }
+        mempool.addListener(this);
+        rebuild();
+    }
+
+    /** @return the transactions of the current template, parents before children */
+    public Transaction[] getTemplate() {
+        if (cached == null) {
+            cached = new Transaction[template.size()];
+            int i = 0;
+            for (Node n : template) cached[i++] = n.tx;
+        }
+        return cached.clone();
+    }
+
+    /** @return the total fee of the template */
+    public double getFee() {
+        return fee;
+    }
+
+    /** @return the total encoded size of the template, at most {@link #getMaxBytes()} */
+    public long getSize() {
+        return size;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Tells the pool that the handler accepted {@code block}: its transactions leave the template
+     * and the pool, and so do the pending transactions conflicting with it.
+     *
+     * @return the pending transactions dropped because they conflict with the block
+     */
+    public List<Transaction> connectBlock(Transaction[] block) {
+        return mempool.removeConfirmed(block);
+    }
+
+    /** Stops following the pool */
+    public void close() {
+        mempool.removeListener(this);
+    }
+
+    /** Throws the template away and chooses it again from scratch, greedily by package fee rate */
+    public void rebuild() {
+        List<Node> chosen = new ArrayList<>(template);
+        for (int i = chosen.size() - 1; i >= 0; i--) deselect(chosen.get(i));
+        fill(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void added(Transaction tx, double txFee, int txSize) {
+        Node n = link(tx, txFee, txSize);
+        Set<Node> members = unselectedPackage(n);
+        long needed = n.packageSize - (maxBytes - size);
+        if (needed > 0) makeRoom(n, needed);
+        if (n.packageSize <= maxBytes - size) select(members);
+        fill(REFILL_SCAN);
+    }
+
+    @Override
+    public void removed(Transaction tx) {
+        Node n = nodes.remove(new ByteArrayWrapper(tx.getHash()));
+        if (n == null) return;
+        if (n.selected) deselect(n);
+        waiting.remove(n);
+        for (Node d : descendants(n)) {
+            if (!d.selected) rescore(d, -n.fee, -n.size);
+        }
+        for (Node parent : n.parents) parent.children.remove(n);
+        for (Node child : n.children) child.parents.remove(n);
+        fill(REFILL_SCAN);
+    }
+
+    /** Adds a node for {@code tx}, linked to the nodes of the pending transactions it spends from */
+    private Node link(Transaction tx, double txFee, int txSize) {
+        Node n = new Node(tx, txFee, txSize, sequence++);
+        for (Transaction.Input in : tx.getInputs()) {
+            Node parent = nodes.get(new ByteArrayWrapper(in.prevTxHash));
+            if (parent != null && n.parents.add(parent)) parent.children.add(n);
+        }
+        nodes.put(new ByteArrayWrapper(tx.getHash()), n);
+        for (Node a : unselectedPackage(n)) {
+            if (a == n) continue;
+            n.packageFee += a.fee;
+            n.packageSize += a.size;
+        }
+        waiting.add(n);
+        return n;
+    }
+
+    /**
+     * Takes the cheapest leaves out of the template to make {@code needed} bytes of room for the
+     * package of {@code n}, as long as they pay less per byte than it does and less in total.
+     */
+    private void makeRoom(Node n, long needed) {
+        double rate = n.packageRate();
+        Set<Node> ancestors = ancestors(n);
+        List<Node> taken = new ArrayList<>();
+        long freed = 0;
+        double lost = 0;
+        Iterator<Node> it = leaves.iterator();
+        while (freed < needed && it.hasNext()) {
+            Node leaf = it.next();
+            if (leaf.fee / leaf.size >= rate) break;
+            if (ancestors.contains(leaf)) continue;
+            taken.add(leaf);
+            freed += leaf.size;
+            lost += leaf.fee;
+        }
+        if (freed < needed || lost >= n.packageFee) return;
+        for (Node leaf : taken) deselect(leaf);
+    }
+
+    /**
+     * Tries the best waiting packages, at most {@code scan} of them plus the descendants of what
+     * gets chosen, and puts each that fits into the template.
+     */
+    private void fill(int scan) {
+        PriorityQueue<Node> heap = new PriorityQueue<>(waiting.comparator());
+        Map<Node, Double> offered = new HashMap<>();
+        Iterator<Node> it = waiting.iterator();
+        for (int i = 0; i < scan && it.hasNext(); i++) {
+            Node n = it.next();
+            heap.add(n);
+            offered.put(n, n.packageRate());
+        }
+        while (!heap.isEmpty() && size < maxBytes) {
+            Node n = heap.poll();
+            if (n.selected || offered.get(n) != n.packageRate()) continue; // stale entry
+            if (n.packageSize > maxBytes - size) continue;
+            for (Node d : select(unselectedPackage(n))) {
+                heap.add(d);
+                offered.put(d, d.packageRate());
+            }
+        }
+    }
+
+    /** @return {@code n} and its ancestors outside the template, parents first */
+    private Set<Node> unselectedPackage(Node n) {
+        List<Node> found = new ArrayList<>();
+        Set<Node> seen = new HashSet<>();
+        Deque<Node> todo = new ArrayDeque<>();
+        todo.add(n);
+        while (!todo.isEmpty()) {
+            Node a = todo.poll();
+            if (a.selected || !seen.add(a)) continue;
+            found.add(a);
+            todo.addAll(a.parents);
+        }
+        found.sort(Comparator.comparingLong(a -> a.sequence));
+        return new LinkedHashSet<>(found);
+    }
+
+    /**
+     * Puts {@code members}, a package listed parents first, into the template.
+     *
+     * @return the waiting descendants whose packages shrank
+     */
+    private Set<Node> select(Set<Node> members) {
+        Set<Node> rescored = new LinkedHashSet<>();
+        for (Node m : members) {
+            waiting.remove(m);
+            m.selected = true;
+            template.add(m);
+            size += m.size;
+            fee += m.fee;
+            for (Node parent : m.parents) leaves.remove(parent);
+            leaves.add(m);
+            for (Node d : descendants(m)) {
+                if (d.selected || members.contains(d)) continue;
+                rescore(d, -m.fee, -m.size);
+                rescored.add(d);
+            }
+        }
+        cached = null;
+        return rescored;
+    }
+
+    /** Takes {@code m} out of the template; it must have no children in it, or be leaving the pool */
+    private void deselect(Node m) {
+        m.selected = false;
+        template.remove(m);
+        leaves.remove(m);
+        size -= m.size;
+        fee -= m.fee;
+        for (Node parent : m.parents) {
+            if (parent.selected && parent.children.stream().noneMatch(c -> c.selected)) leaves.add(parent);
+        }
+        for (Node d : descendants(m)) {
+            if (!d.selected) rescore(d, m.fee, m.size);
+        }
+        m.packageFee = m.fee;
+        m.packageSize = m.size;
+        for (Node a : unselectedPackage(m)) {
+            if (a == m) continue;
+            m.packageFee += a.fee;
+            m.packageSize += a.size;
+        }
+        waiting.add(m);
+        cached = null;
+    }
+
+    private void rescore(Node n, double deltaFee, long deltaSize) {
+        waiting.remove(n);
+        n.packageFee += deltaFee;
+        n.packageSize += deltaSize;
+        waiting.add(n);
+    }
+
+    private static Set<Node> ancestors(Node n) {
+        Set<Node> found = new HashSet<>();
+        Deque<Node> todo = new ArrayDeque<>(n.parents);
+        while (!todo.isEmpty()) {
+            Node a = todo.poll();
+            if (found.add(a)) todo.addAll(a.parents);
+        }
+        return found;
+    }
+
+    private static Set<Node> descendants(Node n) {
+        Set<Node> found = new HashSet<>();
+        Deque<Node> todo = new ArrayDeque<>(n.children);
+        while (!todo.isEmpty()) {
+            Node d = todo.poll();
+            if (found.add(d)) todo.addAll(d.children);
+        }
+        return found;
+    }
+
+    /** A pending transaction as the builder sees it */
+    private static final class Node {
+        final Transaction tx;
+        final double fee;
+        final int size;
+        final long sequence;
+        final Set<Node> parents = new LinkedHashSet<>();
+        final Set<Node> children = new LinkedHashSet<>();
+        boolean selected;
+        /** fee and size of this transaction and its ancestors outside the template */
+        double packageFee;
+        long packageSize;
+
+        Node(Transaction tx, double fee, int size, long sequence) {
+            this.tx = tx;
+            this.fee = fee;
+            this.size = size;
+            this.sequence = sequence;
+            this.packageFee = fee;
+            this.packageSize = size;
+        }
+
+        double packageRate() {
+            return packageFee / packageSize;
+        }
+    }
+}
@@ -1,109 +1,201 @@
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongPredicate;
 
 public class Brute {
 
     // ====================================
     // --- 1. Brute Force for best Pair ---
     // ====================================
-    public static float[] BruteF(TxHandler handler) {
-        List<Transaction> accepted = handler.getAcceptedTxs();
-        float[] Bigtx = new float[2];
-        float F = 0.0f;
-
-        List<Float> fees = new ArrayList<>();
-        for (Transaction tx : accepted) {
-            fees.add((float) handler.getTxFee(tx));
-        }
+    public static float[] BruteF(UTXOPool pool, Transaction[] allTxs, TxHandler handler) {
+        return BruteF(handler);
+    }
 
-        for (int i = 0; i < fees.size(); i++) {
-            for (int j = i + 1; j < fees.size(); j++) {
-                float sum = fees.get(i) + fees.get(j);
-                if (sum > F) {
-                    F = sum;
-                    Bigtx[0] = fees.get(i);
-                    Bigtx[1] = fees.get(j);
-                }
-            }
-        }
-        return Bigtx;
+    // The best pair is simply the two highest fees, read from the handler's fee index.
+    public static float[] BruteF(TxHandler handler) {
+        return bestK(handler, 2);
     }
 
     // ====================================
     // --- 2. Brute Force for 3 best tx ---
     // ====================================
     public static float[] BruteF_Three(TxHandler handler) {
-        List<Transaction> accepted = handler.getAcceptedTxs();
-        List<Float> fees = new ArrayList<>();
-        for (Transaction tx : accepted) {
-            fees.add((float) handler.getTxFee(tx));
-        }
-
-        if (fees.size() < 3) {
-            return new float[]{0.0f, 0.0f, 0.0f};
-        }
-
-        float F = 0.0f;
-        float[] Bigtx = new float[3];
-
-        for (int i = 0; i < fees.size(); i++) {
-            for (int j = i + 1; j < fees.size(); j++) {
-                for (int k = j + 1; k < fees.size(); k++) {
-
-                    float sum = fees.get(i) + fees.get(j) + fees.get(k);
+        return bestK(handler, 3);
+    }
 
-                    if (sum > F) {
-                        F = sum;
-                        Bigtx[0] = fees.get(i);
-                        Bigtx[1] = fees.get(j);
-                        Bigtx[2] = fees.get(k);
-                    }
-                }
-            }
+    // Fees of the k best accepted txs, highest first; all zeros if there are fewer than k
+    // or their total is not positive.
+    private static float[] bestK(TxHandler handler, int k) {
+        List<Transaction> top = handler.topK(k);
+        float[] best = new float[k];
+        float total = 0;
+        for (int i = 0; i < top.size(); i++) {
+            best[i] = (float) handler.getTxFee(top.get(i));
+            total += best[i];
         }
-        return Bigtx;
+        if (top.size() < k || !(total > 0)) return new float[k];
+        return best;
     }
 
     // ==================================================
     // --- 0. Brute Force for best tx subset possible ---
     // ==================================================
     public static float[] BruteF_MaxAll(TxHandler handler) {
+        return BruteF_MaxAll(handler, mask -> true);
+    }
+
+    // Same, over the subsets of the accepted txs (bit i = i-th accepted tx) that pass `feasible`.
+    public static float[] BruteF_MaxAll(TxHandler handler, LongPredicate feasible) {
         List<Transaction> accepted = handler.getAcceptedTxs();
-        List<Float> fees = new ArrayList<>();
-        for (Transaction tx : accepted) {
-            fees.add((float) handler.getTxFee(tx));
+        double[] fees = new double[accepted.size()];
+        for (int i = 0; i < fees.length; i++) {
+            fees[i] = (float) handler.getTxFee(accepted.get(i));
         }
 
-        List<List<Float>> allSubsets = new ArrayList<>();
-        allSubsets.add(new ArrayList<>());
+        long best = Math.max(bestSubset(fees, feasible), 0);
+        float[] result = new float[Long.bitCount(best)];
+        int k = 0;
+        for (int i = 0; i < fees.length; i++) {
+            if ((best & 1L << i) != 0) result[k++] = (float) fees[i];
+        }
+        return result;
+    }
 
-        for (float fee : fees) {
-            int currentSize = allSubsets.size();
+    // =========================================================
+    // --- Subset enumeration shared by the brute-force oracles ---
+    // =========================================================
+
+    /** Masks walked by one task before it stops splitting */
+    private static final int LEAF_BITS = 20;
+
+    /**
+     * Returns the subset of {@code fees} with the highest sum among those {@code feasible} accepts,
+     * as a mask where bit i selects fees[i]: the lowest such mask on ties, or -1 if
+     * {@code feasible} accepts no mask at all, not even the empty set.
+     * <p>
+     * Nothing is allocated per subset: the low {@link #LEAF_BITS} bits are walked in Gray code
+     * order, so each step adds or subtracts a single fee from a running sum, and the high bits are
+     * split across the common {@link ForkJoinPool}. {@code feasible} is only asked about masks
+     * that would improve on the best one found so far, so it may be expensive, but it is called
+     * from several threads. About 30 fees take seconds; at most 62 are accepted.
+     */
+    public static long bestSubset(double[] fees, LongPredicate feasible) {
+        if (fees.length > 62) {
+            throw new IllegalArgumentException("Too many fees to enumerate: " + fees.length);
+        }
+        int lowBits = Math.min(fees.length, LEAF_BITS);
+        Best best = ForkJoinPool.commonPool().invoke(
+                new SubsetTask(fees, feasible, lowBits, 0, 1L << (fees.length - lowBits)));
+        return best == null ? -1 : best.mask;
+    }
 
-            for (int i = 0; i < currentSize; i++) {
-                List<Float> existingSubset = allSubsets.get(i);
-                List<Float> newSubset = new ArrayList<>(existingSubset);
-                newSubset.add(fee);
-                allSubsets.add(newSubset);
+    /**
+     * Returns a predicate accepting the masks over {@code txs} that form a valid block on top of
+     * {@code pool}: no output spent twice and every input either in the pool or created by a
+     * selected transaction. Signatures and values are not checked.
+     */
+    public static LongPredicate validBlock(Transaction[] txs, UTXOPool pool) {
+        if (txs.length > 62) {
+            throw new IllegalArgumentException("Too many transactions to enumerate: " + txs.length);
+        }
+        long[] conflicts = new long[txs.length];
+        long[] parents = new long[txs.length];
+        long unusable = 0;
+        for (int i = 0; i < txs.length; i++) {
+            for (Transaction.Input in : txs[i].getInputs()) {
+                for (int j = 0; j < txs.length; j++) {
+                    if (j == i) continue;
+                    for (Transaction.Input other : txs[j].getInputs()) {
+                        if (other.outputIndex == in.outputIndex && Arrays.equals(other.prevTxHash, in.prevTxHash)) {
+                            conflicts[i] |= 1L << j;
+                        }
+                    }
+                }
+                if (pool.contains(in.prevTxHash, in.outputIndex)) continue;
+                int parent = -1;
+                for (int j = 0; j < txs.length && parent < 0; j++) {
+                    if (Arrays.equals(txs[j].getHash(), in.prevTxHash) && in.outputIndex < txs[j].numOutputs()) parent = j;
+                }
+                if (parent < 0 || parent == i) unusable |= 1L << i;
+                else parents[i] |= 1L << parent;
             }
         }
-        float maxFee = -1.0f;
-        List<Float> bestSubset = new ArrayList<>();
+        long notUsable = unusable;
+        return mask -> {
+            if ((mask & notUsable) != 0) return false;
+            for (long rest = mask; rest != 0; rest &= rest - 1) {
+                int i = Long.numberOfTrailingZeros(rest);
+                if ((conflicts[i] & mask) != 0 || (parents[i] & ~mask) != 0) return false;
+            }
+            return true;
+        };
+    }
 
-        for (List<Float> subset : allSubsets) {
-            float sum = 0;
-            for (float f : subset) sum += f;
+    /** Best mask found so far and its sum */
+    private static final class Best {
+        final long mask;
+        final double sum;
 
-            if (sum > maxFee) {
-                maxFee = sum;
-                bestSubset = subset;
-            }
+        Best(long mask, double sum) {
+            this.mask = mask;
+            this.sum = sum;
         }
 
-        float[] result = new float[bestSubset.size()];
-        for (int i = 0; i < bestSubset.size(); i++) {
-            result[i] = bestSubset.get(i);
+        boolean beats(Best o) {
+            return o == null || sum > o.sum || (sum == o.sum && mask < o.mask);
+        }
+    }
+
+    /** Walks every mask whose high bits lie in {@code [from, to)} */
+    private static final class SubsetTask extends RecursiveTask<Best> {
+        private static final long serialVersionUID = 1L;
+        private final double[] fees;
+        private final LongPredicate feasible;
+        private final int lowBits;
+        private final long from, to;
+
+        SubsetTask(double[] fees, LongPredicate feasible, int lowBits, long from, long to) {
+            this.fees = fees;
+            this.feasible = feasible;
+            this.lowBits = lowBits;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Best compute() {
+            if (to - from > 1) {
+                long mid = (from + to) >>> 1;
+                SubsetTask right = new SubsetTask(fees, feasible, lowBits, mid, to);
+                right.fork();
+                Best left = new SubsetTask(fees, feasible, lowBits, from, mid).compute();
+                Best other = right.join();
+                if (left == null) return other;
+                return other != null && other.beats(left) ? other : left;
+            }
+
+            long high = from << lowBits;
+            double sum = 0;
+            for (int i = lowBits; i < fees.length; i++) {
+                if ((high & 1L << i) != 0) sum += fees[i];
+            }
+            long bestMask = -1;
+            double bestSum = Double.NEGATIVE_INFINITY;
+            long gray = 0;
+            for (long step = 0; ; ) {
+                long mask = high | gray;
+                if ((sum > bestSum || (sum == bestSum && mask < bestMask)) && feasible.test(mask)) {
+                    bestMask = mask;
+                    bestSum = sum;
+                }
+                if (++step == 1L << lowBits) break;
+                int bit = Long.numberOfTrailingZeros(step); // the bit Gray code flips at this step
+                gray ^= 1L << bit;
+                sum += (gray & 1L << bit) != 0 ? fees[bit] : -fees[bit];
+            }
+            return bestMask < 0 ? null : new Best(bestMask, bestSum);
         }
-        return result;
     }
 }
@@ -0,0 +1,35 @@
+import java.util.Arrays;
+
+/**
+ * Wraps a {@code byte[]} (typically a transaction hash) so it can be used as a key in hash based
+ * collections, comparing by content instead of by reference.
+ */
+public class ByteArrayWrapper {
+
+    private final byte[] contents;
+
+    public ByteArrayWrapper(byte[] b) {
+        contents = b.clone();
+    }
+
+    /** @return the wrapped bytes */
+    public byte[] getBytes() {
+        return contents;
+    }
+
+    public boolean equals(Object other) {
+        if (other == null) {
+            return false;
+        }
+        if (getClass() != other.getClass()) {
+            return false;
+        }
+
+        ByteArrayWrapper otherB = (ByteArrayWrapper) other;
+        return Arrays.equals(contents, otherB.contents);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(contents);
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares {@link TransactionCodec} with Java serialization: encoded size and the time to encode
+ * and decode a batch. Run with an optional batch size (default 20000 transactions).
+ */
+public class CodecBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Transaction[] txs = sampleBatch(count);
+
+        // warm up both paths once
+        decodeCodec(encodeCodec(txs));
+        decodeJava(encodeJava(txs));
+
+        long startTime = System.nanoTime();
+        byte[] codec = encodeCodec(txs);
+        double codecEncode = (System.nanoTime() - startTime) / 1_000_000.0;
+        startTime = System.nanoTime();
+        Transaction[] fromCodec = decodeCodec(codec);
+        double codecDecode = (System.nanoTime() - startTime) / 1_000_000.0;
+
+        startTime = System.nanoTime();
+        byte[] java = encodeJava(txs);
+        double javaEncode = (System.nanoTime() - startTime) / 1_000_000.0;
+        startTime = System.nanoTime();
+        Transaction[] fromJava = decodeJava(java);
+        double javaDecode = (System.nanoTime() - startTime) / 1_000_000.0;
+
+        for (int i = 0; i < txs.length; i++) {
+            if (!Arrays.equals(txs[i].getHash(), fromCodec[i].getHash())
+                    || !Arrays.equals(txs[i].getHash(), fromJava[i].getHash())) {
+                throw new IllegalStateException("Round trip changed transaction " + i);
+            }
+        }
+
+        // shipping transactions one by one: Java serialization can no longer share the keys
+        long codecSingle = 0, javaSingle = 0;
+        for (Transaction tx : txs) {
+            codecSingle += TransactionCodec.encodedSize(tx);
+            javaSingle += encodeJava(new Transaction[]{tx}).length;
+        }
+
+        System.out.println(count + " transactions");
+        System.out.println(String.format("%-18s %12s %12s %12s %14s",
+                "", "batch bytes", "encode ms", "decode ms", "bytes/tx alone"));
+        System.out.println(String.format("%-18s %12d %12.1f %12.1f %14d", "TransactionCodec",
+                codec.length, codecEncode, codecDecode, codecSingle / count));
+        System.out.println(String.format("%-18s %12d %12.1f %12.1f %14d", "Java serialization",
+                java.length, javaEncode, javaDecode, javaSingle / count));
+    }
+
+    /** Transactions with 1-3 inputs and 1-3 outputs to a handful of addresses */
+    private static Transaction[] sampleBatch(int count) {
+        Random random = new Random(42);
+        PublicKey[] people = new PublicKey[8];
+        for (int i = 0; i < people.length; i++) {
+            KeyPair pair = SignatureScheme.DEFAULT.generateKeyPair();
+            people[i] = pair.getPublic();
+        }
+        Transaction[] txs = new Transaction[count];
+        for (int t = 0; t < count; t++) {
+            Transaction tx = new Transaction();
+            int inputs = 1 + random.nextInt(3);
+            for (int i = 0; i < inputs; i++) {
+                byte[] prevHash = new byte[32];
+                random.nextBytes(prevHash);
+                tx.addInput(prevHash, random.nextInt(4));
+                byte[] sig = new byte[128];
+                random.nextBytes(sig);
+                tx.addSignature(sig, i);
+            }
+            int outputs = 1 + random.nextInt(3);
+            for (int i = 0; i < outputs; i++) {
+                tx.addOutput(random.nextDouble() * 100, people[random.nextInt(people.length)]);
+            }
+            txs[t] = tx;
+        }
+        Transactions.finalizeAll(txs);
+        return txs;
+    }
+
+    private static byte[] encodeCodec(Transaction[] txs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TransactionCodec.Writer writer = new TransactionCodec.Writer(out)) {
+            writer.writeAll(txs);
+        }
+        return out.toByteArray();
+    }
+
+    private static Transaction[] decodeCodec(byte[] data) {
+        List<Transaction> txs = new ArrayList<>();
+        TransactionCodec.Reader reader = new TransactionCodec.Reader(ByteBuffer.wrap(data));
+        while (reader.hasNext()) txs.add(reader.next());
+        return txs.toArray(new Transaction[0]);
+    }
+
+    // Transaction is not Serializable, so Java serialization gets a plain mirror of its fields
+
+    private static class SerialInput implements Serializable {
+        private static final long serialVersionUID = 1L;
+        byte[] prevTxHash;
+        int outputIndex;
+        byte[] signature;
+    }
+
+    private static class SerialOutput implements Serializable {
+        private static final long serialVersionUID = 1L;
+        double value;
+        PublicKey address;
+    }
+
+    private static class SerialTx implements Serializable {
+        private static final long serialVersionUID = 1L;
+        List<SerialInput> inputs = new ArrayList<>();
+        List<SerialOutput> outputs = new ArrayList<>();
+    }
+
+    private static byte[] encodeJava(Transaction[] txs) throws IOException {
+        ArrayList<SerialTx> mirror = new ArrayList<>();
+        for (Transaction tx : txs) {
+            SerialTx s = new SerialTx();
+            for (Transaction.Input in : tx.getInputs()) {
+                SerialInput si = new SerialInput();
+                si.prevTxHash = in.prevTxHash;
+                si.outputIndex = in.outputIndex;
+                si.signature = in.signature;
+                s.inputs.add(si);
+            }
+            for (Transaction.Output op : tx.getOutputs()) {
+                SerialOutput so = new SerialOutput();
+                so.value = op.value;
+                so.address = op.address;
+                s.outputs.add(so);
+            }
+            mirror.add(s);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(mirror);
+        }
+        return out.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Transaction[] decodeJava(byte[] data) throws IOException, ClassNotFoundException {
+        List<SerialTx> mirror;
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            mirror = (List<SerialTx>) ois.readObject();
+        }
+        Transaction[] txs = new Transaction[mirror.size()];
+        for (int t = 0; t < txs.length; t++) {
+            Transaction tx = new Transaction();
+            SerialTx s = mirror.get(t);
+            for (int i = 0; i < s.inputs.size(); i++) {
+                tx.addInput(s.inputs.get(i).prevTxHash, s.inputs.get(i).outputIndex);
+                tx.addSignature(s.inputs.get(i).signature, i);
+            }
+            for (SerialOutput so : s.outputs) tx.addOutput(so.value, so.address);
+            txs[t] = tx;
+        }
+        return txs;
+    }
+}
@@ -1,49 +1,84 @@
-import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
 
 public class Crypto {
 
+    /** Number of verified signatures remembered by the default cache */
+    public static final int DEFAULT_CACHE_CAPACITY = 1 << 16;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    /** Shared by every caller of {@link #verifySignature}, i.e. TxHandler, Greedy and the validators */
+    private static volatile SignatureCache signatureCache = new SignatureCache(DEFAULT_CACHE_CAPACITY);
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
-     *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
-     *         have to deal with any of the implementation details of the specific signature
-     *         algorithm
+     *         key {@code pubKey}. The {@link SignatureScheme} (RSA by default, or ECDSA P-256 or
+     *         Ed25519) is taken from the key, so callers do not have to deal with any of the
+     *         implementation details of the specific signature algorithm. Signatures that were
+     *         already verified are answered from the {@link SignatureCache}; a null argument, an
+     *         unusable key or a malformed signature gives false.
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        SignatureCache cache = signatureCache;
+        if (cache == null || pubKey == null || message == null || signature == null) {
+            return verify(pubKey, message, signature);
         }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+        ByteArrayWrapper key = SignatureCache.key(pubKey, message, signature);
+        if (cache.contains(key)) {
+            return true;
         }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
+        boolean valid = verify(pubKey, message, signature);
+        if (valid) {
+            cache.put(key);
         }
-        return false;
+        return valid;
+    }
 
+    /** @return the cache used by {@link #verifySignature}, or null if caching is disabled */
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
     }
 
+    /** Replaces the cache used by {@link #verifySignature}; {@code null} disables caching */
+    public static void setSignatureCache(SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    private static boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        SignatureScheme scheme = SignatureScheme.forKey(pubKey);
+        return scheme != null && scheme.isAvailable() && scheme.verify(pubKey, message, signature);
+    }
+
+    /**
+     * @return the signature of {@code message} under {@code privateKey}, using the scheme of the key
+     * @throws IllegalArgumentException if the key does not belong to a supported scheme
+     */
     public static byte[] sign(PrivateKey privateKey, byte[] message) {
-        try {
-            Signature signer = Signature.getInstance("SHA256withRSA");
-            signer.initSign(privateKey);
-            signer.update(message);
-            return signer.sign();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        SignatureScheme scheme = SignatureScheme.forKey(privateKey);
+        if (scheme == null) {
+            throw new IllegalArgumentException("Unsupported key algorithm "
+                    + (privateKey == null ? null : privateKey.getAlgorithm()));
         }
+        return scheme.sign(privateKey, message);
+    }
+
+    /**
+     * @return this thread's SHA-256 digest, reset and ready for use. It must not be kept or
+     *         shared with other threads.
+     */
+    public static MessageDigest sha256() {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        return md;
     }
 
 }
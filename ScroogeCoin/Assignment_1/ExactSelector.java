@@ -0,0 +1,540 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the set of candidate transactions with the highest total fee that can go into one block,
+ * where {@link Greedy} only takes the best fee available at each step.
+ * <p>
+ * A candidate's fee does not depend on which other candidates are chosen: each input spends an
+ * output that is either in the pool or created by another candidate, its parent. A set of
+ * candidates is a valid block exactly when no two of them spend the same output and every chosen
+ * candidate's parents are chosen too. The selector builds that conflict and dependency graph,
+ * splits it into connected components, which can be optimised separately, and solves the
+ * components in parallel with a branch-and-bound search:
+ * <ul>
+ * <li>candidates are decided parents first, each either taken, which rules out the candidates it
+ * conflicts with and their descendants, or left out, which rules out its own descendants;</li>
+ * <li>a branch is cut when it cannot beat the best plan found so far, starting from the greedy
+ * one; its bound takes the best fee among the spenders of each output, since only one of them can
+ * be chosen;</li>
+ * <li>a candidate that conflicts with nothing still possible is always taken, and once the
+ * decisions made split the candidates still possible into unconnected parts, each part is
+ * searched on its own;</li>
+ * <li>results are memoised by the set of candidates still possible, which is all the rest of the
+ * search depends on.</li>
+ * </ul>
+ * A component that is not solved within the time budget keeps the greedy plan, and the
+ * {@link Selection} says it may not be optimal.
+ */
+public class ExactSelector {
+
+    /** Time budget of {@link #selectTransactions} */
+    public static final long DEFAULT_BUDGET_MILLIS = 1000;
+
+    /** Search states remembered per component; more are searched again instead */
+    private static final int MAX_MEMO = 1 << 20;
+
+    private final UTXOPool pool;
+    private final ParallelValidator validator;
+
+    public ExactSelector(UTXOPool pool) {
+        this(pool, null);
+    }
+
+    /** Verifies the signatures of the candidates on {@code validator} instead of one by one */
+    public ExactSelector(UTXOPool pool, ParallelValidator validator) {
+        this.pool = pool.copy();
+        this.validator = validator;
+    }
+
+    /**
+     * @return the candidates of the best set found within {@link #DEFAULT_BUDGET_MILLIS}, in an
+     *         order in which they can be applied to the pool
+     */
+    public Transaction[] selectTransactions(Transaction[] candidates) {
+        return select(candidates, DEFAULT_BUDGET_MILLIS).getTransactions();
+    }
+
+    /**
+     * Finds the set of {@code candidates} with the highest total fee, giving up on proving
+     * optimality after {@code budgetMillis}. Invalid candidates, duplicates and candidates that
+     * depend on them are never chosen.
+     */
+    public Selection select(Transaction[] candidates, long budgetMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        if (candidates == null || candidates.length == 0) return new Selection(new Transaction[0], 0, true);
+        Graph graph = new Graph(candidates);
+
+        List<Component> components = graph.components();
+        List<Plan> plans = new ArrayList<>();
+        components.parallelStream().map(c -> c.solve(deadline)).forEachOrdered(plans::add);
+
+        List<Integer> chosen = new ArrayList<>();
+        double fee = 0;
+        boolean optimal = true;
+        for (int k = 0; k < components.size(); k++) {
+            Plan plan = plans.get(k);
+            fee += plan.fee;
+            optimal &= plan.optimal;
+            for (Plan p = plan; p.member >= 0; p = p.rest) chosen.add(components.get(k).members[p.member]);
+        }
+        chosen.sort(Comparator.<Integer>comparingInt(c -> graph.depth[c]).thenComparingInt(c -> c));
+        Transaction[] txs = new Transaction[chosen.size()];
+        for (int i = 0; i < txs.length; i++) txs[i] = candidates[chosen.get(i)];
+        return new Selection(txs, fee, optimal);
+    }
+
+    /** Result of {@link #select}: the chosen transactions, their total fee and whether it is proven best */
+    public static final class Selection {
+        private final Transaction[] transactions;
+        private final double fee;
+        private final boolean optimal;
+
+        Selection(Transaction[] transactions, double fee, boolean optimal) {
+            this.transactions = transactions;
+            this.fee = fee;
+            this.optimal = optimal;
+        }
+
+        /** @return the chosen transactions, parents before children */
+        public Transaction[] getTransactions() {
+            return transactions.clone();
+        }
+
+        public double getFee() {
+            return fee;
+        }
+
+        /** @return false if the time budget ran out before every component was solved exactly */
+        public boolean isOptimal() {
+            return optimal;
+        }
+    }
+
+    /** Conflicts and dependencies between the usable candidates */
+    private final class Graph {
+        final Transaction[] txs;
+        final boolean[] usable;
+        final double[] fee;
+        final int[] depth;
+        final List<List<Integer>> parents = new ArrayList<>();
+        final List<List<Integer>> children = new ArrayList<>();
+        /** spent outpoint -> usable candidates spending it */
+        final Map<UTXO, List<Integer>> spenders = new HashMap<>();
+        /** hash -> first candidate with it */
+        final Map<ByteArrayWrapper, Integer> byHash = new HashMap<>();
+
+        Graph(Transaction[] txs) {
+            this.txs = txs;
+            int n = txs.length;
+            usable = new boolean[n];
+            fee = new double[n];
+            depth = new int[n];
+            for (int c = 0; c < n; c++) {
+                parents.add(new ArrayList<>());
+                children.add(new ArrayList<>());
+            }
+
+            for (int c = 0; c < n; c++) {
+                usable[c] = txs[c].getHash() != null && byHash.putIfAbsent(new ByteArrayWrapper(txs[c].getHash()), c) == null;
+            }
+            boolean[] signed = validator != null ? validator.verifySignatures(txs, pool) : null;
+            for (int c = 0; c < n; c++) {
+                if (usable[c]) usable[c] = resolve(c, signed == null || signed[c]);
+            }
+            for (int c = 0; c < n; c++) {
+                for (int p : parents.get(c)) children.get(p).add(c);
+            }
+            boolean[] onPath = new boolean[n];
+            for (int c = 0; c < n; c++) {
+                if (usable[c] && computeDepth(c, onPath) < 0) {
+                    usable[c] = false; // only a forged hash can close a cycle
+                    Arrays.fill(onPath, false);
+                }
+            }
+            dropDependentsOfUnusable();
+
+            for (int c = 0; c < n; c++) {
+                if (!usable[c]) continue;
+                for (Transaction.Input in : txs[c].getInputs()) {
+                    spenders.computeIfAbsent(new UTXO(in.prevTxHash, in.outputIndex), k -> new ArrayList<>()).add(c);
+                }
+            }
+        }
+
+        /** Computes the fee and parents of candidate {@code c}; @return false if it is invalid */
+        private boolean resolve(int c, boolean signatureChecked) {
+            Transaction tx = txs[c];
+            if (Transactions.hasDuplicateInputs(tx)) return false;
+            double in = 0, out = 0;
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                Transaction.Output prev = pool.getTxOutput(input.prevTxHash, input.outputIndex);
+                if (prev == null && input.prevTxHash != null) {
+                    Integer parent = byHash.get(new ByteArrayWrapper(input.prevTxHash));
+                    if (parent == null || input.outputIndex < 0 || input.outputIndex >= txs[parent].numOutputs()) return false;
+                    prev = txs[parent].getOutput(input.outputIndex);
+                    if (!parents.get(c).contains(parent)) parents.get(c).add(parent);
+                }
+                if (prev == null) return false;
+                if (validator == null && !Crypto.verifySignature(prev.address, tx.getRawDataToSign(i), input.signature)) return false;
+                in += prev.value;
+            }
+            if (!signatureChecked) return false;
+            for (Transaction.Output o : tx.getOutputs()) {
+                if (o.value < 0) return false;
+                out += o.value;
+            }
+            if (!(in + 1e-12 >= out)) return false;
+            fee[c] = in - out;
+            return true;
+        }
+
+        /** @return the candidate with hash {@code txHash}, or null */
+        Integer byHash(byte[] txHash) {
+            return txHash == null ? null : byHash.get(new ByteArrayWrapper(txHash));
+        }
+
+        /** @return the longest chain of parents below {@code c}, or -1 if it has a cycle */
+        private int computeDepth(int c, boolean[] onPath) {
+            if (depth[c] > 0) return depth[c];
+            if (onPath[c]) return -1;
+            onPath[c] = true;
+            int d = 1;
+            for (int p : parents.get(c)) {
+                int pd = computeDepth(p, onPath);
+                if (pd < 0) return -1;
+                d = Math.max(d, pd + 1);
+            }
+            onPath[c] = false;
+            return depth[c] = d;
+        }
+
+        private void dropDependentsOfUnusable() {
+            List<Integer> work = new ArrayList<>();
+            for (int c = 0; c < txs.length; c++) if (!usable[c]) work.add(c);
+            while (!work.isEmpty()) {
+                int c = work.remove(work.size() - 1);
+                for (int child : children.get(c)) {
+                    if (usable[child]) {
+                        usable[child] = false;
+                        work.add(child);
+                    }
+                }
+            }
+        }
+
+        /** Splits the usable candidates into groups that share no conflict or dependency */
+        List<Component> components() {
+            int n = txs.length;
+            int[] root = new int[n];
+            for (int c = 0; c < n; c++) root[c] = c;
+            for (int c = 0; c < n; c++) {
+                if (usable[c]) for (int p : parents.get(c)) union(root, c, p);
+            }
+            for (List<Integer> group : spenders.values()) {
+                for (int c : group) union(root, c, group.get(0));
+            }
+            Map<Integer, List<Integer>> groups = new HashMap<>();
+            for (int c = 0; c < n; c++) {
+                if (usable[c]) groups.computeIfAbsent(find(root, c), k -> new ArrayList<>()).add(c);
+            }
+            List<Component> components = new ArrayList<>();
+            for (List<Integer> g : groups.values()) components.add(new Component(this, g));
+            // start the hardest ones first
+            components.sort(Comparator.comparingInt((Component c) -> -c.members.length));
+            return components;
+        }
+    }
+
+    private static int find(int[] root, int c) {
+        while (root[c] != c) c = root[c] = root[root[c]];
+        return c;
+    }
+
+    private static void union(int[] root, int a, int b) {
+        root[find(root, a)] = find(root, b);
+    }
+
+    /** One connected group of candidates, numbered parents first */
+    private static final class Component {
+        /** candidate index of each member */
+        final int[] members;
+        final double[] fee;
+        /** members ruled out by taking each member: itself, those it conflicts with and their descendants */
+        final BitSet[] blockedByTaking;
+        /** members ruled out by leaving each member out: itself and its descendants */
+        final BitSet[] blockedByLeaving;
+        /** parents of each member */
+        final BitSet[] parents;
+        /** members each member conflicts with or depends on, or that depend on it */
+        final BitSet[] neighbours;
+        /**
+         * Conflict group of each member: the spenders of one of its inputs, of which a plan takes
+         * at most one, so the best fee of each group bounds what a plan can earn
+         */
+        final int[] conflictGroup;
+        final double[] groupBest;
+        /** best plan of each set of possible members solved so far */
+        final Map<BitSet, Plan> memo = new HashMap<>();
+        /** a fee no plan of each set of possible members can beat, for sets searched without success */
+        final Map<BitSet, Double> ceilings = new HashMap<>();
+        long deadline;
+
+        Component(Graph graph, List<Integer> group) {
+            group.sort(Comparator.<Integer>comparingInt(c -> graph.depth[c])
+                    .thenComparingDouble(c -> -graph.fee[c]).thenComparingInt(c -> c));
+            int m = group.size();
+            members = new int[m];
+            fee = new double[m];
+            Map<Integer, Integer> local = new HashMap<>();
+            for (int i = 0; i < m; i++) {
+                members[i] = group.get(i);
+                fee[i] = graph.fee[members[i]];
+                local.put(members[i], i);
+            }
+
+            // children come later in the order, so descendants can be gathered from the end
+            BitSet[] descendants = new BitSet[m];
+            for (int i = m - 1; i >= 0; i--) {
+                descendants[i] = new BitSet(m);
+                for (int child : graph.children.get(members[i])) {
+                    Integer j = local.get(child);
+                    if (j == null) continue; // not usable
+                    descendants[i].set(j);
+                    descendants[i].or(descendants[j]);
+                }
+            }
+            blockedByLeaving = new BitSet[m];
+            blockedByTaking = new BitSet[m];
+            neighbours = new BitSet[m];
+            parents = new BitSet[m];
+            for (int i = 0; i < m; i++) {
+                blockedByLeaving[i] = (BitSet) descendants[i].clone();
+                blockedByLeaving[i].set(i);
+                blockedByTaking[i] = new BitSet(m);
+                blockedByTaking[i].set(i);
+                neighbours[i] = new BitSet(m);
+                parents[i] = new BitSet(m);
+            }
+            conflictGroup = new int[m];
+            Map<UTXO, Integer> groups = new HashMap<>();
+            for (int i = 0; i < m; i++) {
+                List<Integer> largest = null;
+                UTXO largestOutpoint = null;
+                for (Transaction.Input in : graph.txs[members[i]].getInputs()) {
+                    UTXO outpoint = new UTXO(in.prevTxHash, in.outputIndex);
+                    List<Integer> spenders = graph.spenders.get(outpoint);
+                    if (largest == null || spenders.size() > largest.size()) {
+                        largest = spenders;
+                        largestOutpoint = outpoint;
+                    }
+                    for (int other : spenders) {
+                        if (other == members[i]) continue;
+                        int j = local.get(other);
+                        blockedByTaking[i].set(j);
+                        blockedByTaking[i].or(descendants[j]);
+                        neighbours[i].set(j);
+                    }
+                    Integer parent = local.get(graph.byHash(in.prevTxHash));
+                    if (parent != null) {
+                        parents[i].set(parent);
+                        neighbours[i].set(parent);
+                        neighbours[parent].set(i);
+                    }
+                }
+                conflictGroup[i] = largestOutpoint == null ? groups.size() + m
+                        : groups.computeIfAbsent(largestOutpoint, k -> groups.size());
+            }
+            groupBest = new double[groups.size() + 2 * m];
+        }
+
+        /** @return the best plan for the whole component, or the greedy one if time runs out */
+        Plan solve(long deadline) {
+            this.deadline = deadline;
+            BitSet all = new BitSet(members.length);
+            all.set(0, members.length);
+            Plan greedy = greedy(all);
+            try {
+                Plan better = search(all, greedy.fee);
+                return better != null ? better : greedy;
+            } catch (OutOfTime e) {
+                return greedy.notOptimal();
+            } finally {
+                memo.clear();
+                ceilings.clear();
+            }
+        }
+
+        /**
+         * @return the best plan for the members in {@code possible}, every other one being decided,
+         *         or null if no plan earns more than {@code floor}
+         */
+        private Plan search(BitSet possible, double floor) {
+            int j = possible.nextSetBit(0);
+            if (j < 0) return floor < 0 ? Plan.EMPTY : null;
+            Plan known = memo.get(possible);
+            if (known != null) return known.fee > floor ? known : null;
+            Double ceiling = ceilings.get(possible);
+            if (ceiling != null && ceiling <= floor) return null;
+            if (bound(possible) <= floor) return null;
+            if (System.nanoTime() - deadline > 0) throw new OutOfTime();
+
+            Plan plan = null;
+            BitSet part = connectedPart(j, possible);
+            if (!part.equals(possible)) {
+                // decisions so far cut the possible members into independent parts
+                BitSet rest = (BitSet) possible.clone();
+                rest.andNot(part);
+                Plan first = search(part, floor - bound(rest));
+                Plan second = first == null ? null : search(rest, floor - first.fee);
+                if (second != null) plan = Plan.concat(first, second);
+            } else {
+                j = branchMember(possible);
+                BitSet taking = (BitSet) possible.clone();
+                taking.andNot(blockedByTaking[j]);
+                Plan taken = search(taking, floor - fee[j]);
+                if (taken != null) plan = new Plan(fee[j] + taken.fee, j, taken);
+
+                // taking a member that conflicts with nothing possible can only help
+                if (conflictsWithPossible(j, possible) || fee[j] < 0) {
+                    BitSet leaving = (BitSet) possible.clone();
+                    leaving.andNot(blockedByLeaving[j]);
+                    Plan left = search(leaving, plan != null ? plan.fee : floor);
+                    if (left != null) plan = left;
+                }
+            }
+            if (memo.size() + ceilings.size() < MAX_MEMO) {
+                if (plan != null) {
+                    memo.put(possible, plan);
+                } else {
+                    ceilings.put(possible, floor);
+                }
+            }
+            return plan;
+        }
+
+        /**
+         * @return the member to decide next: of those whose parents are all taken, the one that rules
+         *         out the most possible members when taken, which splits the rest soonest
+         */
+        private int branchMember(BitSet possible) {
+            int best = -1, bestBlocked = -1;
+            for (int i = possible.nextSetBit(0); i >= 0; i = possible.nextSetBit(i + 1)) {
+                if (parents[i].intersects(possible)) continue;
+                BitSet blocked = (BitSet) blockedByTaking[i].clone();
+                blocked.and(possible);
+                int count = blocked.cardinality();
+                if (count > bestBlocked) {
+                    best = i;
+                    bestBlocked = count;
+                }
+            }
+            return best;
+        }
+
+        private boolean conflictsWithPossible(int j, BitSet possible) {
+            BitSet others = (BitSet) blockedByTaking[j].clone();
+            others.clear(j);
+            return others.intersects(possible);
+        }
+
+        /** @return the members of {@code possible} connected to {@code start} through other possible members */
+        private BitSet connectedPart(int start, BitSet possible) {
+            BitSet part = new BitSet(members.length);
+            part.set(start);
+            BitSet frontier = (BitSet) part.clone();
+            while (!frontier.isEmpty()) {
+                BitSet next = new BitSet(members.length);
+                for (int i = frontier.nextSetBit(0); i >= 0; i = frontier.nextSetBit(i + 1)) next.or(neighbours[i]);
+                next.and(possible);
+                next.andNot(part);
+                part.or(next);
+                frontier = next;
+            }
+            return part;
+        }
+
+        /** @return an upper bound on the fee of any plan for {@code possible}: the best of each conflict group */
+        private double bound(BitSet possible) {
+            double sum = 0;
+            for (int i = possible.nextSetBit(0); i >= 0; i = possible.nextSetBit(i + 1)) {
+                double gain = fee[i] - groupBest[conflictGroup[i]];
+                if (gain > 0) {
+                    sum += gain;
+                    groupBest[conflictGroup[i]] = fee[i];
+                }
+            }
+            for (int i = possible.nextSetBit(0); i >= 0; i = possible.nextSetBit(i + 1)) groupBest[conflictGroup[i]] = 0;
+            return sum;
+        }
+
+        /** @return the plan that takes each member still possible, parents first and higher fees first */
+        private Plan greedy(BitSet possible) {
+            BitSet left = (BitSet) possible.clone();
+            List<Integer> taken = new ArrayList<>();
+            for (int j = left.nextSetBit(0); j >= 0; j = left.nextSetBit(j + 1)) {
+                taken.add(j);
+                left.andNot(blockedByTaking[j]);
+            }
+            Plan plan = Plan.EMPTY;
+            for (int k = taken.size() - 1; k >= 0; k--) {
+                int j = taken.get(k);
+                plan = new Plan(fee[j] + plan.fee, j, plan);
+            }
+            return plan;
+        }
+    }
+
+    /** Members taken by a plan, as a list shared with the plans it was built from */
+    private static final class Plan {
+        static final Plan EMPTY = new Plan(0, -1, null);
+
+        final double fee;
+        final int member;
+        final Plan rest;
+        /** false if the time budget ran out before the plan was proven best */
+        final boolean optimal;
+
+        Plan(double fee, int member, Plan rest) {
+            this(fee, member, rest, true);
+        }
+
+        private Plan(double fee, int member, Plan rest, boolean optimal) {
+            this.fee = fee;
+            this.member = member;
+            this.rest = rest;
+            this.optimal = optimal;
+        }
+
+        Plan notOptimal() {
+            return new Plan(fee, member, rest, false);
+        }
+
+        /** @return a plan taking the members of both plans, which must not conflict */
+        static Plan concat(Plan a, Plan b) {
+            if (a.member < 0) return b;
+            return new Plan(a.fee + b.fee, a.member, concat(a.rest, b));
+        }
+    }
+
+    /** Thrown out of the search when the time budget is spent */
+    private static final class OutOfTime extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        OutOfTime() {
+            super(null, null, false, false);
+        }
+    }
+
+    /** @return the number of independently solved groups {@code candidates} split into */
+    int componentCount(Transaction[] candidates) {
+        return new Graph(candidates).components().size();
+    }
+}
@@ -1,66 +1,455 @@
+import java.security.PublicKey;
 import java.util.*;
 
 public class Greedy {
     private final UTXOPool pool;
+    private final ParallelValidator validator;
 
     // keep only what's required by the assignment: constructor + greedy selector
-    public Greedy(UTXOPool pool) { this.pool = new UTXOPool(pool); }
+    public Greedy(UTXOPool pool) { this(pool, null); }
+
+    // signatures of the candidates are verified once, up front, on the given validator
+    public Greedy(UTXOPool pool, ParallelValidator validator) {
+        this.pool = pool.copy();
+        this.validator = validator;
+    }
 
     // Return a set of transactions chosen greedily to maximize fees.
     public Transaction[] selectTransactions(Transaction[] candidates) {
         if (candidates == null || candidates.length == 0) return new Transaction[0];
+        return select(candidates).toArray(new Transaction[0]);
+    }
+
+    // Same selection over any readable form, e.g. TransactionViews of an encoded batch.
+    public ReadableTransaction[] selectTransactions(ReadableTransaction[] candidates) {
+        if (candidates == null || candidates.length == 0) return new ReadableTransaction[0];
+        return select(candidates).toArray(new ReadableTransaction[0]);
+    }
+
+    // Child-pays-for-parent selection: a candidate may spend outputs of other candidates, and is
+    // scored by the fee rate (fee per encoded byte) of the package made of it and its ancestors not
+    // selected yet. The best package is taken whole, parents first. The packages of its members'
+    // descendants then shrink by the selected ancestors and are re-scored, and candidates spending
+    // the same outputs are dropped along with their descendants. A cheap parent with a generous
+    // child is thus judged on what the pair pays together.
+    public Transaction[] selectPackages(Transaction[] candidates) {
+        return selectPackages(candidates, Long.MAX_VALUE);
+    }
+
+    // Same, for a block of at most maxBytes encoded bytes: a package that does not fit in the space
+    // left is passed over, and looked at again if selecting its ancestors shrinks it.
+    public Transaction[] selectPackages(Transaction[] candidates, long maxBytes) {
+        if (candidates == null || candidates.length == 0) return new Transaction[0];
+        PackageGraph graph = packageGraph(candidates);
+        return graph.transactions(graph.select(maxBytes, new BitSet()));
+    }
+
+    // Checks the candidates and links them to their parents, for any number of package selections.
+    // Synchronized because it reads the pool, which a concurrent select may be changing.
+    synchronized PackageGraph packageGraph(Transaction[] candidates) {
+        boolean[] badSignature = new boolean[candidates.length];
+        if (validator != null) {
+            boolean[] signed = validator.verifySignatures(candidates, pool);
+            for (int i = 0; i < candidates.length; i++) badSignature[i] = !signed[i];
+        }
+        return new PackageGraph(candidates, badSignature, validator != null, pool);
+    }
+
+    // The selection is applied to the pool under a savepoint and rolled back afterwards, so a call
+    // costs as much as the transactions it applies rather than a copy of the pool. The pool is
+    // shared by every call, so calls on one Greedy run one at a time; threads that want to select
+    // in parallel should each use their own Greedy.
+    private synchronized <T extends ReadableTransaction> List<T> select(T[] candidates) {
+        int savepoint = pool.savepoint();
+        try {
+            return select(candidates, pool);
+        } finally {
+            pool.rollbackTo(savepoint);
+            pool.release(savepoint);
+        }
+    }
+
+    // Same choice as rescanning every candidate each round and taking the highest fee (the earliest
+    // one on ties), without the rescans: valid candidates wait in a max-heap keyed by fee, and
+    // applying a transaction only re-evaluates the candidates that spend one of the outputs it
+    // spends or creates, since nothing else about the pool changes. Each candidate's signatures
+    // are verified once, when all of its inputs are first available.
+    private <T extends ReadableTransaction> List<T> select(T[] candidates, UTXOPool working) {
+        int n = candidates.length;
+        boolean[] badSignature = new boolean[n];
+        if (validator != null) {
+            boolean[] signed = validator.verifySignatures(candidates, working);
+            for (int i = 0; i < n; i++) badSignature[i] = !signed[i];
+        }
+
+        // outpoint -> candidates spending it
+        Map<UTXO, List<Integer>> spenders = new HashMap<>();
+        for (int c = 0; c < n; c++) {
+            T tx = candidates[c];
+            for (int i = 0; i < tx.numInputs(); i++) {
+                byte[] prev = tx.getPrevTxHash(i);
+                if (prev == null) continue;
+                spenders.computeIfAbsent(new UTXO(prev, tx.getOutputIndex(i)), k -> new ArrayList<>()).add(c);
+            }
+        }
+
+        Candidate[] state = new Candidate[n];
+        PriorityQueue<Entry> heap = new PriorityQueue<>();
+        for (int c = 0; c < n; c++) {
+            state[c] = new Candidate(candidates[c], validator != null);
+            state[c].badSignature = badSignature[c];
+            offer(c, state[c], working, heap);
+        }
 
-        UTXOPool working = new UTXOPool(pool);
-        List<Transaction> remaining = new ArrayList<>(Arrays.asList(candidates));
-        List<Transaction> accepted = new ArrayList<>();
+        List<T> accepted = new ArrayList<>();
+        while (!heap.isEmpty()) {
+            Entry e = heap.poll();
+            Candidate best = state[e.candidate];
+            if (best.accepted || e.version != best.version) continue; // stale entry
+            best.accepted = true;
+            applyTxToPool(best.tx, working);
+            accepted.add(candidates[e.candidate]);
 
-        while (true) {
-            Transaction best = null; double bestFee = Double.NEGATIVE_INFINITY;
-            for (Transaction tx : remaining) {
-                if (!isValidTxAgainstPool(tx, working)) continue;
-                double fee = computeFeeUsingPool(tx, working);
-                if (fee > bestFee) { best = tx; bestFee = fee; }
+            Set<Integer> affected = new TreeSet<>();
+            for (int i = 0; i < best.tx.numInputs(); i++) {
+                byte[] prev = best.tx.getPrevTxHash(i);
+                if (prev != null) addAll(affected, spenders.get(new UTXO(prev, best.tx.getOutputIndex(i))));
+            }
+            byte[] h = best.tx.getHash();
+            for (int i = 0; i < best.tx.numOutputs(); i++) addAll(affected, spenders.get(new UTXO(h, i)));
+            for (int c : affected) {
+                if (!state[c].accepted) offer(c, state[c], working, heap);
             }
-            if (best == null) break;
-            applyTxToPool(best, working);
-            accepted.add(best);
-            remaining.remove(best);
         }
+        return accepted;
+    }
 
-        return accepted.toArray(new Transaction[0]);
+    // Re-evaluates candidate c against the pool; an older heap entry for it becomes stale.
+    private void offer(int c, Candidate cand, UTXOPool p, PriorityQueue<Entry> heap) {
+        cand.version++;
+        if (cand.duplicateInputs || cand.badSignature) return;
+        double in = 0;
+        for (int i = 0; i < cand.tx.numInputs(); i++) {
+            double value = cand.tx.getSpentValue(p, i);
+            if (Double.isNaN(value)) return;
+            in += value;
+        }
+        if (cand.negativeOutput || !(in + 1e-12 >= cand.out)) return;
+        if (cand.checkSignatures && !cand.signedBy(p)) return;
+        heap.add(new Entry(in - cand.out, c, cand.version));
     }
 
-    // --- helper methods (minimal, internal) ---
-    private double computeFeeUsingPool(Transaction tx, UTXOPool p) {
-        double in = 0, out = 0;
-        for (int i=0;i<tx.numInputs();i++) {
-            Transaction.Input I = tx.getInput(i);
-            UTXO u = new UTXO(I.prevTxHash, I.outputIndex);
-            Transaction.Output o = p.getTxOutput(u);
-            if (o == null) return Double.NEGATIVE_INFINITY;
-            in += o.value;
-        }
-        for (Transaction.Output o: tx.getOutputs()) out += o.value;
-        return in - out;
+    private static void addAll(Set<Integer> to, List<Integer> from) {
+        if (from != null) to.addAll(from);
+    }
+
+    // Per-candidate state; everything that does not depend on the pool is computed once.
+    private static final class Candidate {
+        final ReadableTransaction tx;
+        final boolean checkSignatures;
+        final boolean duplicateInputs;
+        final boolean negativeOutput;
+        final double out;
+        boolean badSignature;
+        boolean accepted;
+        int version;
+        // addresses the signatures were last verified against, and the outcome
+        PublicKey[] signers;
+        boolean signed;
+
+        Candidate(ReadableTransaction tx, boolean verifiedUpFront) {
+            this.tx = tx;
+            this.checkSignatures = !verifiedUpFront;
+            this.duplicateInputs = Transactions.hasDuplicateInputs(tx);
+            double sum = 0; boolean negative = false;
+            for (int i = 0; i < tx.numOutputs(); i++) { double v = tx.getOutputValue(i); if (v < 0) negative = true; sum += v; }
+            this.out = sum;
+            this.negativeOutput = negative;
+        }
+
+        // Checks the signatures against the owners of the spent outputs in pool. An outpoint only
+        // changes owner if it is spent and recreated, so this verifies once in practice.
+        boolean signedBy(UTXOPool pool) {
+            return signedBy(pool, null);
+        }
+
+        // Same, against the owners of prevs, the outputs spent by each input.
+        boolean signedBy(Transaction.Output[] prevs) {
+            return signedBy(null, prevs);
+        }
+
+        private boolean signedBy(UTXOPool pool, Transaction.Output[] prevs) {
+            int n = tx.numInputs();
+            boolean same = signers != null;
+            for (int i = 0; same && i < n; i++) same = signers[i] == owner(i, pool, prevs);
+            if (same) return signed;
+            signers = new PublicKey[n];
+            signed = true;
+            for (int i = 0; i < n; i++) {
+                signers[i] = owner(i, pool, prevs);
+                if (signed && !Crypto.verifySignature(signers[i], tx.getRawDataToSign(i), tx.getSignature(i))) signed = false;
+            }
+            return signed;
+        }
+
+        private PublicKey owner(int i, UTXOPool pool, Transaction.Output[] prevs) {
+            return prevs != null ? prevs[i].address : tx.getSpentAddress(pool, i);
+        }
     }
 
-    private boolean isValidTxAgainstPool(Transaction tx, UTXOPool p) {
-        HashSet<UTXO> seen = new HashSet<>(); double in = 0, out = 0;
-        for (int i=0;i<tx.numInputs();i++) {
-            Transaction.Input I = tx.getInput(i);
-            UTXO u = new UTXO(I.prevTxHash, I.outputIndex);
-            if (!p.contains(u) || !seen.add(u)) return false;
-            Transaction.Output prev = p.getTxOutput(u);
-            if (!Crypto.verifySignature(prev.address, tx.getRawDataToSign(i), I.signature)) return false;
-            in += prev.value;
-        }
-        for (Transaction.Output o: tx.getOutputs()) { if (o.value < 0) return false; out += o.value; }
-        return in + 1e-12 >= out;
+    // Heap entry: highest score (fee, or package fee rate) first, then the earliest candidate.
+    private static final class Entry implements Comparable<Entry> {
+        final double score;
+        final int candidate;
+        final int version;
+
+        Entry(double score, int candidate, int version) {
+            this.score = score;
+            this.candidate = candidate;
+            this.version = version;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int byScore = Double.compare(o.score, score);
+            return byScore != 0 ? byScore : Integer.compare(candidate, o.candidate);
+        }
     }
 
-    private void applyTxToPool(Transaction tx, UTXOPool p) {
-        for (int i=0;i<tx.numInputs();i++) p.removeUTXO(new UTXO(tx.getInput(i).prevTxHash, tx.getInput(i).outputIndex));
+    // Candidates checked once against the pool and the outputs of their parent candidates; after
+    // that only conflicts with a selection matter, so one graph serves many selections.
+    static final class PackageGraph {
+        final Transaction[] txs;
+        final int n;
+        final List<List<Integer>> parents = new ArrayList<>();
+        final List<List<Integer>> children = new ArrayList<>();
+        final BitSet[] ancestors;
+        final int[] topoIndex;
+        final double[] fee;
+        final int[] size;
+        // invalid, depending on an invalid candidate, or with two package members spending one output
+        final boolean[] unusable;
+        // outpoint -> candidates spending it
+        final Map<UTXO, List<Integer>> spenders = new HashMap<>();
+
+        PackageGraph(Transaction[] txs, boolean[] badSignature, boolean verifiedUpFront, UTXOPool pool) {
+            this.txs = txs;
+            n = txs.length;
+            ancestors = new BitSet[n];
+            topoIndex = new int[n];
+            fee = new double[n];
+            size = new int[n];
+            unusable = new boolean[n];
+
+            Map<ByteArrayWrapper, Integer> byHash = new HashMap<>();
+            for (int c = 0; c < n; c++) {
+                byHash.putIfAbsent(new ByteArrayWrapper(txs[c].getHash()), c);
+                parents.add(new ArrayList<>());
+                children.add(new ArrayList<>());
+            }
+            for (int c = 0; c < n; c++) {
+                resolve(c, new Candidate(txs[c], verifiedUpFront), badSignature[c], pool, byHash);
+            }
+            order();
+            for (int c = 0; c < n; c++) {
+                if (!unusable[c] && conflictsWithin(c)) {
+                    unusable[c] = true;
+                    for (int d : descendants(c)) unusable[d] = true;
+                }
+            }
+        }
+
+        // Finds the outputs candidate c spends, in the pool or among the candidates, and checks it.
+        private void resolve(int c, Candidate cand, boolean badSignature, UTXOPool pool,
+                             Map<ByteArrayWrapper, Integer> byHash) {
+            Transaction tx = txs[c];
+            unusable[c] = cand.duplicateInputs || cand.negativeOutput || badSignature;
+            Transaction.Output[] prevs = new Transaction.Output[tx.numInputs()];
+            double in = 0;
+            for (int i = 0; i < prevs.length; i++) {
+                Transaction.Input input = tx.getInput(i);
+                if (input.prevTxHash == null) { unusable[c] = true; continue; }
+                spenders.computeIfAbsent(new UTXO(input.prevTxHash, input.outputIndex), k -> new ArrayList<>()).add(c);
+                prevs[i] = pool.getTxOutput(input.prevTxHash, input.outputIndex);
+                if (prevs[i] == null) {
+                    Integer p = byHash.get(new ByteArrayWrapper(input.prevTxHash));
+                    if (p == null || p == c || input.outputIndex < 0 || input.outputIndex >= txs[p].numOutputs()) {
+                        unusable[c] = true;
+                        continue;
+                    }
+                    prevs[i] = txs[p].getOutput(input.outputIndex);
+                    if (!parents.get(c).contains(p)) {
+                        parents.get(c).add(p);
+                        children.get(p).add(c);
+                    }
+                }
+                in += prevs[i].value;
+            }
+            size[c] = TransactionCodec.encodedSize(tx);
+            if (unusable[c]) return;
+            fee[c] = in - cand.out;
+            if (!(in + 1e-12 >= cand.out) || (cand.checkSignatures && !cand.signedBy(prevs))) unusable[c] = true;
+        }
+
+        // Sorts the candidates parents first and gathers their ancestors; an unusable parent makes its
+        // children unusable.
+        private void order() {
+            int[] waiting = new int[n];
+            Deque<Integer> ready = new ArrayDeque<>();
+            for (int c = 0; c < n; c++) {
+                waiting[c] = parents.get(c).size();
+                if (waiting[c] == 0) ready.add(c);
+            }
+            int next = 0;
+            while (!ready.isEmpty()) {
+                int c = ready.poll();
+                topoIndex[c] = next++;
+                ancestors[c] = new BitSet(n);
+                for (int p : parents.get(c)) {
+                    ancestors[c].or(ancestors[p]);
+                    ancestors[c].set(p);
+                    if (unusable[p]) unusable[c] = true;
+                }
+                for (int child : children.get(c)) {
+                    if (--waiting[child] == 0) ready.add(child);
+                }
+            }
+            for (int c = 0; c < n; c++) {
+                if (ancestors[c] == null) { // on a cycle, which only a hash collision could make
+                    ancestors[c] = new BitSet(n);
+                    unusable[c] = true;
+                }
+            }
+        }
+
+        // True if two members of c's package spend the same output, so it can never be selected.
+        private boolean conflictsWithin(int c) {
+            Set<UTXO> spent = new HashSet<>();
+            BitSet members = (BitSet) ancestors[c].clone();
+            members.set(c);
+            for (int m = members.nextSetBit(0); m >= 0; m = members.nextSetBit(m + 1)) {
+                for (Transaction.Input in : txs[m].getInputs()) {
+                    if (!spent.add(new UTXO(in.prevTxHash, in.outputIndex))) return true;
+                }
+            }
+            return false;
+        }
+
+        Set<Integer> descendants(int c) {
+            Set<Integer> found = new HashSet<>();
+            Deque<Integer> todo = new ArrayDeque<>(children.get(c));
+            while (!todo.isEmpty()) {
+                int d = todo.poll();
+                if (found.add(d)) todo.addAll(children.get(d));
+            }
+            return found;
+        }
+
+        // Selects packages by fee rate within maxBytes, never taking the excluded candidates or
+        // their descendants. Returns the candidates taken, in block order.
+        List<Integer> select(long maxBytes, BitSet excluded) {
+            return new Selection(excluded).run(maxBytes);
+        }
+
+        Transaction[] transactions(List<Integer> chosen) {
+            Transaction[] block = new Transaction[chosen.size()];
+            for (int i = 0; i < block.length; i++) block[i] = txs[chosen.get(i)];
+            return block;
+        }
+
+        double fee(List<Integer> chosen) {
+            double total = 0;
+            for (int c : chosen) total += fee[c];
+            return total;
+        }
+
+        long size(List<Integer> chosen) {
+            long total = 0;
+            for (int c : chosen) total += size[c];
+            return total;
+        }
+
+        // State of one selection over the graph.
+        private final class Selection {
+            // fee and size of the candidate and its unselected ancestors
+            final double[] packageFee = new double[n];
+            final long[] packageSize = new long[n];
+            final boolean[] dead = unusable.clone();
+            final boolean[] selected = new boolean[n];
+            final int[] version = new int[n];
+            final PriorityQueue<Entry> heap = new PriorityQueue<>();
+
+            Selection(BitSet excluded) {
+                for (int c = excluded.nextSetBit(0); c >= 0; c = excluded.nextSetBit(c + 1)) kill(c);
+                for (int c = 0; c < n; c++) {
+                    if (dead[c]) continue;
+                    packageFee[c] = fee[c];
+                    packageSize[c] = size[c];
+                    for (int a = ancestors[c].nextSetBit(0); a >= 0; a = ancestors[c].nextSetBit(a + 1)) {
+                        packageFee[c] += fee[a];
+                        packageSize[c] += size[a];
+                    }
+                    offer(c);
+                }
+            }
+
+            List<Integer> run(long maxBytes) {
+                List<Integer> block = new ArrayList<>();
+                long room = maxBytes;
+                while (!heap.isEmpty()) {
+                    Entry e = heap.poll();
+                    int best = e.candidate;
+                    if (dead[best] || selected[best] || e.version != version[best]) continue; // stale entry
+                    if (packageSize[best] > room) continue; // re-offered if it shrinks
+
+                    List<Integer> members = new ArrayList<>();
+                    for (int a = ancestors[best].nextSetBit(0); a >= 0; a = ancestors[best].nextSetBit(a + 1)) {
+                        if (!selected[a]) members.add(a);
+                    }
+                    members.add(best);
+                    members.sort(Comparator.comparingInt(m -> topoIndex[m]));
+                    for (int m : members) {
+                        selected[m] = true;
+                        block.add(m);
+                    }
+                    room -= packageSize[best];
+
+                    Set<Integer> affected = new TreeSet<>();
+                    for (int m : members) {
+                        for (Transaction.Input in : txs[m].getInputs()) {
+                            for (int rival : spenders.get(new UTXO(in.prevTxHash, in.outputIndex))) {
+                                if (rival != m) kill(rival);
+                            }
+                        }
+                        for (int d : descendants(m)) {
+                            packageFee[d] -= fee[m];
+                            packageSize[d] -= size[m];
+                            affected.add(d);
+                        }
+                    }
+                    for (int d : affected) {
+                        if (!dead[d] && !selected[d]) offer(d);
+                    }
+                }
+                return block;
+            }
+
+            private void offer(int c) {
+                version[c]++;
+                heap.add(new Entry(packageFee[c] / packageSize[c], c, version[c]));
+            }
+
+            private void kill(int c) {
+                dead[c] = true;
+                for (int d : descendants(c)) dead[d] = true;
+            }
+        }
+    }
+
+    // --- helper methods (minimal, internal) ---
+    private void applyTxToPool(ReadableTransaction tx, UTXOPool p) {
+        for (int i=0;i<tx.numInputs();i++) p.removeUTXO(tx.getPrevTxHash(i), tx.getOutputIndex(i));
         byte[] h = tx.getHash();
-        for (int i=0;i<tx.numOutputs();i++) p.addUTXO(new UTXO(h,i), tx.getOutput(i));
+        for (int i=0;i<tx.numOutputs();i++) p.addUTXO(h, i, tx.getOutput(i));
     }
 }
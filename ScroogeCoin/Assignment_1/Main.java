@@ -7,11 +7,12 @@ public class Main {
     public static void main(String[] args) throws Exception {
 
         // ================================================
-        // --- 0. Generate RSA Key Pair ---
+        // --- 0. Generate Key Pair (RSA unless given) ---
         // ================================================
-        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-        keyGen.initialize(1024);
-        KeyPair pair = keyGen.generateKeyPair();
+        SignatureScheme scheme = args.length > 0
+                ? SignatureScheme.valueOf(args[0])
+                : SignatureScheme.DEFAULT;
+        KeyPair pair = scheme.generateKeyPair();
         PublicKey pub = pair.getPublic();
         PrivateKey priv = pair.getPrivate();
 
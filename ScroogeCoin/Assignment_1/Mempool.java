@@ -0,0 +1,473 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Pending transactions waiting in front of a {@link TxHandler}, held within a byte budget.
+ * <p>
+ * {@link #add} checks a transaction against the handler's pool and the outputs of the
+ * transactions already waiting, so chains of unconfirmed transactions can be held, and says why a
+ * transaction was turned away instead of dropping it silently. Transactions are indexed by hash
+ * and by the outpoints they spend, which makes duplicates and double spends cheap to spot. The
+ * size of a transaction is its {@link TransactionCodec} encoding.
+ * <p>
+ * When the budget is exceeded, the transaction with the lowest eviction score goes first, together
+ * with everything that spends from it. The score is the better of its own fee rate and the fee
+ * rate of the package made of it and its descendants, so a cheap parent is kept as long as a
+ * child pays for it. The descendant totals are updated as transactions come and go. Under a flood
+ * of cheap transactions the pool stays within its budget and keeps the ones paying the most per
+ * byte. Not thread-safe.
+ */
+public class Mempool {
+
+    /** Outcome of {@link #add} */
+    public enum Status {
+        /** the transaction is now in the pool */
+        ADDED,
+        /** the transaction is already in the pool */
+        DUPLICATE,
+        /** the transaction breaks a rule: bad signature, negative output, value creation... */
+        INVALID,
+        /** an input is neither in the handler's pool nor an output of a pending transaction */
+        MISSING_INPUTS,
+        /** an input is already spent by a pending transaction */
+        CONFLICT,
+        /**
+         * the pool is full of transactions paying a better fee rate, or the transaction alone is
+         * bigger than the budget; nothing was evicted
+         */
+        FULL
+    }
+
+    /** Told about every transaction entering or leaving a {@link Mempool} */
+    public interface Listener {
+        /** {@code tx} was added, paying {@code fee} for {@code size} encoded bytes */
+        void added(Transaction tx, double fee, int size);
+
+        /**
+         * {@code tx} left the pool: evicted, removed, confirmed or dropped as a conflict. When
+         * several transactions leave together, children are reported before their parents.
+         */
+        void removed(Transaction tx);
+    }
+
+    private final TxHandler handler;
+    private final long maxBytes;
+    private final List<Listener> listeners = new ArrayList<>();
+    private OrphanPool orphans;
+
+    /** pending transactions by hash, in arrival order, which puts parents before children */
+    private final LinkedHashMap<ByteArrayWrapper, Entry> byHash = new LinkedHashMap<>();
+    /** spent outpoint -> pending transaction spending it */
+    private final HashMap<UTXO, Entry> bySpentOutpoint = new HashMap<>();
+    /** eviction order: lowest score first, newest first on ties */
+    private final TreeSet<Entry> evictionOrder = new TreeSet<>(
+            Comparator.comparingDouble(Entry::evictionScore)
+                    .thenComparing(Comparator.comparingLong((Entry e) -> e.sequence).reversed()));
+
+    private long bytes;
+    private long sequence;
+    private long evictedCount;
+
+    /**
+     * Creates an empty pool feeding {@code handler}, whose UTXO pool is the confirmed state
+     * transactions are checked against.
+     *
+     * @throws IllegalArgumentException if {@code maxBytes} is not positive
+     */
+    public Mempool(TxHandler handler, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Byte budget must be positive: " + maxBytes);
+        }
+        this.handler = handler;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Holds the transactions {@link #add} turns away with {@link Status#MISSING_INPUTS} in
+     * {@code orphans}, and adds them as soon as the transactions they wait on are added. Pass null
+     * to stop holding them.
+     */
+    public void setOrphanPool(OrphanPool orphans) {
+        this.orphans = orphans;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Checks {@code tx} and, if it is valid, adds it to the pool, evicting the transactions with the
+     * lowest scores until the pool fits its budget again. If that would evict {@code tx} itself,
+     * or one of its ancestors, nothing is evicted and {@code tx} is turned away as
+     * {@link Status#FULL}. The transaction must be finalized. With an {@link OrphanPool}, the
+     * orphans waiting on {@code tx} are then added too, and so on down their descendants.
+     */
+    public Status add(Transaction tx) {
+        Status status = tryAdd(tx);
+        if (orphans == null) return status;
+        if (status == Status.MISSING_INPUTS) {
+            orphans.add(tx, missingParents(tx));
+        } else if (status == Status.ADDED) {
+            Deque<Transaction> woken = new ArrayDeque<>(orphans.takeChildren(tx.getHash()));
+            while (!woken.isEmpty()) {
+                Transaction orphan = woken.poll();
+                Status s = tryAdd(orphan);
+                if (s == Status.ADDED) {
+                    woken.addAll(orphans.takeChildren(orphan.getHash()));
+                } else if (s == Status.MISSING_INPUTS) {
+                    orphans.add(orphan, missingParents(orphan)); // still waiting on another parent
+                }
+            }
+        }
+        return status;
+    }
+
+    private Status tryAdd(Transaction tx) {
+        ByteArrayWrapper key = new ByteArrayWrapper(tx.getHash());
+        if (byHash.containsKey(key)) return Status.DUPLICATE;
+        if (Transactions.hasDuplicateInputs(tx)) return Status.INVALID;
+        int size = TransactionCodec.encodedSize(tx);
+        if (size > maxBytes) return Status.FULL;
+
+        UTXOPool pool = handler.getUtxoPool();
+        Set<Entry> parents = new LinkedHashSet<>();
+        double inputSum = 0;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            if (in.prevTxHash == null) return Status.INVALID;
+            Transaction.Output prevOut = pool.getTxOutput(in.prevTxHash, in.outputIndex);
+            if (prevOut == null) {
+                Entry parent = byHash.get(new ByteArrayWrapper(in.prevTxHash));
+                if (parent == null || in.outputIndex < 0 || in.outputIndex >= parent.tx.numOutputs()) {
+                    return Status.MISSING_INPUTS;
+                }
+                prevOut = parent.tx.getOutput(in.outputIndex);
+                parents.add(parent);
+            }
+            if (bySpentOutpoint.containsKey(new UTXO(in.prevTxHash, in.outputIndex))) return Status.CONFLICT;
+            if (!Crypto.verifySignature(prevOut.address, tx.getRawDataToSign(i), in.signature)) {
+                return Status.INVALID;
+            }
+            inputSum += prevOut.value;
+        }
+        double outputSum = 0;
+        for (Transaction.Output out : tx.getOutputs()) {
+            if (out.value < 0) return Status.INVALID;
+            outputSum += out.value;
+        }
+        if (inputSum + 1e-12 < outputSum) return Status.INVALID;
+
+        Entry e = new Entry(tx, key, size, inputSum - outputSum, sequence++, parents);
+        link(e);
+        List<Entry> victims = bytes > maxBytes ? evictionPlan(e) : Collections.emptyList();
+        if (victims == null) {
+            // making room would evict tx itself or one of its ancestors: leave the pool as it was
+            unlinkSilently(e);
+            return Status.FULL;
+        }
+        for (Listener l : listeners) l.added(tx, e.fee, e.size);
+        for (Entry victim : victims) {
+            if (byHash.containsKey(victim.key)) evictedCount += removeWithDescendants(victim).size();
+        }
+        return Status.ADDED;
+    }
+
+    /**
+     * Works out what to evict to get back within the budget, lowest score first, without changing
+     * anything.
+     *
+     * @return the entries to remove along with their descendants, or null if {@code added}, the
+     *         entry just linked, would have to go too
+     */
+    private List<Entry> evictionPlan(Entry added) {
+        Set<Entry> doomed = new HashSet<>();
+        List<Entry> roots = new ArrayList<>();
+        long freed = 0;
+        for (Entry worst : evictionOrder) {
+            if (bytes - freed <= maxBytes) break;
+            if (doomed.contains(worst)) continue;
+            Deque<Entry> todo = new ArrayDeque<>();
+            todo.add(worst);
+            while (!todo.isEmpty()) {
+                Entry d = todo.poll();
+                if (d == added) return null;
+                if (doomed.add(d)) {
+                    freed += d.size;
+                    todo.addAll(d.children);
+                }
+            }
+            roots.add(worst);
+        }
+        return roots;
+    }
+
+    /**
+     * Removes the transaction with the given hash and everything that spends from it.
+     *
+     * @return the removed transactions, parents before children; empty if the hash is not pending
+     */
+    public List<Transaction> remove(byte[] txHash) {
+        Entry e = byHash.get(new ByteArrayWrapper(txHash));
+        return e == null ? new ArrayList<>() : removeWithDescendants(e);
+    }
+
+    /**
+     * Hands every pending transaction to the handler and empties the pool: the accepted ones are
+     * confirmed, and the rest no longer fit the handler's pool.
+     *
+     * @return the transactions the handler accepted
+     */
+    public Transaction[] submit() {
+        Transaction[] accepted = handler.handleTxs(getTransactions());
+        clear();
+        return accepted;
+    }
+
+    /**
+     * Forgets the transactions of {@code block}, which the handler has accepted, and drops the
+     * pending transactions that spend the same outputs, along with their descendants. Pending
+     * children of confirmed transactions stay, now spending from the handler's pool.
+     *
+     * @return the pending transactions dropped because they conflict with the block
+     */
+    public List<Transaction> removeConfirmed(Transaction[] block) {
+        List<Transaction> dropped = new ArrayList<>();
+        for (Transaction tx : block) {
+            Entry confirmed = byHash.get(new ByteArrayWrapper(tx.getHash()));
+            if (confirmed != null) {
+                // normally its pending ancestors were confirmed first and there is none left
+                for (Entry ancestor : ancestors(confirmed)) {
+                    evictionOrder.remove(ancestor);
+                    ancestor.descendantFee -= confirmed.fee;
+                    ancestor.descendantSize -= confirmed.size;
+                    evictionOrder.add(ancestor);
+                }
+                for (Entry parent : confirmed.parents) parent.children.remove(confirmed);
+                for (Entry child : confirmed.children) child.parents.remove(confirmed);
+                unlink(confirmed);
+            }
+            for (Transaction.Input in : tx.getInputs()) {
+                Entry spender = bySpentOutpoint.get(new UTXO(in.prevTxHash, in.outputIndex));
+                if (spender != null) dropped.addAll(removeWithDescendants(spender));
+            }
+        }
+        return dropped;
+    }
+
+    /** Removes every pending transaction */
+    public void clear() {
+        if (!listeners.isEmpty()) {
+            List<Entry> all = new ArrayList<>(byHash.values());
+            for (int i = all.size() - 1; i >= 0; i--) {
+                for (Listener l : listeners) l.removed(all.get(i).tx);
+            }
+        }
+        byHash.clear();
+        bySpentOutpoint.clear();
+        evictionOrder.clear();
+        bytes = 0;
+    }
+
+    /** @return the pending transactions in arrival order, in which every parent precedes its children */
+    public Transaction[] getTransactions() {
+        Transaction[] txs = new Transaction[byHash.size()];
+        int i = 0;
+        for (Entry e : byHash.values()) txs[i++] = e.tx;
+        return txs;
+    }
+
+    /** @return the pending transaction with the given hash, or null */
+    public Transaction get(byte[] txHash) {
+        Entry e = byHash.get(new ByteArrayWrapper(txHash));
+        return e == null ? null : e.tx;
+    }
+
+    public boolean contains(byte[] txHash) {
+        return byHash.containsKey(new ByteArrayWrapper(txHash));
+    }
+
+    /** @return the pending transaction spending {@code outpoint}, or null */
+    public Transaction getSpender(UTXO outpoint) {
+        Entry e = bySpentOutpoint.get(outpoint);
+        return e == null ? null : e.tx;
+    }
+
+    /** @return the fee of a pending transaction, or NaN if {@code tx} is not pending */
+    public double getFee(Transaction tx) {
+        Entry e = byHash.get(new ByteArrayWrapper(tx.getHash()));
+        return e == null ? Double.NaN : e.fee;
+    }
+
+    /** @return the fee per encoded byte of a pending transaction, or NaN if {@code tx} is not pending */
+    public double getFeeRate(Transaction tx) {
+        Entry e = byHash.get(new ByteArrayWrapper(tx.getHash()));
+        return e == null ? Double.NaN : e.fee / e.size;
+    }
+
+    /** @return the number of pending transactions */
+    public int size() {
+        return byHash.size();
+    }
+
+    /** @return the encoded size of all pending transactions */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** @return the number of transactions evicted to stay within the budget so far */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * @return the hashes of the transactions {@code tx} spends from that are neither known to the
+     *         handler nor pending, or an empty set if {@code tx} spends an output of a known
+     *         transaction that is already spent: a double spend is not worth holding
+     */
+    private Set<ByteArrayWrapper> missingParents(Transaction tx) {
+        UTXOPool pool = handler.getUtxoPool();
+        Set<ByteArrayWrapper> missing = new LinkedHashSet<>();
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null || pool.contains(in.prevTxHash, in.outputIndex)) continue;
+            ByteArrayWrapper parent = new ByteArrayWrapper(in.prevTxHash);
+            if (handler.isKnownTx(in.prevTxHash)) return Collections.emptySet();
+            if (!byHash.containsKey(parent)) missing.add(parent);
+        }
+        return missing;
+    }
+
+    /** @return the pending transactions {@code e} spends from, directly or not */
+    private static Collection<Entry> ancestors(Entry e) {
+        Set<Entry> seen = new LinkedHashSet<>();
+        Deque<Entry> todo = new ArrayDeque<>(e.parents);
+        while (!todo.isEmpty()) {
+            Entry a = todo.poll();
+            if (seen.add(a)) todo.addAll(a.parents);
+        }
+        return seen;
+    }
+
+    /** Removes {@code root} and its descendants, taking them out of the totals of their other ancestors */
+    private List<Transaction> removeWithDescendants(Entry root) {
+        Set<Entry> doomed = new LinkedHashSet<>();
+        Deque<Entry> todo = new ArrayDeque<>();
+        todo.add(root);
+        while (!todo.isEmpty()) {
+            Entry e = todo.poll();
+            if (doomed.add(e)) todo.addAll(e.children);
+        }
+        for (Entry e : doomed) {
+            for (Entry ancestor : ancestors(e)) {
+                if (doomed.contains(ancestor)) continue;
+                evictionOrder.remove(ancestor);
+                ancestor.descendantFee -= e.fee;
+                ancestor.descendantSize -= e.size;
+                evictionOrder.add(ancestor);
+            }
+        }
+        // breadth first from the root is not always parents first, arrival order is
+        List<Entry> ordered = new ArrayList<>(doomed);
+        ordered.sort(Comparator.comparingLong(e -> e.sequence));
+        List<Transaction> removed = new ArrayList<>(ordered.size());
+        for (Entry e : ordered) removed.add(e.tx);
+        for (int i = ordered.size() - 1; i >= 0; i--) { // children first, for the listeners
+            Entry e = ordered.get(i);
+            for (Entry parent : e.parents) parent.children.remove(e);
+            unlink(e);
+        }
+        return removed;
+    }
+
+    /** Puts the new entry {@code e} in the indexes and the byte count, and into its ancestors' totals */
+    private void link(Entry e) {
+        byHash.put(e.key, e);
+        for (Transaction.Input in : e.tx.getInputs()) {
+            bySpentOutpoint.put(new UTXO(in.prevTxHash, in.outputIndex), e);
+        }
+        for (Entry parent : e.parents) parent.children.add(e);
+        for (Entry ancestor : ancestors(e)) {
+            evictionOrder.remove(ancestor);
+            ancestor.descendantFee += e.fee;
+            ancestor.descendantSize += e.size;
+            evictionOrder.add(ancestor);
+        }
+        evictionOrder.add(e);
+        bytes += e.size;
+    }
+
+    /** Undoes {@link #link} for an entry that has no children yet, without telling the listeners */
+    private void unlinkSilently(Entry e) {
+        for (Entry ancestor : ancestors(e)) {
+            evictionOrder.remove(ancestor);
+            ancestor.descendantFee -= e.fee;
+            ancestor.descendantSize -= e.size;
+            evictionOrder.add(ancestor);
+        }
+        for (Entry parent : e.parents) parent.children.remove(e);
+        evictionOrder.remove(e);
+        byHash.remove(e.key);
+        for (Transaction.Input in : e.tx.getInputs()) {
+            bySpentOutpoint.remove(new UTXO(in.prevTxHash, in.outputIndex), e);
+        }
+        bytes -= e.size;
+    }
+
+    /** Drops {@code e} from the indexes and the byte count, and tells the listeners */
+    private void unlink(Entry e) {
+        evictionOrder.remove(e);
+        byHash.remove(e.key);
+        for (Transaction.Input in : e.tx.getInputs()) {
+            bySpentOutpoint.remove(new UTXO(in.prevTxHash, in.outputIndex), e);
+        }
+        bytes -= e.size;
+        for (Listener l : listeners) l.removed(e.tx);
+    }
+
+    /** A pending transaction and its links to the pending transactions around it */
+    private static final class Entry {
+        final Transaction tx;
+        final ByteArrayWrapper key;
+        final int size;
+        final double fee;
+        final long sequence;
+        final Set<Entry> parents;
+        final Set<Entry> children = new LinkedHashSet<>();
+        /** fee and size of this transaction and all its descendants */
+        double descendantFee;
+        long descendantSize;
+
+        Entry(Transaction tx, ByteArrayWrapper key, int size, double fee, long sequence, Set<Entry> parents) {
+            this.tx = tx;
+            this.key = key;
+            this.size = size;
+            this.fee = fee;
+            this.sequence = sequence;
+            this.parents = parents;
+            this.descendantFee = fee;
+            this.descendantSize = size;
+        }
+
+        double evictionScore() {
+            return Math.max(fee / size, descendantFee / descendantSize);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.PublicKey;
+import java.util.ArrayList;
+
+/**
+ * A {@link UTXOPool} whose entries live outside the Java heap, in direct {@link ByteBuffer}s.
+ * <p>
+ * The layout is the open-addressing table of {@link PackedUTXOPool}, but every slot is a 48-byte
+ * record in native memory: the 32-byte transaction hash, the output index, the {@link AddressTable}
+ * id of the address plus one (0 marks an empty slot) and the value. The table is split into
+ * segments of at most {@value #SEGMENT_SLOTS} slots, so it is not limited by the 2 GB size of a
+ * single buffer. The garbage collector only sees a handful of buffer objects and the address
+ * table, so its pauses do not grow with the number of unspent outputs; see
+ * {@link UTXOPoolBenchmark}.
+ * <p>
+ * Capacity is managed explicitly: the table doubles when it is 70% full, and
+ * {@link #ensureCapacity} sizes it up front so that a bulk load does not rehash. Native memory of
+ * replaced segments is returned when the garbage collector frees their buffers, which the JVM
+ * caps with {@code -XX:MaxDirectMemorySize}. Like {@link UTXOPool}, this class is not thread-safe.
+ */
+public class OffHeapUTXOPool extends UTXOPool {
+
+    private static final int HASH_LENGTH = 32;
+    private static final int INDEX_OFFSET = 32;
+    private static final int ADDRESS_OFFSET = 36;
+    private static final int VALUE_OFFSET = 40;
+    private static final int SLOT_SIZE = 48;
+
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    /** Reads hash words in the byte order of the buffers */
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final AddressTable addressTable;
+    private ByteBuffer[] segments;
+    /** slots per segment, minus one */
+    private int segmentMask;
+    private int segmentShift;
+    private int mask;
+    private int count;
+    private final OpenAddressing.MutableSlots slots = new Table();
+
+    /** Creates an empty pool */
+    public OffHeapUTXOPool() {
+        this(OpenAddressing.MIN_CAPACITY);
+    }
+
+    /** Creates an empty pool that holds {@code expectedSize} entries without rehashing */
+    public OffHeapUTXOPool(int expectedSize) {
+        addressTable = new AddressTable();
+        allocate(capacityFor(expectedSize));
+    }
+
+    /** Creates an off-heap pool holding the same entries as {@code pool} */
+    public OffHeapUTXOPool(UTXOPool pool) {
+        this(pool.size());
+        for (UTXO ut : pool.getAllUTXO()) {
+            addUTXO(ut, pool.getTxOutput(ut));
+        }
+    }
+
+    private OffHeapUTXOPool(OffHeapUTXOPool other) {
+        addressTable = other.addressTable;
+        segments = new ByteBuffer[other.segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer src = other.segments[i].duplicate();
+            src.clear();
+            segments[i] = ByteBuffer.allocateDirect(src.capacity()).order(ByteOrder.nativeOrder());
+            segments[i].put(src);
+        }
+        segmentMask = other.segmentMask;
+        segmentShift = other.segmentShift;
+        mask = other.mask;
+        count = other.count;
+        for (UTXO ut : other.overflow()) {
+            super.addUTXO(ut, other.overflowOutput(ut));
+        }
+    }
+
+    /** @return a copy of this pool in newly allocated native memory */
+    @Override
+    public OffHeapUTXOPool copy() {
+        return new OffHeapUTXOPool(this);
+    }
+
+    /** Grows the table, if needed, so that it holds {@code expectedSize} entries without rehashing */
+    public void ensureCapacity(int expectedSize) {
+        int capacity = capacityFor(expectedSize);
+        if (capacity > mask + 1) {
+            rehash(capacity);
+        }
+    }
+
+    /** @return the number of slots in the table */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /** @return the bytes of native memory held by the table */
+    public long offHeapBytes() {
+        return (long) capacity() * SLOT_SIZE;
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        addUTXO(utxo.getTxHash(), utxo.getIndex(), txOut);
+    }
+
+    @Override
+    public void addUTXO(byte[] txHash, int index, Transaction.Output txOut) {
+        journal(txHash, index);
+        if (!packable(txHash)) {
+            super.addUTXO(txHash, index, txOut);
+            return;
+        }
+        long w0 = word(txHash, 0), w1 = word(txHash, 1), w2 = word(txHash, 2), w3 = word(txHash, 3);
+        int slot = find(w0, w1, w2, w3, index);
+        if (slot < 0) {
+            if (count + 1 > (long) (mask + 1) * OpenAddressing.MAX_LOAD) {
+                rehash((mask + 1) * 2);
+                slot = find(w0, w1, w2, w3, index);
+            }
+            slot = ~slot;
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            b.putLong(o, w0);
+            b.putLong(o + 8, w1);
+            b.putLong(o + 16, w2);
+            b.putLong(o + 24, w3);
+            b.putInt(o + INDEX_OFFSET, index);
+            count++;
+        }
+        ByteBuffer b = segment(slot);
+        int o = offset(slot);
+        b.putDouble(o + VALUE_OFFSET, txOut.value);
+        b.putInt(o + ADDRESS_OFFSET, addressTable.intern(txOut.address) + 1);
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        removeUTXO(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public void removeUTXO(byte[] txHash, int index) {
+        journal(txHash, index);
+        if (!packable(txHash)) {
+            super.removeUTXO(txHash, index);
+            return;
+        }
+        int slot = find(txHash, index);
+        if (slot >= 0) {
+            OpenAddressing.delete(slots, mask, slot);
+            count--;
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return getTxOutput(ut.getTxHash(), ut.getIndex());
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        if (!packable(txHash)) {
+            return super.getTxOutput(txHash, index);
+        }
+        int slot = find(txHash, index);
+        if (slot < 0) return null;
+        ByteBuffer b = segment(slot);
+        int o = offset(slot);
+        return new Transaction.Output(b.getDouble(o + VALUE_OFFSET),
+                addressTable.get(b.getInt(o + ADDRESS_OFFSET) - 1));
+    }
+
+    @Override
+    public double getValue(byte[] txHash, int index) {
+        if (!packable(txHash)) {
+            return super.getValue(txHash, index);
+        }
+        int slot = find(txHash, index);
+        return slot < 0 ? Double.NaN : segment(slot).getDouble(offset(slot) + VALUE_OFFSET);
+    }
+
+    @Override
+    public PublicKey getAddress(byte[] txHash, int index) {
+        if (!packable(txHash)) {
+            return super.getAddress(txHash, index);
+        }
+        int slot = find(txHash, index);
+        return slot < 0 ? null : addressTable.get(segment(slot).getInt(offset(slot) + ADDRESS_OFFSET) - 1);
+    }
+
+    @Override
+    public double getValue(ByteBuffer buf, int offset, int length, int index) {
+        if (length != HASH_LENGTH) {
+            return super.getValue(buf, offset, length, index);
+        }
+        int slot = find(buf, offset, index);
+        return slot < 0 ? Double.NaN : segment(slot).getDouble(offset(slot) + VALUE_OFFSET);
+    }
+
+    @Override
+    public PublicKey getAddress(ByteBuffer buf, int offset, int length, int index) {
+        if (length != HASH_LENGTH) {
+            return super.getAddress(buf, offset, length, index);
+        }
+        int slot = find(buf, offset, index);
+        return slot < 0 ? null : addressTable.get(segment(slot).getInt(offset(slot) + ADDRESS_OFFSET) - 1);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        if (!packable(txHash)) {
+            return super.contains(txHash, index);
+        }
+        return find(txHash, index) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return count + super.size();
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> all = new ArrayList<UTXO>(size());
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int slot = 0; slot <= mask; slot++) {
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            if (b.getInt(o + ADDRESS_OFFSET) == 0) continue;
+            for (int w = 0; w < 4; w++) {
+                LONGS.set(hash, w * Long.BYTES, b.getLong(o + w * Long.BYTES));
+            }
+            all.add(new UTXO(hash, b.getInt(o + INDEX_OFFSET))); // the constructor copies the hash
+        }
+        all.addAll(super.getAllUTXO());
+        return all;
+    }
+
+    private ArrayList<UTXO> overflow() {
+        return super.getAllUTXO();
+    }
+
+    private Transaction.Output overflowOutput(UTXO ut) {
+        return super.getTxOutput(ut);
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot >>> segmentShift];
+    }
+
+    private int offset(int slot) {
+        return (slot & segmentMask) * SLOT_SIZE;
+    }
+
+    private static boolean packable(byte[] txHash) {
+        return txHash != null && txHash.length == HASH_LENGTH;
+    }
+
+    private static long word(byte[] txHash, int w) {
+        return (long) LONGS.get(txHash, w * Long.BYTES);
+    }
+
+    private static long word(ByteBuffer buf, int offset, int w) {
+        return OpenAddressing.word(buf, offset, w, ByteOrder.nativeOrder());
+    }
+
+    private int find(byte[] txHash, int index) {
+        return find(word(txHash, 0), word(txHash, 1), word(txHash, 2), word(txHash, 3), index);
+    }
+
+    private int find(ByteBuffer buf, int offset, int index) {
+        return find(word(buf, offset, 0), word(buf, offset, 1), word(buf, offset, 2),
+                word(buf, offset, 3), index);
+    }
+
+    private int find(long w0, long w1, long w2, long w3, int index) {
+        return OpenAddressing.find(slots, mask, w0, w1, w2, w3, index);
+    }
+
+    private void copySlot(int from, int to) {
+        ByteBuffer src = segment(from);
+        ByteBuffer dst = segment(to);
+        int s = offset(from);
+        int d = offset(to);
+        for (int i = 0; i < SLOT_SIZE; i += Long.BYTES) {
+            dst.putLong(d + i, src.getLong(s + i));
+        }
+    }
+
+    private void allocate(int capacity) {
+        int segmentSlots = Math.min(capacity, SEGMENT_SLOTS);
+        segments = new ByteBuffer[capacity / segmentSlots];
+        for (int i = 0; i < segments.length; i++) {
+            // allocateDirect zeroes the memory, so every slot starts empty
+            segments[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        }
+        segmentShift = Integer.numberOfTrailingZeros(segmentSlots);
+        segmentMask = segmentSlots - 1;
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalStateException("OffHeapUTXOPool cannot hold more than "
+                    + (int) (MAX_CAPACITY * OpenAddressing.MAX_LOAD) + " entries");
+        }
+        ByteBuffer[] old = segments;
+        int oldSegmentSlots = segmentMask + 1;
+        allocate(capacity);
+        for (ByteBuffer b : old) {
+            for (int s = 0; s < oldSegmentSlots; s++) {
+                int o = s * SLOT_SIZE;
+                if (b.getInt(o + ADDRESS_OFFSET) == 0) continue;
+                int slot = ~find(b.getLong(o), b.getLong(o + 8), b.getLong(o + 16), b.getLong(o + 24),
+                        b.getInt(o + INDEX_OFFSET));
+                ByteBuffer dst = segment(slot);
+                int d = offset(slot);
+                for (int i = 0; i < SLOT_SIZE; i += Long.BYTES) {
+                    dst.putLong(d + i, b.getLong(o + i));
+                }
+            }
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        return OpenAddressing.capacityFor(expectedSize, MAX_CAPACITY, "OffHeapUTXOPool");
+    }
+
+    /** The slots of the table, in the segments */
+    private final class Table implements OpenAddressing.MutableSlots {
+        @Override
+        public boolean occupied(int slot) {
+            return segment(slot).getInt(offset(slot) + ADDRESS_OFFSET) != 0;
+        }
+
+        @Override
+        public boolean holds(int slot, long w0, long w1, long w2, long w3, int index) {
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            return b.getInt(o + INDEX_OFFSET) == index && b.getLong(o) == w0 && b.getLong(o + 8) == w1
+                    && b.getLong(o + 16) == w2 && b.getLong(o + 24) == w3;
+        }
+
+        @Override
+        public long firstWord(int slot) {
+            return segment(slot).getLong(offset(slot));
+        }
+
+        @Override
+        public int index(int slot) {
+            return segment(slot).getInt(offset(slot) + INDEX_OFFSET);
+        }
+
+        @Override
+        public void move(int from, int to) {
+            copySlot(from, to);
+        }
+
+        @Override
+        public void clear(int slot) {
+            segment(slot).putInt(offset(slot) + ADDRESS_OFFSET, 0);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The open-addressing table of outpoints behind {@link PackedUTXOPool}, {@link OffHeapUTXOPool}
+ * and {@link UTXOSnapshot}.
+ * <p>
+ * A table has a power-of-two number of slots. An outpoint, the four {@code long} words of its
+ * 32-byte transaction hash plus the output index, sits in its home slot or in the first free slot
+ * after it (linear probing), and deleting one shifts the rest of its probe run back, so there are
+ * no tombstones. Each class keeps the slots in its own storage, heap arrays, native memory or a
+ * mapped file, and gives this class access to them through {@link Slots}, or through
+ * {@link MutableSlots} for a table that entries are deleted from.
+ */
+final class OpenAddressing {
+
+    static final int MIN_CAPACITY = 16;
+    static final double MAX_LOAD = 0.7;
+
+    /** The storage of the slots of one table, enough to look outpoints up */
+    interface Slots {
+        boolean occupied(int slot);
+
+        /** @return whether the occupied {@code slot} holds the given outpoint */
+        boolean holds(int slot, long w0, long w1, long w2, long w3, int index);
+    }
+
+    /** The storage of the slots of a table that entries are also deleted from */
+    interface MutableSlots extends Slots {
+        /** @return the first hash word of the outpoint in the occupied {@code slot} */
+        long firstWord(int slot);
+
+        /** @return the output index of the outpoint in the occupied {@code slot} */
+        int index(int slot);
+
+        /** Copies the entry in the occupied slot {@code from} over slot {@code to} */
+        void move(int from, int to);
+
+        /** Marks {@code slot} as empty */
+        void clear(int slot);
+    }
+
+    private OpenAddressing() {
+    }
+
+    /**
+     * @return word {@code w} of the 32-byte hash at {@code offset} in {@code buf}, read in the byte
+     *         order {@code order} a table reads hash arrays in, whatever the order of the buffer
+     */
+    static long word(ByteBuffer buf, int offset, int w, ByteOrder order) {
+        long word = buf.getLong(offset + w * Long.BYTES);
+        return buf.order() == order ? word : Long.reverseBytes(word);
+    }
+
+    /** @return the home slot of an outpoint in a table of {@code mask + 1} slots */
+    static int home(long w0, int index, int mask) {
+        // hashes are SHA-256 output, but lookups may use any bytes, so still mix the bits
+        long h = w0 ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    /** @return the slot holding the outpoint, or {@code ~slot} of the empty slot where it would go */
+    static int find(Slots slots, int mask, long w0, long w1, long w2, long w3, int index) {
+        int slot = home(w0, index, mask);
+        while (slots.occupied(slot)) {
+            if (slots.holds(slot, w0, w1, w2, w3, index)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return ~slot;
+    }
+
+    /** Empties {@code slot}, shifting back later entries of its probe run so no tombstone is needed */
+    static void delete(MutableSlots slots, int mask, int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (slots.occupied(next)) {
+            int home = home(slots.firstWord(next), slots.index(next), mask);
+            // move the entry if its home slot is not cyclically within (hole, next]
+            boolean movable = hole <= next
+                    ? home <= hole || home > next
+                    : home <= hole && home > next;
+            if (movable) {
+                slots.move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots.clear(hole);
+    }
+
+    /**
+     * @return the number of slots, a power of two, that holds {@code expectedSize} entries below
+     *         the maximum load factor
+     * @throws IllegalArgumentException if {@code expectedSize} is negative or needs more than
+     *         {@code maxCapacity} slots; {@code table} names the table in the message
+     */
+    static int capacityFor(int expectedSize, int maxCapacity, String table) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("expectedSize must not be negative");
+        }
+        long needed = (long) Math.ceil(expectedSize / MAX_LOAD) + 1;
+        if (needed > maxCapacity) {
+            throw new IllegalArgumentException(table + " cannot hold " + expectedSize + " entries");
+        }
+        int capacity = MIN_CAPACITY;
+        while (capacity < needed) capacity <<= 1;
+        return capacity;
+    }
+}
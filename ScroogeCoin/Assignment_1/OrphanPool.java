@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Transactions that arrived before a transaction they spend from, waiting for it.
+ * <p>
+ * Orphans are indexed by the hash of every parent they are missing, so accepting a transaction
+ * wakes exactly the orphans waiting on it with one lookup in {@link #takeChildren}, instead of
+ * the orphan having to be resubmitted and checked again from scratch. The pool holds at most a
+ * fixed number of orphans, dropping the oldest first when it is full, and forgets orphans older
+ * than a maximum age, since a parent that never comes is indistinguishable from a spent input.
+ * Not thread-safe.
+ */
+public class OrphanPool {
+
+    public static final int DEFAULT_MAX_ORPHANS = 1000;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
+    private final int maxOrphans;
+    private final long maxAgeNanos;
+    private final LongSupplier clock;
+
+    /** orphans by hash, oldest first */
+    private final LinkedHashMap<ByteArrayWrapper, Orphan> byHash = new LinkedHashMap<>();
+    /** missing parent hash -> orphans waiting on it */
+    private final HashMap<ByteArrayWrapper, Set<Orphan>> byMissingParent = new HashMap<>();
+
+    public OrphanPool() {
+        this(DEFAULT_MAX_ORPHANS, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /** @throws IllegalArgumentException if either limit is not positive */
+    public OrphanPool(int maxOrphans, long maxAgeMillis) {
+        this(maxOrphans, maxAgeMillis, System::nanoTime);
+    }
+
+    /** Creates a pool reading the time in nanoseconds from {@code clock}, for tests */
+    OrphanPool(int maxOrphans, long maxAgeMillis, LongSupplier clock) {
+        if (maxOrphans <= 0 || maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("Limits must be positive: " + maxOrphans + ", " + maxAgeMillis);
+        }
+        this.maxOrphans = maxOrphans;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * Holds {@code tx} until one of {@code missingParents}, the hashes of the transactions it
+     * spends from that are not known yet, is accepted. The oldest orphan is dropped if the pool is
+     * full. Nothing happens if {@code tx} is already held or nothing is missing.
+     *
+     * @return true if {@code tx} was added
+     */
+    public boolean add(Transaction tx, Set<ByteArrayWrapper> missingParents) {
+        expire();
+        ByteArrayWrapper key = new ByteArrayWrapper(tx.getHash());
+        if (missingParents.isEmpty() || byHash.containsKey(key)) return false;
+        if (byHash.size() >= maxOrphans) {
+            unlink(byHash.values().iterator().next());
+        }
+        Orphan o = new Orphan(tx, key, new LinkedHashSet<>(missingParents), clock.getAsLong());
+        byHash.put(key, o);
+        for (ByteArrayWrapper parent : missingParents) {
+            byMissingParent.computeIfAbsent(parent, k -> new LinkedHashSet<>()).add(o);
+        }
+        return true;
+    }
+
+    /**
+     * Removes and returns the orphans waiting on the transaction with hash {@code parentHash},
+     * oldest first, so they can be checked again now that it has been accepted. An orphan still
+     * missing another parent fails that check and can be added back.
+     */
+    public List<Transaction> takeChildren(byte[] parentHash) {
+        expire();
+        Set<Orphan> waiting = byMissingParent.get(new ByteArrayWrapper(parentHash));
+        if (waiting == null) return new ArrayList<>();
+        List<Transaction> children = new ArrayList<>(waiting.size());
+        for (Orphan o : new ArrayList<>(waiting)) {
+            unlink(o);
+            children.add(o.tx);
+        }
+        return children;
+    }
+
+    public boolean contains(byte[] txHash) {
+        return byHash.containsKey(new ByteArrayWrapper(txHash));
+    }
+
+    /** @return the number of orphans held, including any that have expired but were not swept yet */
+    public int size() {
+        return byHash.size();
+    }
+
+    /** Drops the orphans older than the maximum age */
+    public void expire() {
+        long now = clock.getAsLong();
+        Iterator<Orphan> it = byHash.values().iterator();
+        while (it.hasNext()) {
+            Orphan o = it.next();
+            if (now - o.arrival <= maxAgeNanos) break; // the rest are younger
+            it.remove();
+            unindex(o);
+        }
+    }
+
+    private void unlink(Orphan o) {
+        byHash.remove(o.key);
+        unindex(o);
+    }
+
+    private void unindex(Orphan o) {
+        for (ByteArrayWrapper parent : o.missingParents) {
+            Set<Orphan> waiting = byMissingParent.get(parent);
+            waiting.remove(o);
+            if (waiting.isEmpty()) byMissingParent.remove(parent);
+        }
+    }
+
+    private static final class Orphan {
+        final Transaction tx;
+        final ByteArrayWrapper key;
+        final Set<ByteArrayWrapper> missingParents;
+        final long arrival;
+
+        Orphan(Transaction tx, ByteArrayWrapper key, Set<ByteArrayWrapper> missingParents, long arrival) {
+            this.tx = tx;
+            this.key = key;
+            this.missingParents = missingParents;
+            this.arrival = arrival;
+        }
+    }
+}
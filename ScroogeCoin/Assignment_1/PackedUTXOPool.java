@@ -0,0 +1,322 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.PublicKey;
+import java.util.ArrayList;
+
+/**
+ * A {@link UTXOPool} that stores its entries in flat primitive arrays instead of a
+ * {@code HashMap<UTXO, Transaction.Output>}.
+ * <p>
+ * An outpoint is packed into the four {@code long} words of its 32-byte transaction hash plus the
+ * output index, and kept in an {@link OpenAddressing} table with linear probing; the value and an
+ * {@link AddressTable} id of the address sit in parallel arrays. An entry costs about 48 bytes
+ * (70 at the maximum load factor) instead of the four objects, byte array and map node of the
+ * {@code HashMap} pool, and the {@code (byte[] txHash, int index)} methods look entries up without
+ * allocating, except {@link #getTxOutput}, which returns a new {@link Transaction.Output} on each
+ * call, so changing the returned object does not change the pool. {@link #getValue} and
+ * {@link #getAddress} read an output without creating one.
+ * <p>
+ * Hashes that are not 32 bytes long (never produced by {@link Transaction}) are kept in the
+ * {@code HashMap} of the base class. Like {@link UTXOPool}, this class is not thread-safe.
+ */
+public class PackedUTXOPool extends UTXOPool {
+
+    private static final int HASH_LENGTH = 32;
+    private static final int WORDS = HASH_LENGTH / Long.BYTES;
+    /** Largest table whose key array still fits in a Java array */
+    private static final int MAX_CAPACITY = 1 << 28;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final AddressTable addressTable;
+    /** hash words of each slot, {@link #WORDS} per slot */
+    private long[] keys;
+    private int[] indices;
+    private double[] values;
+    /** address id + 1 of each slot, 0 for an empty slot */
+    private int[] addresses;
+    private int mask;
+    private int count;
+    private final OpenAddressing.MutableSlots slots = new Table();
+
+    /** Creates an empty pool */
+    public PackedUTXOPool() {
+        this(OpenAddressing.MIN_CAPACITY);
+    }
+
+    /** Creates an empty pool that holds {@code expectedSize} entries without growing */
+    public PackedUTXOPool(int expectedSize) {
+        addressTable = new AddressTable();
+        allocate(OpenAddressing.capacityFor(expectedSize, MAX_CAPACITY, "PackedUTXOPool"));
+    }
+
+    /** Creates a packed pool holding the same entries as {@code pool} */
+    public PackedUTXOPool(UTXOPool pool) {
+        this(pool.size());
+        for (UTXO ut : pool.getAllUTXO()) {
+            addUTXO(ut, pool.getTxOutput(ut));
+        }
+    }
+
+    private PackedUTXOPool(PackedUTXOPool other) {
+        addressTable = other.addressTable;
+        keys = other.keys.clone();
+        indices = other.indices.clone();
+        values = other.values.clone();
+        addresses = other.addresses.clone();
+        mask = other.mask;
+        count = other.count;
+        for (UTXO ut : other.overflow()) {
+            super.addUTXO(ut, other.overflowOutput(ut));
+        }
+    }
+
+    /** @return a copy of this pool that shares nothing mutable with it */
+    @Override
+    public PackedUTXOPool copy() {
+        return new PackedUTXOPool(this);
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        addUTXO(utxo.getTxHash(), utxo.getIndex(), txOut);
+    }
+
+    @Override
+    public void addUTXO(byte[] txHash, int index, Transaction.Output txOut) {
+        journal(txHash, index);
+        if (!packable(txHash)) {
+            super.addUTXO(txHash, index, txOut);
+            return;
+        }
+        long w0 = word(txHash, 0), w1 = word(txHash, 1), w2 = word(txHash, 2), w3 = word(txHash, 3);
+        int slot = find(w0, w1, w2, w3, index);
+        if (slot < 0) {
+            if (count + 1 > (long) (mask + 1) * OpenAddressing.MAX_LOAD) {
+                resize((mask + 1) * 2);
+                slot = find(w0, w1, w2, w3, index);
+            }
+            slot = ~slot;
+            int k = slot * WORDS;
+            keys[k] = w0;
+            keys[k + 1] = w1;
+            keys[k + 2] = w2;
+            keys[k + 3] = w3;
+            indices[slot] = index;
+            count++;
+        }
+        values[slot] = txOut.value;
+        addresses[slot] = addressTable.intern(txOut.address) + 1;
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        removeUTXO(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public void removeUTXO(byte[] txHash, int index) {
+        journal(txHash, index);
+        if (!packable(txHash)) {
+            super.removeUTXO(txHash, index);
+            return;
+        }
+        int slot = find(txHash, index);
+        if (slot >= 0) {
+            OpenAddressing.delete(slots, mask, slot);
+            count--;
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return getTxOutput(ut.getTxHash(), ut.getIndex());
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        if (!packable(txHash)) {
+            return super.getTxOutput(txHash, index);
+        }
+        int slot = find(txHash, index);
+        if (slot < 0) return null;
+        return new Transaction.Output(values[slot], addressTable.get(addresses[slot] - 1));
+    }
+
+    @Override
+    public double getValue(byte[] txHash, int index) {
+        if (!packable(txHash)) {
+            return super.getValue(txHash, index);
+        }
+        int slot = find(txHash, index);
+        return slot < 0 ? Double.NaN : values[slot];
+    }
+
+    @Override
+    public PublicKey getAddress(byte[] txHash, int index) {
+        if (!packable(txHash)) {
+            return super.getAddress(txHash, index);
+        }
+        int slot = find(txHash, index);
+        return slot < 0 ? null : addressTable.get(addresses[slot] - 1);
+    }
+
+    @Override
+    public double getValue(ByteBuffer buf, int offset, int length, int index) {
+        if (length != HASH_LENGTH) {
+            return super.getValue(buf, offset, length, index);
+        }
+        int slot = find(buf, offset, index);
+        return slot < 0 ? Double.NaN : values[slot];
+    }
+
+    @Override
+    public PublicKey getAddress(ByteBuffer buf, int offset, int length, int index) {
+        if (length != HASH_LENGTH) {
+            return super.getAddress(buf, offset, length, index);
+        }
+        int slot = find(buf, offset, index);
+        return slot < 0 ? null : addressTable.get(addresses[slot] - 1);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        if (!packable(txHash)) {
+            return super.contains(txHash, index);
+        }
+        return find(txHash, index) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return count + super.size();
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> all = new ArrayList<UTXO>(size());
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int slot = 0; slot <= mask; slot++) {
+            if (addresses[slot] == 0) continue;
+            for (int w = 0; w < WORDS; w++) {
+                LONGS.set(hash, w * Long.BYTES, keys[slot * WORDS + w]);
+            }
+            all.add(new UTXO(hash, indices[slot])); // the constructor copies the hash
+        }
+        all.addAll(super.getAllUTXO());
+        return all;
+    }
+
+    /** @return the number of slots in the table */
+    int capacity() {
+        return mask + 1;
+    }
+
+    private ArrayList<UTXO> overflow() {
+        return super.getAllUTXO();
+    }
+
+    private Transaction.Output overflowOutput(UTXO ut) {
+        return super.getTxOutput(ut);
+    }
+
+    private static boolean packable(byte[] txHash) {
+        return txHash != null && txHash.length == HASH_LENGTH;
+    }
+
+    private static long word(byte[] txHash, int w) {
+        return (long) LONGS.get(txHash, w * Long.BYTES);
+    }
+
+    private static long word(ByteBuffer buf, int offset, int w) {
+        return OpenAddressing.word(buf, offset, w, ByteOrder.BIG_ENDIAN);
+    }
+
+    private int find(byte[] txHash, int index) {
+        return find(word(txHash, 0), word(txHash, 1), word(txHash, 2), word(txHash, 3), index);
+    }
+
+    private int find(ByteBuffer buf, int offset, int index) {
+        return find(word(buf, offset, 0), word(buf, offset, 1), word(buf, offset, 2),
+                word(buf, offset, 3), index);
+    }
+
+    private int find(long w0, long w1, long w2, long w3, int index) {
+        return OpenAddressing.find(slots, mask, w0, w1, w2, w3, index);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * WORDS];
+        indices = new int[capacity];
+        values = new double[capacity];
+        addresses = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private void resize(int capacity) {
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalStateException("PackedUTXOPool cannot hold more than "
+                    + (int) (MAX_CAPACITY * OpenAddressing.MAX_LOAD) + " entries");
+        }
+        long[] oldKeys = keys;
+        int[] oldIndices = indices;
+        double[] oldValues = values;
+        int[] oldAddresses = addresses;
+        allocate(capacity);
+        for (int s = 0; s < oldAddresses.length; s++) {
+            if (oldAddresses[s] == 0) continue;
+            int k = s * WORDS;
+            int slot = ~find(oldKeys[k], oldKeys[k + 1], oldKeys[k + 2], oldKeys[k + 3], oldIndices[s]);
+            System.arraycopy(oldKeys, k, keys, slot * WORDS, WORDS);
+            indices[slot] = oldIndices[s];
+            values[slot] = oldValues[s];
+            addresses[slot] = oldAddresses[s];
+        }
+    }
+
+    /** The slots of the table, in the parallel arrays */
+    private final class Table implements OpenAddressing.MutableSlots {
+        @Override
+        public boolean occupied(int slot) {
+            return addresses[slot] != 0;
+        }
+
+        @Override
+        public boolean holds(int slot, long w0, long w1, long w2, long w3, int index) {
+            int k = slot * WORDS;
+            return indices[slot] == index && keys[k] == w0 && keys[k + 1] == w1
+                    && keys[k + 2] == w2 && keys[k + 3] == w3;
+        }
+
+        @Override
+        public long firstWord(int slot) {
+            return keys[slot * WORDS];
+        }
+
+        @Override
+        public int index(int slot) {
+            return indices[slot];
+        }
+
+        @Override
+        public void move(int from, int to) {
+            System.arraycopy(keys, from * WORDS, keys, to * WORDS, WORDS);
+            indices[to] = indices[from];
+            values[to] = values[from];
+            addresses[to] = addresses[from];
+        }
+
+        @Override
+        public void clear(int slot) {
+            addresses[slot] = 0;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Verifies the input signatures of a whole batch of transactions in parallel.
+ * <p>
+ * Signature checks do not depend on the order in which transactions are applied: the output an
+ * input spends is identified by {@code (prevTxHash, outputIndex)}, so its address is either in the
+ * current {@link UTXOPool} or is an output of another transaction in the same batch. This class
+ * resolves those addresses up front, runs every {@link Crypto#verifySignature} call on a
+ * {@link ForkJoinPool}, and leaves the sequential UTXO checks to {@link TxHandler} and
+ * {@link Greedy}, which then give exactly the same results as the sequential path.
+ */
+public class ParallelValidator {
+
+    /** Inputs verified by a single task before it stops splitting */
+    private static final int THRESHOLD = 4;
+
+    private final ForkJoinPool executor;
+
+    /** Creates a validator using one thread per available processor */
+    public ParallelValidator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a validator that verifies at most {@code parallelism} signatures at a time */
+    public ParallelValidator(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        executor = new ForkJoinPool(parallelism);
+    }
+
+    /** @return the configured parallelism level */
+    public int getParallelism() {
+        return executor.getParallelism();
+    }
+
+    /**
+     * @return an array where element {@code i} is true if every input signature of
+     *         {@code txs[i]} is valid for the output it spends. Outputs are looked up in
+     *         {@code utxoPool} first and then among the outputs of {@code txs}; an input whose
+     *         output cannot be found in either counts as an invalid signature.
+     */
+    public boolean[] verifySignatures(ReadableTransaction[] txs, UTXOPool utxoPool) {
+        Map<ByteArrayWrapper, ReadableTransaction> batch = new HashMap<>();
+        int total = 0;
+        for (ReadableTransaction tx : txs) {
+            if (tx.getHash() != null) batch.putIfAbsent(new ByteArrayWrapper(tx.getHash()), tx);
+            total += tx.numInputs();
+        }
+
+        // flatten every input of the batch, resolving the address it must be signed by
+        int[] owner = new int[total];
+        int[] inputIndex = new int[total];
+        PublicKey[] keys = new PublicKey[total];
+        int k = 0;
+        for (int t = 0; t < txs.length; t++) {
+            for (int i = 0; i < txs[t].numInputs(); i++) {
+                owner[k] = t;
+                inputIndex[k] = i;
+                keys[k] = resolveAddress(txs[t], i, utxoPool, batch);
+                k++;
+            }
+        }
+
+        boolean[] inputValid = new boolean[total];
+        executor.invoke(new VerifyTask(txs, owner, inputIndex, keys, inputValid, 0, total));
+
+        boolean[] valid = new boolean[txs.length];
+        Arrays.fill(valid, true);
+        for (int j = 0; j < total; j++) {
+            if (!inputValid[j]) valid[owner[j]] = false;
+        }
+        return valid;
+    }
+
+    /** Stops the worker threads; the validator must not be used afterwards */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static PublicKey resolveAddress(ReadableTransaction tx, int input, UTXOPool utxoPool,
+                                            Map<ByteArrayWrapper, ReadableTransaction> batch) {
+        PublicKey address = tx.getSpentAddress(utxoPool, input);
+        if (address != null) return address;
+        byte[] prevTxHash = tx.getPrevTxHash(input);
+        int outputIndex = tx.getOutputIndex(input);
+        if (prevTxHash == null) return null;
+        ReadableTransaction parent = batch.get(new ByteArrayWrapper(prevTxHash));
+        if (parent == null || outputIndex < 0 || outputIndex >= parent.numOutputs()) return null;
+        return parent.getOutputAddress(outputIndex);
+    }
+
+    /** Verifies the flattened inputs in {@code [from, to)}, splitting while the range is large */
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ReadableTransaction[] txs;
+        private final int[] owner;
+        private final int[] inputIndex;
+        private final PublicKey[] keys;
+        private final boolean[] result;
+        private final int from;
+        private final int to;
+
+        VerifyTask(ReadableTransaction[] txs, int[] owner, int[] inputIndex, PublicKey[] keys,
+                   boolean[] result, int from, int to) {
+            this.txs = txs;
+            this.owner = owner;
+            this.inputIndex = inputIndex;
+            this.keys = keys;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int j = from; j < to; j++) {
+                    ReadableTransaction tx = txs[owner[j]];
+                    int i = inputIndex[j];
+                    byte[] signature = tx.getSignature(i);
+                    result[j] = keys[j] != null && signature != null
+                            && Crypto.verifySignature(keys[j], tx.getRawDataToSign(i), signature);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new VerifyTask(txs, owner, inputIndex, keys, result, from, mid),
+                      new VerifyTask(txs, owner, inputIndex, keys, result, mid, to));
+        }
+    }
+}
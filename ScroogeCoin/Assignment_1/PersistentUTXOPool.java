@@ -0,0 +1,322 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A {@link UTXOPool} stored as a hash array mapped trie whose nodes are shared between copies, so
+ * that {@link #copy()} takes constant time whatever the size of the pool.
+ * <p>
+ * Every node records the pool that created it. A pool changes its own nodes in place, which keeps
+ * loading a pool as cheap as filling a map; a node created by another pool is shared, so it is
+ * copied first, along with the nodes on the path from the root to it. {@link #copy()} gives both
+ * the original and the copy a fresh identity, after which each one copies a path the first time
+ * it changes it and then owns that path again. A {@link TxHandler} or {@link Greedy} built on a
+ * large pool, or a what-if branch of block assembly, therefore only pays for the entries it
+ * touches.
+ * <p>
+ * Each level of the trie uses five bits of a 32-bit hash of the outpoint; outpoints whose hashes
+ * agree on all 32 bits share a collision node. Like {@link UTXOPool}, a pool is not thread-safe,
+ * but distinct copies can be used from different threads.
+ */
+public class PersistentUTXOPool extends UTXOPool {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    /** Shift past which all 32 bits of the hash have been used */
+    private static final int MAX_SHIFT = 30;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /** Identity of this pool; nodes whose owner is this object may be changed in place */
+    private Object owner = new Object();
+    private Node root;
+    private int count;
+    /** set by put and remove to tell whether the pool grew or shrank */
+    private boolean changed;
+
+    /** Creates an empty pool */
+    public PersistentUTXOPool() {
+    }
+
+    /** Creates a persistent pool holding the same entries as {@code pool} */
+    public PersistentUTXOPool(UTXOPool pool) {
+        for (UTXO ut : pool.getAllUTXO()) {
+            addUTXO(ut, pool.getTxOutput(ut));
+        }
+    }
+
+    private PersistentUTXOPool(Node root, int count) {
+        this.root = root;
+        this.count = count;
+    }
+
+    /** @return a copy sharing every node with this pool, in constant time */
+    @Override
+    public PersistentUTXOPool copy() {
+        owner = new Object(); // the nodes are shared from now on
+        return new PersistentUTXOPool(root, count);
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        addUTXO(utxo.getTxHash(), utxo.getIndex(), txOut);
+    }
+
+    @Override
+    public void addUTXO(byte[] txHash, int index, Transaction.Output txOut) {
+        journal(txHash, index);
+        int code = code(txHash, index);
+        changed = false;
+        if (root == null) {
+            root = new Node(owner, 0, new Object[0], false);
+        }
+        root = put(root, 0, code, txHash, index, txOut);
+        if (changed) count++;
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        removeUTXO(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public void removeUTXO(byte[] txHash, int index) {
+        if (txHash == null || root == null) return;
+        journal(txHash, index);
+        changed = false;
+        root = remove(root, 0, code(txHash, index), txHash, index);
+        if (changed) count--;
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return getTxOutput(ut.getTxHash(), ut.getIndex());
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        Entry e = find(txHash, index);
+        return e == null ? null : e.out;
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return find(txHash, index) != null;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> all = new ArrayList<UTXO>(count);
+        if (root != null) collect(root, all);
+        return all;
+    }
+
+    private static void collect(Node n, ArrayList<UTXO> all) {
+        for (Object slot : n.slots) {
+            if (slot instanceof Node) {
+                collect((Node) slot, all);
+            } else {
+                Entry e = (Entry) slot;
+                all.add(new UTXO(e.hash, e.index));
+            }
+        }
+    }
+
+    private Entry find(byte[] txHash, int index) {
+        if (txHash == null || root == null) return null;
+        int code = code(txHash, index);
+        Node n = root;
+        for (int shift = 0; ; shift += BITS) {
+            if (n.collision) {
+                for (Object slot : n.slots) {
+                    Entry e = (Entry) slot;
+                    if (e.matches(txHash, index)) return e;
+                }
+                return null;
+            }
+            int bit = 1 << ((code >>> shift) & MASK);
+            if ((n.bitmap & bit) == 0) return null;
+            Object slot = n.slots[Integer.bitCount(n.bitmap & (bit - 1))];
+            if (slot instanceof Node) {
+                n = (Node) slot;
+            } else {
+                Entry e = (Entry) slot;
+                return e.code == code && e.matches(txHash, index) ? e : null;
+            }
+        }
+    }
+
+    private Node put(Node n, int shift, int code, byte[] txHash, int index, Transaction.Output out) {
+        if (n.collision) {
+            for (int i = 0; i < n.slots.length; i++) {
+                Entry e = (Entry) n.slots[i];
+                if (e.matches(txHash, index)) {
+                    Node m = editable(n);
+                    m.slots[i] = new Entry(e.hash, index, code, out);
+                    return m;
+                }
+            }
+            changed = true;
+            return withSlots(n, n.bitmap, insert(n.slots, n.slots.length, newEntry(txHash, index, code, out)));
+        }
+        int bit = 1 << ((code >>> shift) & MASK);
+        int pos = Integer.bitCount(n.bitmap & (bit - 1));
+        if ((n.bitmap & bit) == 0) {
+            changed = true;
+            return withSlots(n, n.bitmap | bit, insert(n.slots, pos, newEntry(txHash, index, code, out)));
+        }
+        Object slot = n.slots[pos];
+        Object replacement;
+        if (slot instanceof Node) {
+            replacement = put((Node) slot, shift + BITS, code, txHash, index, out);
+            if (replacement == slot) return n;
+        } else {
+            Entry e = (Entry) slot;
+            if (e.code == code && e.matches(txHash, index)) {
+                replacement = new Entry(e.hash, index, code, out);
+            } else {
+                changed = true;
+                replacement = pair(shift + BITS, e, newEntry(txHash, index, code, out));
+            }
+        }
+        Node m = editable(n);
+        m.slots[pos] = replacement;
+        return m;
+    }
+
+    /** @return {@code n} without the outpoint, or null if that leaves it empty */
+    private Node remove(Node n, int shift, int code, byte[] txHash, int index) {
+        if (n.collision) {
+            for (int i = 0; i < n.slots.length; i++) {
+                if (((Entry) n.slots[i]).matches(txHash, index)) {
+                    changed = true;
+                    return n.slots.length == 1 ? null : withSlots(n, n.bitmap, delete(n.slots, i));
+                }
+            }
+            return n;
+        }
+        int bit = 1 << ((code >>> shift) & MASK);
+        if ((n.bitmap & bit) == 0) return n;
+        int pos = Integer.bitCount(n.bitmap & (bit - 1));
+        Object slot = n.slots[pos];
+        if (slot instanceof Node) {
+            Node child = remove((Node) slot, shift + BITS, code, txHash, index);
+            if (child == slot) return n;
+            if (child != null) {
+                Node m = editable(n);
+                m.slots[pos] = child;
+                return m;
+            }
+        } else {
+            Entry e = (Entry) slot;
+            if (e.code != code || !e.matches(txHash, index)) return n;
+            changed = true;
+        }
+        if (n.slots.length == 1 && n != root) return null;
+        return withSlots(n, n.bitmap & ~bit, delete(n.slots, pos));
+    }
+
+    /** @return a node holding the two entries, which are both below {@code shift} of the trie */
+    private Node pair(int shift, Entry a, Entry b) {
+        if (shift > MAX_SHIFT) {
+            return new Node(owner, 0, new Object[]{a, b}, true);
+        }
+        int slotA = (a.code >>> shift) & MASK;
+        int slotB = (b.code >>> shift) & MASK;
+        if (slotA == slotB) {
+            return new Node(owner, 1 << slotA, new Object[]{pair(shift + BITS, a, b)}, false);
+        }
+        Object[] slots = slotA < slotB ? new Object[]{a, b} : new Object[]{b, a};
+        return new Node(owner, (1 << slotA) | (1 << slotB), slots, false);
+    }
+
+    /** @return {@code n} if this pool owns it, otherwise a copy of it that this pool owns */
+    private Node editable(Node n) {
+        return n.owner == owner ? n : new Node(owner, n.bitmap, n.slots.clone(), n.collision);
+    }
+
+    private Node withSlots(Node n, int bitmap, Object[] slots) {
+        if (n.owner == owner) {
+            n.bitmap = bitmap;
+            n.slots = slots;
+            return n;
+        }
+        return new Node(owner, bitmap, slots, n.collision);
+    }
+
+    private static Object[] insert(Object[] slots, int pos, Object value) {
+        Object[] grown = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, grown, 0, pos);
+        grown[pos] = value;
+        System.arraycopy(slots, pos, grown, pos + 1, slots.length - pos);
+        return grown;
+    }
+
+    private static Object[] delete(Object[] slots, int pos) {
+        Object[] shrunk = new Object[slots.length - 1];
+        System.arraycopy(slots, 0, shrunk, 0, pos);
+        System.arraycopy(slots, pos + 1, shrunk, pos, slots.length - pos - 1);
+        return shrunk;
+    }
+
+    private static Entry newEntry(byte[] txHash, int index, int code, Transaction.Output out) {
+        return new Entry(Arrays.copyOf(txHash, txHash.length), index, code, out);
+    }
+
+    /** @return a well mixed 32-bit hash of the outpoint */
+    private static int code(byte[] txHash, int index) {
+        long h = txHash.length >= Long.BYTES ? (long) LONGS.get(txHash, 0) : Arrays.hashCode(txHash);
+        h ^= index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /** Inner node of the trie; its slots hold entries and child nodes in bitmap order */
+    private static final class Node {
+        final Object owner;
+        final boolean collision;
+        int bitmap;
+        Object[] slots;
+
+        Node(Object owner, int bitmap, Object[] slots, boolean collision) {
+            this.owner = owner;
+            this.bitmap = bitmap;
+            this.slots = slots;
+            this.collision = collision;
+        }
+    }
+
+    /** One unspent output; never changed once created, so it can be shared by any number of pools */
+    private static final class Entry {
+        final byte[] hash;
+        final int index;
+        final int code;
+        final Transaction.Output out;
+
+        Entry(byte[] hash, int index, int code, Transaction.Output out) {
+            this.hash = hash;
+            this.index = index;
+            this.code = code;
+            this.out = out;
+        }
+
+        boolean matches(byte[] txHash, int index) {
+            return this.index == index && Arrays.equals(hash, txHash);
+        }
+    }
+}
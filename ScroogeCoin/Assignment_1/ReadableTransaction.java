@@ -0,0 +1,69 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * Read access to the parts of a transaction that validation needs.
+ * <p>
+ * Implemented by {@link Transaction} and by {@link TransactionView}, which reads the same data
+ * straight from an encoded buffer, so {@link TxHandler#isValidTx} and {@link Greedy} can check
+ * either without materialising {@code Input} and {@code Output} objects. Arrays returned by these
+ * methods must not be modified. Validation goes through {@link #getSpentValue},
+ * {@link #getSpentAddress} and {@link #spendSameOutput}, which a view answers from the buffer
+ * without copying hashes out of it.
+ */
+public interface ReadableTransaction {
+
+    /** @return the hash of the transaction, its unique id */
+    byte[] getHash();
+
+    int numInputs();
+
+    int numOutputs();
+
+    /** @return the hash of the transaction whose output input {@code index} spends */
+    byte[] getPrevTxHash(int index);
+
+    /** @return the index of the output that input {@code index} spends */
+    int getOutputIndex(int index);
+
+    /** @return the signature of input {@code index}, or null if it has none */
+    byte[] getSignature(int index);
+
+    /** @return the value of output {@code index} */
+    double getOutputValue(int index);
+
+    /** @return the address of output {@code index} */
+    PublicKey getOutputAddress(int index);
+
+    /** @return output {@code index}, as stored in a {@link UTXOPool} once the transaction is applied */
+    Transaction.Output getOutput(int index);
+
+    /** @return the data input {@code index} signs: that input and all outputs */
+    byte[] getRawDataToSign(int index);
+
+    /**
+     * @return the value of the output input {@code index} spends, as held in {@code pool}, or NaN if
+     *         it is not there or the input has no hash
+     */
+    default double getSpentValue(UTXOPool pool, int index) {
+        return pool.getValue(getPrevTxHash(index), getOutputIndex(index));
+    }
+
+    /**
+     * @return the address of the output input {@code index} spends, as held in {@code pool}, or
+     *         null if it is not there or the input has no hash
+     */
+    default PublicKey getSpentAddress(UTXOPool pool, int index) {
+        return pool.getAddress(getPrevTxHash(index), getOutputIndex(index));
+    }
+
+    /**
+     * @return whether inputs {@code i} and {@code j} spend the same output; an input without a hash
+     *         spends none
+     */
+    default boolean spendSameOutput(int i, int j) {
+        byte[] hash = getPrevTxHash(i);
+        return hash != null && getOutputIndex(i) == getOutputIndex(j)
+                && Arrays.equals(hash, getPrevTxHash(j));
+    }
+}
@@ -0,0 +1,135 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Compares the time and the bytes allocated by {@link Transaction#getRawDataToSign} and
+ * {@link Transaction#getRawTx} with the original {@code ArrayList<Byte>} based implementation,
+ * kept below for reference, and checks that both produce the same bytes.
+ * Run with an optional number of iterations (default 20000).
+ */
+public class SerializationBenchmark {
+
+    /** Keeps the JIT from discarding the measured calls */
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        KeyPair pair = SignatureScheme.DEFAULT.generateKeyPair();
+        Transaction tx = new Transaction();
+        byte[] prevHash = new byte[32];
+        for (int i = 0; i < 2; i++) {
+            prevHash[0] = (byte) i;
+            tx.addInput(prevHash, i);
+        }
+        for (int i = 0; i < 10; i++) {
+            tx.addOutput(i + 0.5, pair.getPublic());
+        }
+        for (int i = 0; i < tx.numInputs(); i++) {
+            tx.addSignature(Crypto.sign(pair.getPrivate(), tx.getRawDataToSign(i)), i);
+        }
+
+        if (!Arrays.equals(legacyRawTx(tx), tx.getRawTx())
+                || !Arrays.equals(legacyRawDataToSign(tx, 1), tx.getRawDataToSign(1))) {
+            throw new IllegalStateException("Serialized bytes differ from the original format");
+        }
+
+        System.out.println("Transaction with " + tx.numInputs() + " inputs and " + tx.numOutputs()
+                + " outputs, " + tx.getRawTx().length + " bytes, " + iterations + " iterations");
+        System.out.println(String.format("%-24s %10s %14s", "", "ns/op", "bytes/op"));
+        measure("getRawTx (ArrayList)", iterations, () -> legacyRawTx(tx));
+        measure("getRawTx", iterations, tx::getRawTx);
+        measure("getRawDataToSign (old)", iterations, () -> legacyRawDataToSign(tx, 0));
+        measure("getRawDataToSign", iterations, () -> tx.getRawDataToSign(0));
+    }
+
+    private static void measure(String name, int iterations, Supplier<byte[]> op) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long total = 0;
+
+        for (int i = 0; i < iterations; i++) total += op.get().length; // warm up
+
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) total += op.get().length;
+        long elapsed = System.nanoTime() - startTime;
+        long allocated = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+        sink = total;
+
+        System.out.println(String.format("%-24s %10.0f %14d", name,
+                (double) elapsed / iterations, allocated / iterations));
+    }
+
+    // =============================================================
+    // --- Original implementations, only used as the baseline ---
+    // =============================================================
+
+    static byte[] legacyRawDataToSign(Transaction tx, int index) {
+        ArrayList<Byte> sigData = new ArrayList<Byte>();
+        Transaction.Input in = tx.getInput(index);
+        byte[] prevTxHash = in.prevTxHash;
+        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+        b.putInt(in.outputIndex);
+        byte[] outputIndex = b.array();
+        if (prevTxHash != null)
+            for (int i = 0; i < prevTxHash.length; i++)
+                sigData.add(prevTxHash[i]);
+        for (int i = 0; i < outputIndex.length; i++)
+            sigData.add(outputIndex[i]);
+        for (Transaction.Output op : tx.getOutputs()) {
+            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
+            bo.putDouble(op.value);
+            byte[] value = bo.array();
+            byte[] addressBytes = op.address.getEncoded();
+            for (int i = 0; i < value.length; i++)
+                sigData.add(value[i]);
+            for (int i = 0; i < addressBytes.length; i++)
+                sigData.add(addressBytes[i]);
+        }
+        byte[] sigD = new byte[sigData.size()];
+        int i = 0;
+        for (Byte sb : sigData)
+            sigD[i++] = sb;
+        return sigD;
+    }
+
+    static byte[] legacyRawTx(Transaction tx) {
+        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        for (Transaction.Input in : tx.getInputs()) {
+            byte[] prevTxHash = in.prevTxHash;
+            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+            b.putInt(in.outputIndex);
+            byte[] outputIndex = b.array();
+            byte[] signature = in.signature;
+            if (prevTxHash != null)
+                for (int i = 0; i < prevTxHash.length; i++)
+                    rawTx.add(prevTxHash[i]);
+            for (int i = 0; i < outputIndex.length; i++)
+                rawTx.add(outputIndex[i]);
+            if (signature != null)
+                for (int i = 0; i < signature.length; i++)
+                    rawTx.add(signature[i]);
+        }
+        for (Transaction.Output op : tx.getOutputs()) {
+            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
+            b.putDouble(op.value);
+            byte[] value = b.array();
+            byte[] addressBytes = op.address.getEncoded();
+            for (int i = 0; i < value.length; i++)
+                rawTx.add(value[i]);
+            for (int i = 0; i < addressBytes.length; i++)
+                rawTx.add(addressBytes[i]);
+        }
+        byte[] raw = new byte[rawTx.size()];
+        int i = 0;
+        for (Byte b : rawTx)
+            raw[i++] = b;
+        return raw;
+    }
+}
@@ -0,0 +1,126 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of signatures that have already been verified as valid.
+ * <p>
+ * An entry is keyed by the SHA-256 digest of (public key encoding, signed message, signature), so a
+ * hit means exactly this key signed exactly this data. Only successful verifications are stored;
+ * re-checking a transaction that was already seen (in an earlier {@code handleTxs} pass, a
+ * {@link Greedy} round or a previous block) then costs a hash and a lookup instead of an RSA
+ * verification. Entries are split across a fixed number of segments, each evicting in LRU order,
+ * so that concurrent verifiers rarely contend on the same lock.
+ */
+public class SignatureCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int capacity;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache holding at most {@code capacity} verified signatures */
+    public SignatureCache(int capacity) {
+        if (capacity < SEGMENTS) {
+            throw new IllegalArgumentException("capacity must be at least " + SEGMENTS);
+        }
+        this.capacity = capacity;
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(capacity / SEGMENTS);
+        }
+    }
+
+    /** @return the cache key for {@code signature} over {@code message} under {@code pubKey} */
+    public static ByteArrayWrapper key(PublicKey pubKey, byte[] message, byte[] signature) {
+        MessageDigest md = Crypto.sha256();
+        byte[] encoded = pubKey.getEncoded();
+        ByteBuffer lengths = ByteBuffer.allocate(8).putInt(encoded.length).putInt(message.length);
+        md.update(lengths.array());
+        md.update(encoded);
+        md.update(message);
+        md.update(signature);
+        return new ByteArrayWrapper(md.digest());
+    }
+
+    /** @return true if the signature identified by {@code key} is known to be valid */
+    public boolean contains(ByteArrayWrapper key) {
+        boolean found = segmentFor(key).contains(key);
+        (found ? hits : misses).incrementAndGet();
+        return found;
+    }
+
+    /** Records the signature identified by {@code key} as valid */
+    public void put(ByteArrayWrapper key) {
+        segmentFor(key).put(key);
+    }
+
+    /** @return the number of lookups that found a verified signature */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of lookups that had to fall back to a full verification */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the maximum number of entries */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of verified signatures currently cached */
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) size += s.size();
+        return size;
+    }
+
+    /** Removes every entry and resets the hit and miss counters */
+    public void clear() {
+        for (Segment s : segments) s.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private Segment segmentFor(ByteArrayWrapper key) {
+        // keys are SHA-256 digests, so any of their bits is uniformly distributed
+        return segments[key.getBytes()[0] & (SEGMENTS - 1)];
+    }
+
+    /** One LRU-ordered slice of the cache */
+    private static class Segment {
+        private final LinkedHashMap<ByteArrayWrapper, Boolean> entries;
+
+        Segment(int capacity) {
+            entries = new LinkedHashMap<ByteArrayWrapper, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized boolean contains(ByteArrayWrapper key) {
+            return entries.get(key) != null; // get() refreshes the LRU position
+        }
+
+        synchronized void put(ByteArrayWrapper key) {
+            entries.put(key, Boolean.TRUE);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+    }
+}
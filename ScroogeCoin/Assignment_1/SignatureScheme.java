@@ -0,0 +1,185 @@
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * The signature algorithms an output address can use.
+ * <p>
+ * {@link Crypto} picks the scheme from the algorithm of the key it is given, so a
+ * {@link Transaction.Output#address} may be a key of any scheme and {@link TxHandler},
+ * {@link Greedy} and the validators need no changes. RSA is the default and matches the keys the
+ * assignment uses; ECDSA over P-256 and Ed25519 have much smaller keys and signatures, so
+ * transactions shrink by a third to a half. Which scheme verifies fastest depends on the security
+ * provider (the stock JDK one verifies 1024-bit RSA fastest), so compare with
+ * {@link SignatureSchemeBenchmark} before switching. Ed25519 needs Java 15 or later, see
+ * {@link #isAvailable()}.
+ */
+public enum SignatureScheme {
+
+    RSA((byte) 0, "SHA256withRSA", "RSA"),
+    ECDSA_P256((byte) 1, "SHA256withECDSA", "EC"),
+    ED25519((byte) 2, "Ed25519", "Ed25519");
+
+    /** Scheme used when none is given */
+    public static final SignatureScheme DEFAULT = RSA;
+
+    /** RSA modulus size, as used by Main and the tests */
+    private static final int RSA_KEY_SIZE = 1024;
+
+    private final byte id;
+    private final String signatureAlgorithm;
+    private final String keyAlgorithm;
+    private volatile VerifierPool verifiers;
+    private volatile Boolean available;
+
+    SignatureScheme(byte id, String signatureAlgorithm, String keyAlgorithm) {
+        this.id = id;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    /** @return a stable one-byte identifier, used when keys are serialized */
+    public byte getId() {
+        return id;
+    }
+
+    /** @return the JCA signature algorithm name, e.g. "SHA256withRSA" */
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    /** @return the JCA key algorithm name, e.g. "RSA" */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /** @return true if this JVM provides the algorithms of this scheme */
+    public boolean isAvailable() {
+        Boolean known = available;
+        if (known == null) {
+            try {
+                pool();
+                known = Boolean.TRUE;
+            } catch (IllegalStateException e) {
+                known = Boolean.FALSE;
+            }
+            available = known;
+        }
+        return known;
+    }
+
+    /** @return a fresh key pair for this scheme */
+    public KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance(keyAlgorithm);
+            if (this == RSA) {
+                keyGen.initialize(RSA_KEY_SIZE);
+            } else if (this == ECDSA_P256) {
+                keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+            }
+            return keyGen.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(name() + " keys cannot be generated", e);
+        }
+    }
+
+    /** @return true if {@code signature} is a valid signature of {@code message} under {@code pubKey} */
+    public boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        return pool().verify(pubKey, message, signature);
+    }
+
+    /** @return the signature of {@code message} under {@code privateKey} */
+    public byte[] sign(PrivateKey privateKey, byte[] message) {
+        return pool().sign(privateKey, message);
+    }
+
+    /**
+     * @return the public key whose X.509 encoding ({@link PublicKey#getEncoded()}) is
+     *         {@code encoded}
+     * @throws IllegalArgumentException if {@code encoded} is not a valid key of this scheme
+     */
+    public PublicKey decodePublicKey(byte[] encoded) {
+        try {
+            return KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Not a valid " + name() + " public key", e);
+        }
+    }
+
+    /** @return the scheme with the given {@link #getId() id} */
+    public static SignatureScheme fromId(byte id) {
+        for (SignatureScheme scheme : values()) {
+            if (scheme.id == id) return scheme;
+        }
+        throw new IllegalArgumentException("Unknown signature scheme id " + id);
+    }
+
+    /**
+     * @return the scheme {@code key} belongs to, or null if it is not one of the supported
+     *         schemes (for example an EC key on a curve other than P-256)
+     */
+    public static SignatureScheme forKey(Key key) {
+        if (key == null) return null;
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return RSA;
+            case "EC":
+                if (key instanceof ECKey && !isP256(((ECKey) key).getParams())) {
+                    return null;
+                }
+                return ECDSA_P256;
+            case "Ed25519":
+            case "EdDSA": // an Ed448 key also reports EdDSA; the Ed25519 verifier rejects it
+                return ED25519;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return whether {@code params} are those of P-256. Other curves over a 256-bit field, such
+     *         as secp256k1, have other coefficients or generator.
+     */
+    private static boolean isP256(ECParameterSpec params) {
+        ECParameterSpec p256 = P256.PARAMS;
+        return p256 != null && params != null
+                && params.getCurve().equals(p256.getCurve())
+                && params.getGenerator().equals(p256.getGenerator())
+                && params.getOrder().equals(p256.getOrder())
+                && params.getCofactor() == p256.getCofactor();
+    }
+
+    /** The domain parameters of P-256, looked up once; null if this JVM does not know the curve */
+    private static final class P256 {
+        static final ECParameterSpec PARAMS = lookUp();
+
+        private static ECParameterSpec lookUp() {
+            try {
+                AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+                parameters.init(new ECGenParameterSpec("secp256r1"));
+                return parameters.getParameterSpec(ECParameterSpec.class);
+            } catch (GeneralSecurityException e) {
+                return null;
+            }
+        }
+    }
+
+    private VerifierPool pool() {
+        VerifierPool pool = verifiers;
+        if (pool == null) {
+            // created lazily so that a scheme missing from this JVM does not break the others
+            pool = new VerifierPool(signatureAlgorithm);
+            verifiers = pool;
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,70 @@
+import java.security.KeyPair;
+
+/**
+ * Compares the signature schemes: verify throughput and the size of a serialized transaction.
+ * Run with an optional number of verifications per scheme (default 2000).
+ */
+public class SignatureSchemeBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        // measure the raw verification, not the cache
+        SignatureCache cache = Crypto.getSignatureCache();
+        Crypto.setSignatureCache(null);
+
+        System.out.println(String.format("%-11s %12s %9s %9s %9s",
+                "Scheme", "verify/s", "key (B)", "sig (B)", "tx (B)"));
+        try {
+            for (SignatureScheme scheme : SignatureScheme.values()) {
+                if (!scheme.isAvailable()) {
+                    System.out.println(String.format("%-11s %12s", scheme, "unavailable"));
+                    continue;
+                }
+                KeyPair pair = scheme.generateKeyPair();
+                Transaction tx = sampleTransaction(pair);
+                byte[] message = tx.getRawDataToSign(0);
+                byte[] sig = tx.getInput(0).signature;
+
+                // warm up the JIT and the verifier pool
+                for (int i = 0; i < Math.max(100, iterations / 10); i++) {
+                    Crypto.verifySignature(pair.getPublic(), message, sig);
+                }
+
+                long startTime = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    if (!Crypto.verifySignature(pair.getPublic(), message, sig)) {
+                        throw new IllegalStateException(scheme + " failed to verify");
+                    }
+                }
+                double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+
+                System.out.println(String.format("%-11s %12.0f %9d %9d %9d",
+                        scheme,
+                        iterations / seconds,
+                        pair.getPublic().getEncoded().length,
+                        sig.length,
+                        tx.getRawTx().length));
+            }
+        } finally {
+            Crypto.setSignatureCache(cache);
+        }
+    }
+
+    /** A 2-input, 2-output transaction paying back to the owner of {@code pair} */
+    private static Transaction sampleTransaction(KeyPair pair) {
+        Transaction tx = new Transaction();
+        byte[] prevHash = new byte[32];
+        for (int i = 0; i < 2; i++) {
+            prevHash[0] = (byte) i;
+            tx.addInput(prevHash, i);
+        }
+        tx.addOutput(5.0, pair.getPublic());
+        tx.addOutput(4.0, pair.getPublic());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            tx.addSignature(Crypto.sign(pair.getPrivate(), tx.getRawDataToSign(i)), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+}
@@ -2,10 +2,9 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
-public class Transaction {
+public class Transaction implements ReadableTransaction {
 
     public class Input {
         /** hash of the Transaction whose output is being used */
@@ -28,10 +27,12 @@ public class Transaction {
                 signature = null;
             else
                 signature = Arrays.copyOf(sig, sig.length);
+            invalidateHash();
         }
     }
 
-    public class Output {
+    /** An output does not refer back to its transaction, so pools can create them on their own */
+    public static class Output {
         /** value in bitcoins of the output */
         public double value;
         /** the address or public key of the recipient */
@@ -43,34 +44,72 @@ public class Transaction {
         }
     }
 
-    /** hash of the transaction, its unique id */
-    private byte[] hash;
+    /**
+     * hash of the transaction, its unique id. Computed on first use and dropped whenever the
+     * transaction is changed through its methods; {@link #finalize()} always recomputes it.
+     */
+    private volatile byte[] hash;
+    /** true if {@link #hash} was given through {@link #setHash} rather than computed */
+    private volatile boolean hashIsExplicit;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
 
+    /*
+     * The outputs section is the same for every input's data to sign, so it is serialized once
+     * and kept, along with each output's address.getEncoded(). Both are dropped whenever inputs
+     * or outputs are added or removed, and rebuilt by finalize(). Assigning the public fields of
+     * an Input or Output directly is only picked up by the next finalize().
+     */
+    private volatile byte[][] encodedAddresses;
+    private volatile byte[] outputsSection;
+
     public Transaction() {
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
     }
 
     public Transaction(Transaction tx) {
-        hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
+        byte[] h = tx.hash;
+        hash = h == null ? null : h.clone();
+        hashIsExplicit = tx.hashIsExplicit;
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs) {
+            // a fresh Input, so that signing the copy drops the copy's hash and not the original's
+            Input copy = new Input(null, in.outputIndex);
+            copy.prevTxHash = in.prevTxHash;
+            copy.signature = in.signature;
+            inputs.add(copy);
+        }
         outputs = new ArrayList<Output>(tx.outputs);
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        invalidateCaches();
+    }
+
+    /**
+     * Adds an input that takes ownership of {@code prevTxHash} and {@code signature} instead of
+     * copying them; used by {@link TransactionCodec}, which has just allocated both arrays.
+     */
+    void addDecodedInput(byte[] prevTxHash, int outputIndex, byte[] signature) {
+        Input in = new Input(null, outputIndex);
+        in.prevTxHash = prevTxHash;
+        in.signature = signature;
+        inputs.add(in);
+        invalidateCaches();
     }
 
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        invalidateCaches();
     }
 
     public void removeInput(int index) {
         inputs.remove(index);
+        invalidateCaches();
     }
 
     public void removeInput(UTXO ut) {
@@ -79,6 +118,7 @@ public class Transaction {
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
                 inputs.remove(i);
+                invalidateCaches();
                 return;
             }
         }
@@ -86,35 +126,14 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        byte[] suffix = outputsSection();
+        ByteBuffer sigData = ByteBuffer.allocate(inputSize(in, false) + suffix.length);
+        putInput(sigData, in, false);
+        sigData.put(suffix);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -122,58 +141,113 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+        byte[] suffix = outputsSection();
+        int size = suffix.length;
+        for (Input in : inputs)
+            size += inputSize(in, true);
+        ByteBuffer rawTx = ByteBuffer.allocate(size);
+        for (Input in : inputs)
+            putInput(rawTx, in, true);
+        rawTx.put(suffix);
+        return rawTx.array();
+    }
+
+    /*
+     * The serialized forms are written straight into an array of the exact size. Their layout is
+     * the one the original ArrayList<Byte> based code produced, so hashes and signatures made
+     * before are still valid:
+     *   input  = prevTxHash (if not null) | outputIndex (4 bytes, big endian) | signature (raw tx
+     *            only, if not null)
+     *   output = value (8 bytes, IEEE 754 big endian) | address.getEncoded()
+     */
+
+    private static int inputSize(Input in, boolean withSignature) {
+        int size = Integer.BYTES;
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        if (withSignature && in.signature != null)
+            size += in.signature.length;
+        return size;
+    }
+
+    private static void putInput(ByteBuffer b, Input in, boolean withSignature) {
+        if (in.prevTxHash != null)
+            b.put(in.prevTxHash);
+        b.putInt(in.outputIndex);
+        if (withSignature && in.signature != null)
+            b.put(in.signature);
+    }
+
+    /** @return the cached address.getEncoded() of every output; callers must not modify them */
+    byte[][] encodedAddresses() {
+        byte[][] addresses = encodedAddresses;
+        if (addresses == null) {
+            addresses = new byte[outputs.size()][];
+            for (int i = 0; i < addresses.length; i++)
+                addresses[i] = outputs.get(i).address.getEncoded();
+            encodedAddresses = addresses;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
+        return addresses;
+    }
 
+    /** @return the cached serialized outputs, shared by every input's data to sign */
+    private byte[] outputsSection() {
+        byte[] section = outputsSection;
+        if (section == null) {
+            byte[][] addresses = encodedAddresses();
+            int size = 0;
+            for (byte[] address : addresses)
+                size += Double.BYTES + address.length;
+            ByteBuffer b = ByteBuffer.allocate(size);
+            for (int i = 0; i < addresses.length; i++) {
+                b.putDouble(outputs.get(i).value);
+                b.put(addresses[i]);
+            }
+            section = b.array();
+            outputsSection = section;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return section;
     }
 
+    private void invalidateCaches() {
+        encodedAddresses = null;
+        outputsSection = null;
+        invalidateHash();
+    }
+
+    private void invalidateHash() {
+        hash = null;
+        hashIsExplicit = false;
+    }
+
+    /**
+     * Recomputes the hash from the current contents, replacing one given by {@link #setHash} and
+     * picking up direct writes to the public fields of inputs and outputs.
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        invalidateCaches();
+        hash = computeHash();
     }
 
     public void setHash(byte[] h) {
         hash = h;
+        hashIsExplicit = h != null;
     }
 
+    /** @return the SHA-256 of {@link #getRawTx()}, computed if the transaction changed since */
     public byte[] getHash() {
-        return hash;
+        byte[] h = hash;
+        if (h == null) {
+            h = computeHash();
+            hash = h;
+        }
+        return h;
+    }
+
+    private byte[] computeHash() {
+        MessageDigest md = Crypto.sha256();
+        md.update(getRawTx());
+        return md.digest();
     }
 
     public ArrayList<Input> getInputs() {
@@ -198,6 +272,26 @@ public class Transaction {
         return null;
     }
 
+    public byte[] getPrevTxHash(int index) {
+        return inputs.get(index).prevTxHash;
+    }
+
+    public int getOutputIndex(int index) {
+        return inputs.get(index).outputIndex;
+    }
+
+    public byte[] getSignature(int index) {
+        return inputs.get(index).signature;
+    }
+
+    public double getOutputValue(int index) {
+        return outputs.get(index).value;
+    }
+
+    public PublicKey getOutputAddress(int index) {
+        return outputs.get(index).address;
+    }
+
     public int numInputs() {
         return inputs.size();
     }
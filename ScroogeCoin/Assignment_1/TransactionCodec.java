@@ -0,0 +1,317 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Versioned, length-prefixed binary encoding of a {@link Transaction}.
+ * <p>
+ * Unlike {@link Transaction#getRawTx()}, the encoding can be read back. All numbers are big
+ * endian:
+ * <pre>
+ * transaction = version (u8) | numInputs (i32) | input* | numOutputs (i32) | output*
+ * input       = hashLen (u16) | prevTxHash | outputIndex (i32) | sigLen (u16) | signature
+ * output      = value (f64) | scheme id (u8) | keyLen (u16) | address.getEncoded()
+ * </pre>
+ * A length of {@code 0xFFFF} stands for a null hash or signature. The transaction hash is not
+ * stored; it is recomputed on demand from the decoded contents.
+ * <p>
+ * A batch file is a header ({@code "SCTX"} and the version) followed by records, each an i32
+ * length and one encoded transaction. {@link Writer} streams batches out and {@link Reader}
+ * reads them straight from a {@link ByteBuffer}, e.g. one returned by {@link #map(Path)}, without
+ * copying the file into the heap first.
+ */
+public final class TransactionCodec {
+
+    public static final byte VERSION = 1;
+
+    /** Magic bytes at the start of a batch file */
+    private static final byte[] MAGIC = {'S', 'C', 'T', 'X'};
+
+    /** Length written for a null hash or signature */
+    private static final int NULL_LENGTH = 0xFFFF;
+
+    /** Upper bound on cached decoded addresses, the cache is cleared when it is reached */
+    private static final int MAX_CACHED_KEYS = 1 << 16;
+
+    /** Encoded address -> decoded key; addresses repeat a lot and KeyFactory is slow */
+    private static final ConcurrentHashMap<ByteBuffer, PublicKey> KEYS = new ConcurrentHashMap<>();
+
+    private TransactionCodec() {
+    }
+
+    /** @return the number of bytes {@link #encode(Transaction, ByteBuffer)} writes for {@code tx} */
+    public static int encodedSize(Transaction tx) {
+        int size = 1 + Integer.BYTES + Integer.BYTES;
+        for (Transaction.Input in : tx.getInputs()) {
+            size += 2 + lengthOf(in.prevTxHash) + Integer.BYTES + 2 + lengthOf(in.signature);
+        }
+        for (byte[] address : tx.encodedAddresses()) {
+            size += Double.BYTES + 1 + 2 + address.length;
+        }
+        return size;
+    }
+
+    /** @return {@code tx} encoded into a new array */
+    public static byte[] encode(Transaction tx) {
+        ByteBuffer b = ByteBuffer.allocate(encodedSize(tx));
+        encode(tx, b);
+        return b.array();
+    }
+
+    /**
+     * Writes {@code tx} at the position of {@code dst}, advancing it.
+     *
+     * @throws IllegalArgumentException if an address does not belong to a {@link SignatureScheme}
+     *         or a field is too long to be encoded
+     */
+    public static void encode(Transaction tx, ByteBuffer dst) {
+        dst.put(VERSION);
+        dst.putInt(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(dst, in.prevTxHash);
+            dst.putInt(in.outputIndex);
+            putBytes(dst, in.signature);
+        }
+        byte[][] addresses = tx.encodedAddresses();
+        dst.putInt(addresses.length);
+        for (int i = 0; i < addresses.length; i++) {
+            Transaction.Output op = tx.getOutput(i);
+            SignatureScheme scheme = SignatureScheme.forKey(op.address);
+            if (scheme == null) {
+                throw new IllegalArgumentException("Output " + i + " has an unsupported address type");
+            }
+            dst.putDouble(op.value);
+            dst.put(scheme.getId());
+            putBytes(dst, addresses[i]);
+        }
+    }
+
+    /** @return the transaction encoded in {@code data} */
+    public static Transaction decode(byte[] data) {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Reads one transaction from the position of {@code src}, advancing it. Hashes and signatures
+     * are read straight into the arrays the transaction keeps.
+     *
+     * @throws IllegalArgumentException if the data is truncated, malformed or of another version
+     */
+    public static Transaction decode(ByteBuffer src) {
+        try {
+            byte version = src.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported transaction format version " + version);
+            }
+            Transaction tx = new Transaction();
+            int numInputs = readCount(src);
+            for (int i = 0; i < numInputs; i++) {
+                byte[] prevTxHash = getBytes(src);
+                int outputIndex = src.getInt();
+                byte[] signature = getBytes(src);
+                tx.addDecodedInput(prevTxHash, outputIndex, signature);
+            }
+            int numOutputs = readCount(src);
+            for (int i = 0; i < numOutputs; i++) {
+                double value = src.getDouble();
+                byte scheme = src.get();
+                int keyLength = Short.toUnsignedInt(src.getShort());
+                PublicKey address = decodeAddress(scheme, src, src.position(), keyLength);
+                src.position(src.position() + keyLength);
+                tx.addOutput(value, address);
+            }
+            return tx;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated transaction", e);
+        }
+    }
+
+    /**
+     * @return the key of the given scheme whose encoding is the {@code length} bytes of
+     *         {@code src} at {@code offset}. Keys already seen are returned from a cache, so the
+     *         bytes are only copied the first time an address is met.
+     */
+    static PublicKey decodeAddress(byte schemeId, ByteBuffer src, int offset, int length) {
+        ByteBuffer view = src.duplicate();
+        view.limit(offset + length).position(offset);
+        PublicKey key = KEYS.get(view);
+        if (key == null) {
+            byte[] encoded = new byte[length];
+            view.get(encoded);
+            key = SignatureScheme.fromId(schemeId).decodePublicKey(encoded);
+            if (KEYS.size() >= MAX_CACHED_KEYS) {
+                KEYS.clear();
+            }
+            KEYS.put(ByteBuffer.wrap(encoded), key);
+        }
+        return key;
+    }
+
+    /** Maps {@code file} read-only, e.g. to decode a batch with a {@link Reader} */
+    public static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static int lengthOf(byte[] b) {
+        return b == null ? 0 : b.length;
+    }
+
+    private static void putBytes(ByteBuffer dst, byte[] b) {
+        if (b == null) {
+            dst.putShort((short) NULL_LENGTH);
+            return;
+        }
+        if (b.length >= NULL_LENGTH) {
+            throw new IllegalArgumentException("Field of " + b.length + " bytes is too long");
+        }
+        dst.putShort((short) b.length);
+        dst.put(b);
+    }
+
+    private static byte[] getBytes(ByteBuffer src) {
+        int length = Short.toUnsignedInt(src.getShort());
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        src.get(b);
+        return b;
+    }
+
+    private static int readCount(ByteBuffer src) {
+        int count = src.getInt();
+        // every input or output takes more than 4 bytes, so this rejects absurd counts early
+        if (count < 0 || count > src.remaining() / 4) {
+            throw new IllegalArgumentException("Invalid element count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Streams a batch of transactions to a channel or output stream, buffering the writes.
+     */
+    public static class Writer implements Closeable {
+        private final WritableByteChannel channel;
+        private ByteBuffer buffer;
+        private long count;
+
+        public Writer(OutputStream out) throws IOException {
+            this(Channels.newChannel(out));
+        }
+
+        public Writer(WritableByteChannel channel) throws IOException {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.put(MAGIC).put(VERSION);
+        }
+
+        /** Appends one transaction to the batch */
+        public void write(Transaction tx) throws IOException {
+            int size = encodedSize(tx);
+            if (buffer.remaining() < Integer.BYTES + size) {
+                flush();
+                if (buffer.capacity() < Integer.BYTES + size) {
+                    buffer = ByteBuffer.allocate(Integer.BYTES + size);
+                }
+            }
+            buffer.putInt(size);
+            encode(tx, buffer);
+            count++;
+        }
+
+        /** Appends every transaction of {@code txs} to the batch */
+        public void writeAll(Transaction[] txs) throws IOException {
+            for (Transaction tx : txs) write(tx);
+        }
+
+        /** @return the number of transactions written so far */
+        public long getCount() {
+            return count;
+        }
+
+        /** Writes out everything buffered so far */
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the transactions of a batch from a {@link ByteBuffer}, typically a mapped file.
+     */
+    public static class Reader implements Iterator<Transaction> {
+        private final ByteBuffer src;
+
+        /**
+         * @throws IllegalArgumentException if {@code batch} does not start with a batch header of
+         *         this version
+         */
+        public Reader(ByteBuffer batch) {
+            src = batch.duplicate();
+            if (src.remaining() < MAGIC.length + 1) {
+                throw new IllegalArgumentException("Not a transaction batch");
+            }
+            for (byte m : MAGIC) {
+                if (src.get() != m) throw new IllegalArgumentException("Not a transaction batch");
+            }
+            byte version = src.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported batch format version " + version);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return src.hasRemaining();
+        }
+
+        @Override
+        public Transaction next() {
+            return decode(nextRecord());
+        }
+
+        /**
+         * @return the encoded bytes of the next transaction as a slice of the batch buffer,
+         *         without decoding or copying them
+         */
+        public ByteBuffer nextRecord() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (src.remaining() < Integer.BYTES) {
+                throw new IllegalArgumentException("Truncated batch");
+            }
+            int size = src.getInt();
+            if (size < 0 || size > src.remaining()) {
+                throw new IllegalArgumentException("Truncated batch");
+            }
+            ByteBuffer record = src.slice();
+            record.limit(size);
+            src.position(src.position() + size);
+            return record;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+
+/**
+ * Read-only view of a transaction encoded by {@link TransactionCodec}, reading inputs, outputs and
+ * the data to sign directly from the buffer.
+ * <p>
+ * Wrapping a record only records the offset of each input and output; nothing is decoded until it
+ * is asked for, values are read in place and the data to sign is assembled straight from the
+ * buffer. A view can be re-pointed at another record with {@link #wrap}, so a single view can walk
+ * a whole mapped file. Reads are safe from several threads; {@link #wrap} is not.
+ */
+public class TransactionView implements ReadableTransaction {
+
+    private static final int NULL_LENGTH = 0xFFFF;
+
+    private ByteBuffer record;
+    private int numInputs;
+    private int numOutputs;
+    /** offset of each input's hash length field */
+    private int[] inputOffsets = new int[4];
+    /** offset of each output's value */
+    private int[] outputOffsets = new int[4];
+    /** tables {@link #wrap} fills, swapped with the two above once the record parses */
+    private int[] spareInputOffsets = new int[4];
+    private int[] spareOutputOffsets = new int[4];
+    /** size of the outputs part of the data to sign */
+    private int outputsSectionSize;
+    private volatile byte[] hash;
+
+    /** Creates a view of the transaction encoded in {@code record} (from its position to its limit) */
+    public TransactionView(ByteBuffer record) {
+        wrap(record);
+    }
+
+    /**
+     * Points this view at another encoded transaction, reusing its offset tables. If the record
+     * does not parse, the view is left on the record it was on.
+     *
+     * @throws IllegalArgumentException if the record is truncated or of another format version
+     */
+    public TransactionView wrap(ByteBuffer record) {
+        ByteBuffer b = record.slice();
+        try {
+            byte version = b.get();
+            if (version != TransactionCodec.VERSION) {
+                throw new IllegalArgumentException("Unsupported transaction format version " + version);
+            }
+            int inputs = readCount(b);
+            int[] inputTable = spareInputOffsets.length < inputs ? new int[inputs] : spareInputOffsets;
+            for (int i = 0; i < inputs; i++) {
+                inputTable[i] = b.position();
+                skipBytes(b);
+                b.getInt();
+                skipBytes(b);
+            }
+            int outputs = readCount(b);
+            int[] outputTable = spareOutputOffsets.length < outputs ? new int[outputs] : spareOutputOffsets;
+            int sectionSize = 0;
+            for (int i = 0; i < outputs; i++) {
+                outputTable[i] = b.position();
+                b.getDouble();
+                b.get();
+                int keyLength = Short.toUnsignedInt(b.getShort());
+                b.position(b.position() + keyLength);
+                sectionSize += Double.BYTES + keyLength;
+            }
+            spareInputOffsets = inputOffsets;
+            spareOutputOffsets = outputOffsets;
+            this.inputOffsets = inputTable;
+            this.outputOffsets = outputTable;
+            this.record = b;
+            this.numInputs = inputs;
+            this.numOutputs = outputs;
+            this.outputsSectionSize = sectionSize;
+            this.hash = null;
+            return this;
+        } catch (BufferUnderflowException e) {
+            // skipping past the end raises IllegalArgumentException from position() directly
+            throw new IllegalArgumentException("Truncated transaction", e);
+        }
+    }
+
+    @Override
+    public int numInputs() {
+        return numInputs;
+    }
+
+    @Override
+    public int numOutputs() {
+        return numOutputs;
+    }
+
+    @Override
+    public byte[] getPrevTxHash(int index) {
+        return copyBytes(inputOffsets[checkInput(index)]);
+    }
+
+    @Override
+    public int getOutputIndex(int index) {
+        return record.getInt(skip(inputOffsets[checkInput(index)]));
+    }
+
+    @Override
+    public byte[] getSignature(int index) {
+        return copyBytes(skip(inputOffsets[checkInput(index)]) + Integer.BYTES);
+    }
+
+    /** Looks the hash up in place in the buffer */
+    @Override
+    public double getSpentValue(UTXOPool pool, int index) {
+        int offset = inputOffsets[checkInput(index)];
+        int length = length(offset);
+        if (length == NULL_LENGTH) return Double.NaN;
+        return pool.getValue(record, offset + 2, length, record.getInt(offset + 2 + length));
+    }
+
+    /** Looks the hash up in place in the buffer */
+    @Override
+    public PublicKey getSpentAddress(UTXOPool pool, int index) {
+        int offset = inputOffsets[checkInput(index)];
+        int length = length(offset);
+        if (length == NULL_LENGTH) return null;
+        return pool.getAddress(record, offset + 2, length, record.getInt(offset + 2 + length));
+    }
+
+    /** Compares the two inputs in place in the buffer */
+    @Override
+    public boolean spendSameOutput(int i, int j) {
+        int a = inputOffsets[checkInput(i)];
+        int b = inputOffsets[checkInput(j)];
+        int length = length(a);
+        if (length == NULL_LENGTH || length(b) != length) return false;
+        if (record.getInt(a + 2 + length) != record.getInt(b + 2 + length)) return false;
+        for (int k = 0; k < length; k++) {
+            if (record.get(a + 2 + k) != record.get(b + 2 + k)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public double getOutputValue(int index) {
+        return record.getDouble(outputOffsets[checkOutput(index)]);
+    }
+
+    @Override
+    public PublicKey getOutputAddress(int index) {
+        int offset = outputOffsets[checkOutput(index)];
+        byte scheme = record.get(offset + Double.BYTES);
+        int keyLength = Short.toUnsignedInt(record.getShort(offset + Double.BYTES + 1));
+        return TransactionCodec.decodeAddress(scheme, record, offset + Double.BYTES + 3, keyLength);
+    }
+
+    @Override
+    public Transaction.Output getOutput(int index) {
+        return new Transaction.Output(getOutputValue(index), getOutputAddress(index));
+    }
+
+    /** @return the same bytes as {@link Transaction#getRawDataToSign}, copied out of the buffer */
+    @Override
+    public byte[] getRawDataToSign(int index) {
+        int offset = inputOffsets[checkInput(index)];
+        int hashLength = length(offset);
+        int prefix = (hashLength == NULL_LENGTH ? 0 : hashLength) + Integer.BYTES;
+        byte[] data = new byte[prefix + outputsSectionSize];
+
+        ByteBuffer src = record.duplicate();
+        src.position(offset + 2);
+        src.get(data, 0, prefix); // the hash is immediately followed by the output index
+        int pos = prefix;
+        for (int i = 0; i < numOutputs; i++) {
+            int out = outputOffsets[i];
+            int keyLength = Short.toUnsignedInt(record.getShort(out + Double.BYTES + 1));
+            src.position(out);
+            src.get(data, pos, Double.BYTES);
+            pos += Double.BYTES;
+            src.position(out + Double.BYTES + 3);
+            src.get(data, pos, keyLength);
+            pos += keyLength;
+        }
+        return data;
+    }
+
+    /** @return the same hash as the decoded {@link Transaction}, digested straight from the buffer */
+    @Override
+    public byte[] getHash() {
+        byte[] h = hash;
+        if (h == null) {
+            MessageDigest md = Crypto.sha256();
+            ByteBuffer src = record.duplicate();
+            for (int i = 0; i < numInputs; i++) {
+                int offset = inputOffsets[i];
+                int hashLength = length(offset);
+                int pos = offset + 2;
+                if (hashLength != NULL_LENGTH) {
+                    update(md, src, pos, hashLength);
+                    pos += hashLength;
+                }
+                update(md, src, pos, Integer.BYTES);
+                pos += Integer.BYTES;
+                int sigLength = length(pos);
+                if (sigLength != NULL_LENGTH) {
+                    update(md, src, pos + 2, sigLength);
+                }
+            }
+            for (int i = 0; i < numOutputs; i++) {
+                int out = outputOffsets[i];
+                update(md, src, out, Double.BYTES);
+                update(md, src, out + Double.BYTES + 3,
+                        Short.toUnsignedInt(record.getShort(out + Double.BYTES + 1)));
+            }
+            h = md.digest();
+            hash = h;
+        }
+        return h;
+    }
+
+    /** @return a fully decoded copy of this transaction */
+    public Transaction toTransaction() {
+        return TransactionCodec.decode(record.duplicate());
+    }
+
+    private static void update(MessageDigest md, ByteBuffer src, int offset, int length) {
+        src.clear();
+        src.position(offset);
+        src.limit(offset + length);
+        md.update(src);
+    }
+
+    private int length(int offset) {
+        return Short.toUnsignedInt(record.getShort(offset));
+    }
+
+    /** @return the offset just past the length-prefixed field at {@code lengthOffset} */
+    private int skip(int lengthOffset) {
+        int length = length(lengthOffset);
+        return lengthOffset + 2 + (length == NULL_LENGTH ? 0 : length);
+    }
+
+    private byte[] copyBytes(int lengthOffset) {
+        int length = length(lengthOffset);
+        if (length == NULL_LENGTH) return null;
+        byte[] b = new byte[length];
+        ByteBuffer src = record.duplicate();
+        src.position(lengthOffset + 2);
+        src.get(b);
+        return b;
+    }
+
+    private int checkInput(int index) {
+        if (index < 0 || index >= numInputs) throw new IndexOutOfBoundsException("input " + index);
+        return index;
+    }
+
+    private int checkOutput(int index) {
+        if (index < 0 || index >= numOutputs) throw new IndexOutOfBoundsException("output " + index);
+        return index;
+    }
+
+    private static void skipBytes(ByteBuffer b) {
+        int length = Short.toUnsignedInt(b.getShort());
+        if (length != NULL_LENGTH) b.position(b.position() + length);
+    }
+
+    private static int readCount(ByteBuffer b) {
+        int count = b.getInt();
+        if (count < 0 || count > b.remaining() / 4) {
+            throw new IllegalArgumentException("Invalid element count " + count);
+        }
+        return count;
+    }
+}
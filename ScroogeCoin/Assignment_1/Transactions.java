@@ -0,0 +1,52 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+
+/** Helpers that work on whole batches of transactions. */
+public final class Transactions {
+
+    /** Below this many transactions hashing is done on the calling thread */
+    private static final int PARALLEL_THRESHOLD = 256;
+
+    /** Above this many inputs duplicates are found with a hash set instead of pairwise */
+    private static final int DUPLICATE_SCAN_LIMIT = 16;
+
+    private Transactions() {
+    }
+
+    /**
+     * Computes the hash of every transaction in {@code txs}, spreading the work over the cores of
+     * the common {@link ForkJoinPool}. Each worker hashes with its own digest.
+     */
+    public static void finalizeAll(Transaction[] txs) {
+        if (txs.length < PARALLEL_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            for (Transaction tx : txs) tx.finalize();
+            return;
+        }
+        Arrays.stream(txs).parallel().forEach(Transaction::finalize);
+    }
+
+    /**
+     * @return true if two inputs of {@code tx} spend the same output. Inputs are compared
+     *         pairwise, which for the handful of inputs a transaction has is cheaper than building
+     *         a set of {@link UTXO}s. An input with a null {@code prevTxHash} spends nothing, so it
+     *         is never a duplicate, whichever way the inputs are compared.
+     */
+    public static boolean hasDuplicateInputs(ReadableTransaction tx) {
+        int n = tx.numInputs();
+        if (n > DUPLICATE_SCAN_LIMIT) {
+            HashSet<UTXO> seen = new HashSet<>();
+            for (int i = 0; i < n; i++) {
+                byte[] hash = tx.getPrevTxHash(i);
+                if (hash != null && !seen.add(new UTXO(hash, tx.getOutputIndex(i)))) return true;
+            }
+            return false;
+        }
+        for (int i = 1; i < n; i++) {
+            for (int j = 0; j < i; j++) {
+                if (tx.spendSameOutput(i, j)) return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,50 +1,97 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 
 public class TxHandler {
 
     private UTXOPool utxoPool;
     private List<Transaction> acceptedTxs;
+    private final ParallelValidator validator;
+    private WriteAheadLog wal;
+    private OrphanPool orphans;
     public Map<byte[], Double> feeMap = new HashMap<>();
     private Double fee;
+    /** accepted transactions by decreasing fee, earliest accepted first on ties */
+    private final TreeSet<FeeEntry> feeIndex = new TreeSet<>();
+    private long acceptedCount;
+    /** hashes of the transactions with outputs in the initial pool and of every accepted one */
+    private final Set<ByteArrayWrapper> knownTxs = new HashSet<>();
 
 
-    /** Creates a copy of the given utxoPool */
+    /** Creates a copy of the given utxoPool, keeping its implementation (see {@link UTXOPool#copy()}) */
     public TxHandler(UTXOPool utxoPool) {
-        this.utxoPool = new UTXOPool(utxoPool);
+        this(utxoPool, null);
+    }
+
+    /**
+     * Creates a copy of the given utxoPool. If {@code validator} is not null, {@link #handleTxs}
+     * verifies the signatures of the whole batch on it before applying transactions in order.
+     */
+    public TxHandler(UTXOPool utxoPool, ParallelValidator validator) {
+        this.utxoPool = utxoPool.copy();
         this.acceptedTxs = new ArrayList<>();
+        this.validator = validator;
+        for (UTXO u : this.utxoPool.getAllUTXO()) {
+            knownTxs.add(new ByteArrayWrapper(u.getTxHash()));
+        }
+    }
+
+    /**
+     * Logs every transaction {@link #handleTxs} accepts to {@code wal}, committing once per call
+     * before it returns. Pass null to stop logging.
+     */
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    /**
+     * Holds the transactions {@link #handleTxs} rejects for spending outputs it does not know in
+     * {@code orphans}, and checks them again as soon as a transaction they wait on is accepted,
+     * in this call or a later one. Pass null to drop such transactions as before.
+     */
+    public void setOrphanPool(OrphanPool orphans) {
+        this.orphans = orphans;
     }
 
-    /** Checks transaction validity under ScroogeCoin rules */
-    public boolean isValidTx(Transaction tx) {
-        HashSet<UTXO> claimed = new HashSet<>();
+    /**
+     * Checks transaction validity under ScroogeCoin rules. Accepts a {@link Transaction} or a
+     * {@link TransactionView} over its encoded form.
+     */
+    public boolean isValidTx(ReadableTransaction tx) {
+        return isValidTx(tx, true);
+    }
 
+    /**
+     * Checks transaction validity, skipping the signature checks when {@code checkSignatures} is
+     * false because they were already done by the {@link ParallelValidator}.
+     */
+    private boolean isValidTx(ReadableTransaction tx, boolean checkSignatures) {
         double inputSum = 0;
         double outputSum = 0;
 
+        // No double spending within the tx
+        if (Transactions.hasDuplicateInputs(tx)) return false;
+
         // Check UTXOs
         for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-
             // UTXO must exist
-            if (!utxoPool.contains(utxo)) return false;
-
-            // No double spending within the tx
-            if (!claimed.add(utxo)) return false;
+            double value = tx.getSpentValue(utxoPool, i);
+            if (Double.isNaN(value)) return false;
 
             // Signature must be valid
-            Transaction.Output prevOut = utxoPool.getTxOutput(utxo);
-            if (!Crypto.verifySignature(prevOut.address, tx.getRawDataToSign(i), in.signature))
+            if (checkSignatures && !Crypto.verifySignature(tx.getSpentAddress(utxoPool, i),
+                    tx.getRawDataToSign(i), tx.getSignature(i)))
                 return false;
 
-            inputSum += prevOut.value;
+            inputSum += value;
         }
 
         // Check outputs
-        for (Transaction.Output out : tx.getOutputs()) {
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            double value = tx.getOutputValue(i);
             // 4. Output values must be non-negative
-            if (out.value < 0) return false;
-            outputSum += out.value;
+            if (value < 0) return false;
+            outputSum += value;
         }
 
         // No value creation
@@ -52,55 +99,146 @@ public class TxHandler {
     }
 
     /**
-     * Repeatedly process transactions until no more can be accepted.
+     * Processes the proposed transactions and returns a mutually valid set of accepted ones.
+     * <p>
+     * Candidates are indexed by the {@code prevTxHash} of each input they spend, which gives a
+     * dependency DAG between them. Every candidate is checked once; a candidate that fails is only
+     * checked again when one of the transactions it spends from gets accepted, so a long chain of
+     * spends costs O(n) calls to {@link #isValidTx} instead of O(n^2). With an {@link OrphanPool},
+     * the orphans waiting on an accepted transaction join the candidates, and candidates left
+     * with unknown inputs become orphans.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
 
-        Set<Transaction> remaining = new HashSet<>(Arrays.asList(possibleTxs));
+        Set<Transaction> remaining = new LinkedHashSet<>(Arrays.asList(possibleTxs));
         List<Transaction> accepted = new ArrayList<>();
 
+        // parent hash -> candidates that spend one of its outputs
+        Map<ByteArrayWrapper, List<Transaction>> spenders = new HashMap<>();
+        for (Transaction tx : remaining) {
+            for (Transaction.Input in : tx.getInputs()) {
+                if (in.prevTxHash == null) continue;
+                spenders.computeIfAbsent(new ByteArrayWrapper(in.prevTxHash), k -> new ArrayList<>())
+                        .add(tx);
+            }
+        }
 
-        boolean progress = true;
-
-        while (progress) {
-            progress = false;
+        // signatures are state independent, so they can all be checked up front in parallel
+        Set<Transaction> badSignatures = new HashSet<>();
+        Set<Transaction> verified = new HashSet<>();
+        if (validator != null) {
+            Transaction[] batch = remaining.toArray(new Transaction[0]);
+            boolean[] signed = validator.verifySignatures(batch, utxoPool);
+            for (int i = 0; i < batch.length; i++) {
+                if (!signed[i]) badSignatures.add(batch[i]);
+            }
+            verified.addAll(remaining);
+        }
 
-            Iterator<Transaction> it = remaining.iterator();
-            while (it.hasNext()) {
-                Transaction tx = it.next();
+        Deque<Transaction> queue = new ArrayDeque<>(remaining);
+        Set<Transaction> queued = new HashSet<>(remaining);
+
+        while (!queue.isEmpty()) {
+            Transaction tx = queue.poll();
+            queued.remove(tx);
+
+            boolean valid = !verified.contains(tx)
+                    ? isValidTx(tx)
+                    : !badSignatures.contains(tx) && isValidTx(tx, false);
+            if (!valid) continue; // re-queued if a parent gets accepted later
+
+            fee = getTxFeeBeforeApply(tx);
+            recordFee(tx, fee);
+            applyTx(tx);
+            log(tx);
+            accepted.add(tx);
+            acceptedTxs.add(tx);
+            knownTxs.add(new ByteArrayWrapper(tx.getHash()));
+            remaining.remove(tx);
+
+            if (orphans != null) {
+                for (Transaction orphan : orphans.takeChildren(tx.getHash())) {
+                    if (!remaining.add(orphan)) continue; // resubmitted in this batch as well
+                    for (Transaction.Input in : orphan.getInputs()) {
+                        if (in.prevTxHash == null) continue;
+                        spenders.computeIfAbsent(new ByteArrayWrapper(in.prevTxHash), k -> new ArrayList<>())
+                                .add(orphan);
+                    }
+                }
+            }
 
-                if (isValidTx(tx)) {
-                    fee = getTxFeeBeforeApply(tx);
-                    feeMap.put(tx.getHash(), fee);
-                    /*System.out.println("Processing tx fee: " + fee);*/
-                    applyTx(tx);
-                    accepted.add(tx);
-                    acceptedTxs.add(tx);
-                    //printTx(tx);
-                    //printPool();
-                    it.remove();
-                    progress = true;   // new tx accepted → try again
+            // only the children of tx can have become valid
+            List<Transaction> children = spenders.get(new ByteArrayWrapper(tx.getHash()));
+            if (children == null) continue;
+            for (Transaction child : children) {
+                if (remaining.contains(child) && queued.add(child)) {
+                    queue.add(child);
                 }
             }
         }
 
+        if (orphans != null) {
+            for (Transaction tx : remaining) {
+                Set<ByteArrayWrapper> missing = missingParents(tx);
+                if (!missing.isEmpty()) orphans.add(tx, missing);
+            }
+        }
+
+        if (wal != null && !accepted.isEmpty()) {
+            try {
+                wal.commit(); // one sync for the whole batch
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not commit accepted transactions", e);
+            }
+        }
         return accepted.toArray(new Transaction[0]);
     }
 
+    /**
+     * @return the hashes of the transactions {@code tx} spends from that were never seen, or an
+     *         empty set if {@code tx} spends an output of a known transaction that is no longer in
+     *         the pool: such a double spend can never become valid, so it is not held
+     */
+    private Set<ByteArrayWrapper> missingParents(Transaction tx) {
+        Set<ByteArrayWrapper> missing = new LinkedHashSet<>();
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null || utxoPool.contains(in.prevTxHash, in.outputIndex)) continue;
+            ByteArrayWrapper parent = new ByteArrayWrapper(in.prevTxHash);
+            if (knownTxs.contains(parent)) return Collections.emptySet();
+            missing.add(parent);
+        }
+        return missing;
+    }
+
+    /**
+     * @return whether the transaction with hash {@code txHash} had outputs in the initial pool or
+     *         was accepted since
+     */
+    boolean isKnownTx(byte[] txHash) {
+        return txHash != null && knownTxs.contains(new ByteArrayWrapper(txHash));
+    }
+
+    private void log(Transaction tx) {
+        if (wal == null) return;
+        try {
+            wal.append(tx);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not log transaction", e);
+        }
+    }
+
     /** Updates UTXOPool after accepting tx */
     private void applyTx(Transaction tx) {
         // remove inputs
         for (int i = 0; i < tx.numInputs(); i++) {
             Transaction.Input in = tx.getInput(i);
-            UTXO spent = new UTXO(in.prevTxHash, in.outputIndex);
-            utxoPool.removeUTXO(spent);
+            utxoPool.removeUTXO(in.prevTxHash, in.outputIndex);
         }
 
         // add outputs
         byte[] h = tx.getHash(); // do NOT re-finalize
         for (int i = 0; i < tx.numOutputs(); i++) {
-            UTXO newUtxo = new UTXO(h, i);
-            utxoPool.addUTXO(newUtxo, tx.getOutput(i));
+            utxoPool.addUTXO(h, i, tx.getOutput(i));
         }
     }
 
@@ -128,6 +266,29 @@ public class TxHandler {
         return new ArrayList<>(acceptedTxs); // return a copy to avoid external modification
     }
 
+    /**
+     * @return the (at most) {@code k} accepted transactions with the highest fees, highest first;
+     *         transactions with equal fees come in the order they were accepted. Takes
+     *         O(k + log n) time, the index being kept up to date by {@link #recordFee}; fees put
+     *         straight into {@link #feeMap} are not seen.
+     * @throws IllegalArgumentException if {@code k} is negative
+     */
+    public List<Transaction> topK(int k) {
+        if (k < 0) throw new IllegalArgumentException("k must not be negative: " + k);
+        List<Transaction> top = new ArrayList<>(Math.min(k, feeIndex.size()));
+        Iterator<FeeEntry> it = feeIndex.iterator();
+        while (top.size() < k && it.hasNext()) {
+            top.add(it.next().tx);
+        }
+        return top;
+    }
+
+    /** Records the fee of an accepted transaction in {@link #feeMap} and in the index of {@link #topK} */
+    protected void recordFee(Transaction tx, double fee) {
+        feeMap.put(tx.getHash(), fee);
+        feeIndex.add(new FeeEntry(fee, acceptedCount++, tx));
+    }
+
     public double getTxFee(Transaction tx) {
         Double f = feeMap.get(tx.getHash());
         if (f == null) return 0;  // transaction not yet processed
@@ -139,8 +300,7 @@ public class TxHandler {
         double outputSum = 0;
 
         for (Transaction.Input in : tx.getInputs()) {
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output prevOut = utxoPool.getTxOutput(utxo);
+            Transaction.Output prevOut = utxoPool.getTxOutput(in.prevTxHash, in.outputIndex);
 
             if (prevOut == null) {
                 System.err.println("ERROR: input UTXO not found for fee calculation!");
@@ -192,6 +352,25 @@ public class TxHandler {
         return utxoPool;
     }
 
+    /** Entry of the fee index, ordered by decreasing fee then acceptance order */
+    private static final class FeeEntry implements Comparable<FeeEntry> {
+        final double fee;
+        final long sequence;
+        final Transaction tx;
+
+        FeeEntry(double fee, long sequence, Transaction tx) {
+            this.fee = fee;
+            this.sequence = sequence;
+            this.tx = tx;
+        }
+
+        @Override
+        public int compareTo(FeeEntry o) {
+            int byFee = Double.compare(o.fee, fee);
+            return byFee != 0 ? byFee : Long.compare(sequence, o.sequence);
+        }
+    }
+
 
 
 }
@@ -1,4 +1,9 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -9,23 +14,49 @@ public class UTXOPool {
      */
     private HashMap<UTXO, Transaction.Output> H;
 
+    /** Outputs replaced or removed since the oldest open savepoint, or null when none is open */
+    private ArrayList<Undo> undo;
+    /** Open savepoints, innermost last; each is the length of the undo log when it was taken */
+    private int[] savepoints = new int[4];
+    /** The token handed out for each open savepoint, unique even when the log has not grown */
+    private int[] savepointIds = new int[4];
+    private int depth;
+    private int nextSavepointId;
+
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
         H = new HashMap<UTXO, Transaction.Output>();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}. Use {@link #copy()} to keep the
+     * representation of a subclass such as {@link PackedUTXOPool}.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        if (uPool.getClass() == UTXOPool.class) {
+            H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        } else {
+            H = new HashMap<UTXO, Transaction.Output>();
+            for (UTXO ut : uPool.getAllUTXO()) {
+                H.put(ut, uPool.getTxOutput(ut));
+            }
+        }
+    }
+
+    /** @return an independent copy of this pool, of the same class */
+    public UTXOPool copy() {
+        return new UTXOPool(this);
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        journal(utxo.getTxHash(), utxo.getIndex());
         H.put(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
+        journal(utxo.getTxHash(), utxo.getIndex());
         H.remove(utxo);
     }
 
@@ -42,6 +73,185 @@ public class UTXOPool {
         return H.containsKey(utxo);
     }
 
+    /**
+     * Same as {@link #addUTXO(UTXO, Transaction.Output)} for output {@code index} of the
+     * transaction with hash {@code txHash}. The array is copied if it has to be kept.
+     */
+    public void addUTXO(byte[] txHash, int index, Transaction.Output txOut) {
+        journal(txHash, index);
+        H.put(new UTXO(txHash, index), txOut);
+    }
+
+    /** Same as {@link #removeUTXO(UTXO)} for output {@code index} of transaction {@code txHash} */
+    public void removeUTXO(byte[] txHash, int index) {
+        if (txHash == null) return;
+        journal(txHash, index);
+        H.remove(new UTXO(txHash, index));
+    }
+
+    /**
+     * Same as {@link #getTxOutput(UTXO)} for output {@code index} of transaction {@code txHash};
+     * subclasses look it up without building a {@link UTXO}. A null hash is never in the pool.
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return txHash == null ? null : H.get(new UTXO(txHash, index));
+    }
+
+    /**
+     * @return the value of output {@code index} of transaction {@code txHash}, or NaN if it is not
+     *         in the pool. Pools that pack their entries answer without creating an output, which
+     *         {@link #getTxOutput(byte[], int)} has to do.
+     */
+    public double getValue(byte[] txHash, int index) {
+        Transaction.Output out = getTxOutput(txHash, index);
+        return out == null ? Double.NaN : out.value;
+    }
+
+    /**
+     * @return the address of output {@code index} of transaction {@code txHash}, or null if it is
+     *         not in the pool; like {@link #getValue}, without creating an output in packed pools
+     */
+    public PublicKey getAddress(byte[] txHash, int index) {
+        Transaction.Output out = getTxOutput(txHash, index);
+        return out == null ? null : out.address;
+    }
+
+    /**
+     * Same as {@link #getValue(byte[], int)} for the {@code length} hash bytes at {@code offset} in
+     * {@code buf}, which is left as it is. Pools that pack their entries look the hash up in place;
+     * the others copy it out first.
+     */
+    public double getValue(ByteBuffer buf, int offset, int length, int index) {
+        return getValue(copyOf(buf, offset, length), index);
+    }
+
+    /**
+     * Same as {@link #getAddress(byte[], int)} for the hash in {@code buf}, looked up like
+     * {@link #getValue(ByteBuffer, int, int, int)}
+     */
+    public PublicKey getAddress(ByteBuffer buf, int offset, int length, int index) {
+        return getAddress(copyOf(buf, offset, length), index);
+    }
+
+    private static byte[] copyOf(ByteBuffer buf, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = buf.get(offset + i);
+        return bytes;
+    }
+
+    /** Same as {@link #contains(UTXO)} for output {@code index} of transaction {@code txHash} */
+    public boolean contains(byte[] txHash, int index) {
+        return txHash != null && H.containsKey(new UTXO(txHash, index));
+    }
+
+    /**
+     * Opens a savepoint: from now on the pool records the output each change replaces, so that
+     * {@link #rollbackTo} can restore it at the cost of the changes made since, not of the size of
+     * the pool. Savepoints nest; every one must eventually be released or rolled back past, and
+     * a {@link #copy()} starts with none.
+     *
+     * @return the savepoint, to pass to {@link #rollbackTo} or {@link #release}
+     */
+    public int savepoint() {
+        if (undo == null) undo = new ArrayList<Undo>();
+        if (depth == savepoints.length) {
+            savepoints = Arrays.copyOf(savepoints, depth * 2);
+            savepointIds = Arrays.copyOf(savepointIds, depth * 2);
+        }
+        savepoints[depth] = undo.size();
+        savepointIds[depth] = nextSavepointId++;
+        return savepointIds[depth++];
+    }
+
+    /**
+     * Undoes every change made since {@code savepoint} was opened. The savepoint stays open, so
+     * the pool can go on from it and be rolled back to it again; savepoints opened after it are
+     * closed.
+     *
+     * @throws IllegalStateException if {@code savepoint} is not open
+     */
+    public void rollbackTo(int savepoint) {
+        int level = level(savepoint);
+        int start = savepoints[level];
+        ArrayList<Undo> log = undo;
+        undo = null; // restoring an output is not itself a change to undo
+        try {
+            for (int i = log.size() - 1; i >= start; i--) {
+                Undo u = log.get(i);
+                if (u.previous == null) {
+                    removeUTXO(u.txHash, u.index);
+                } else {
+                    addUTXO(u.txHash, u.index, u.previous);
+                }
+            }
+            log.subList(start, log.size()).clear();
+        } finally {
+            undo = log;
+        }
+        depth = level + 1;
+    }
+
+    /**
+     * Closes {@code savepoint} and the savepoints opened after it, keeping the changes made since.
+     * Once the outermost savepoint is released the pool stops recording changes.
+     *
+     * @throws IllegalStateException if {@code savepoint} is not open
+     */
+    public void release(int savepoint) {
+        depth = level(savepoint);
+        if (depth == 0) undo = null;
+    }
+
+    /** @return the nesting level of the open savepoint {@code savepoint} */
+    private int level(int savepoint) {
+        for (int i = depth - 1; i >= 0; i--) {
+            if (savepointIds[i] == savepoint) return i;
+        }
+        throw new IllegalStateException("Savepoint " + savepoint + " is not open");
+    }
+
+    /**
+     * Records the output currently stored for output {@code index} of transaction {@code txHash}
+     * if a savepoint is open. Every method that changes the pool calls this before changing it.
+     * A record for the same output right after another one since the innermost savepoint adds
+     * nothing, so it is skipped; this is also what makes it safe for a subclass to call it and
+     * then pass the change on to this class.
+     */
+    protected final void journal(byte[] txHash, int index) {
+        if (undo == null || txHash == null) return;
+        if (undo.size() > savepoints[depth - 1]) {
+            Undo last = undo.get(undo.size() - 1);
+            if (last.index == index && Arrays.equals(last.txHash, txHash)) return;
+        }
+        undo.add(new Undo(Arrays.copyOf(txHash, txHash.length), index, getTxOutput(txHash, index)));
+    }
+
+    /** One entry of the undo log: the output stored for an outpoint before a change, or null */
+    private static final class Undo {
+        final byte[] txHash;
+        final int index;
+        final Transaction.Output previous;
+
+        Undo(byte[] txHash, int index, Transaction.Output previous) {
+            this.txHash = txHash;
+            this.index = index;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Writes every UTXO of the pool to {@code file}, from where {@link UTXOSnapshot#open} maps it
+     * back without rebuilding the pool.
+     */
+    public void writeSnapshot(Path file) throws IOException {
+        UTXOSnapshot.write(this, file);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
         Set<UTXO> setUTXO = H.keySet();
@@ -0,0 +1,165 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.security.PublicKey;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Compares the {@code HashMap} based {@link UTXOPool} with {@link PackedUTXOPool},
+ * {@link OffHeapUTXOPool} and {@link PersistentUTXOPool}: time to load the pool, heap it keeps
+ * alive, lookup rate, time to {@link UTXOPool#copy() copy} it and the GC pauses seen while
+ * spending and creating outputs on a full pool, plus the duration of one full collection with the
+ * pool live.
+ * <p>
+ * Run with a comma separated list of pool sizes (default {@code 10000000,50000000}) and an
+ * optional number of churn operations (default 2000000). The largest default size needs a big
+ * heap for the {@code HashMap} pool, e.g. {@code -Xmx16g -XX:MaxDirectMemorySize=8g}; a backend
+ * that runs out of memory is reported as such and the others still run.
+ */
+public class UTXOPoolBenchmark {
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /** Number of distinct addresses the outputs are spread over */
+    private static final int ADDRESSES = 64;
+
+    private static final AtomicLong pauseCount = new AtomicLong();
+    private static final AtomicLong pauseTotal = new AtomicLong();
+    private static final AtomicLong pauseMax = new AtomicLong();
+
+    /** Keeps the JIT from discarding the measured lookups */
+    private static volatile double sink;
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "10000000,50000000").split(",");
+        int churn = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+        PublicKey[] addresses = new PublicKey[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = SignatureScheme.ECDSA_P256.generateKeyPair().getPublic();
+        }
+        listenToCollections();
+
+        System.out.println(String.format("%-10s %-10s %9s %10s %11s %10s %8s %11s %10s %11s",
+                "entries", "pool", "load s", "heap MB", "lookups/s", "copy ms", "GCs", "pause ms", "max ms",
+                "full GC ms"));
+        for (String s : sizes) {
+            int size = Integer.parseInt(s.trim());
+            run("HashMap", size, churn, addresses, n -> new UTXOPool());
+            run("Packed", size, churn, addresses, PackedUTXOPool::new);
+            run("OffHeap", size, churn, addresses, OffHeapUTXOPool::new);
+            run("Persistent", size, churn, addresses, n -> new PersistentUTXOPool());
+        }
+    }
+
+    private static void run(String name, int size, int churn, PublicKey[] addresses,
+                            IntFunction<UTXOPool> factory) throws InterruptedException {
+        collect();
+        long heapBefore = usedHeap();
+        try {
+            byte[] hash = new byte[32];
+            long startTime = System.nanoTime();
+            UTXOPool pool = factory.apply(size);
+            for (int i = 0; i < size; i++) {
+                pool.addUTXO(hashOf(i, hash), i & 3, new Transaction.Output(i & 1023, addresses[i % ADDRESSES]));
+            }
+            double load = (System.nanoTime() - startTime) / 1e9;
+            collect();
+            long heap = usedHeap() - heapBefore;
+
+            // lookups of random live outputs
+            SplittableRandom rnd = new SplittableRandom(1);
+            double total = 0;
+            startTime = System.nanoTime();
+            for (int i = 0; i < churn; i++) {
+                int e = rnd.nextInt(size);
+                total += pool.getTxOutput(hashOf(e, hash), e & 3).value;
+            }
+            double lookups = churn / ((System.nanoTime() - startTime) / 1e9);
+            sink = total;
+
+            // what TxHandler and Greedy do on construction; the copy is dropped before the churn
+            startTime = System.nanoTime();
+            sink = pool.copy().size();
+            double copy = (System.nanoTime() - startTime) / 1e6;
+
+            // spend the oldest output and create a new one, keeping the pool size constant
+            resetPauses();
+            for (int i = size; i < size + churn; i++) {
+                int old = i - size;
+                pool.removeUTXO(hashOf(old, hash), old & 3);
+                pool.addUTXO(new UTXO(hashOf(i, hash), i & 3),
+                        new Transaction.Output(i & 1023, addresses[i % ADDRESSES]));
+            }
+            Thread.sleep(200); // notifications are delivered asynchronously
+            long count = pauseCount.get(), pauses = pauseTotal.get(), max = pauseMax.get();
+
+            resetPauses();
+            System.gc();
+            Thread.sleep(200);
+            long full = pauseTotal.get();
+            sink = pool.size();
+
+            System.out.println(String.format("%-10d %-10s %9.1f %10d %11.0f %10.1f %8d %11d %10d %11d",
+                    size, name, load, heap >> 20, lookups, copy, count, pauses, max, full));
+        } catch (OutOfMemoryError e) {
+            System.out.println(String.format("%-10d %-10s out of memory (%s)", size, name, e.getMessage()));
+        }
+    }
+
+    /** @return a hash that is a fixed function of {@code i}, written into {@code hash} */
+    private static byte[] hashOf(int i, byte[] hash) {
+        long x = i;
+        for (int w = 0; w < 4; w++) {
+            x += 0x9E3779B97F4A7C15L;
+            long z = x;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            LONGS.set(hash, w * Long.BYTES, z ^ (z >>> 31));
+        }
+        return hash;
+    }
+
+    private static void listenToCollections() {
+        NotificationListener listener = (notification, handback) -> {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            long duration = info.getGcInfo().getDuration();
+            pauseCount.incrementAndGet();
+            pauseTotal.addAndGet(duration);
+            pauseMax.accumulateAndGet(duration, Math::max);
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+        }
+    }
+
+    private static void resetPauses() {
+        pauseCount.set(0);
+        pauseTotal.set(0);
+        pauseMax.set(0);
+    }
+
+    private static void collect() throws InterruptedException {
+        System.gc();
+        Thread.sleep(100);
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,570 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * A {@link UTXOPool} backed by a snapshot file that is mapped into memory instead of being read.
+ * <p>
+ * {@link #write} stores a pool as a ready-made {@link OpenAddressing} table, with the slot layout
+ * of {@link OffHeapUTXOPool} but always big-endian where the off-heap pool uses the native byte
+ * order, followed by a CRC32C per block of slots and the encoded addresses.
+ * {@link #open} checks the header and maps the table; nothing else is read, so opening takes the
+ * same time for any number of entries and the pages of the table are faulted in by the operating
+ * system as lookups touch them. Each block is checked against its CRC the first time a lookup
+ * reaches it, and addresses are decoded the first time an output of theirs is returned.
+ * <p>
+ * The file is never modified: outputs added after opening are kept in the {@code HashMap} of the
+ * base class and removed ones are marked in a bit set over the slots of the table, so
+ * {@link #copy()} only copies those changes. Write a new snapshot with
+ * {@link UTXOPool#writeSnapshot} to fold them in. Like {@link UTXOPool}, this class is not
+ * thread-safe.
+ * <pre>
+ * header  = "SCUS" | version (u8) | 3 unused bytes | capacity (i32) | count (i32)
+ *         | blockSlots (i32) | addressCount (i32) | tableOffset (i64) | crcOffset (i64)
+ *         | addressOffset (i64) | fileLength (i64) | addressCrc (i32) | headerCrc (i32)
+ * table   = capacity slots of hash (32 bytes) | index (i32) | address id + 1 (i32) | value (f64)
+ * crcs    = one CRC32C (i32) per block of blockSlots slots
+ * address = addressCount section offsets (i64), then per address scheme id (u8) | keyLen (u16) | key
+ * </pre>
+ */
+public class UTXOSnapshot extends UTXOPool {
+
+    public static final byte VERSION = 1;
+
+    private static final byte[] MAGIC = {'S', 'C', 'U', 'S'};
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_CRC_OFFSET = 60;
+
+    private static final int HASH_LENGTH = 32;
+    private static final int INDEX_OFFSET = 32;
+    private static final int ADDRESS_OFFSET = 36;
+    private static final int VALUE_OFFSET = 40;
+    private static final int SLOT_SIZE = 48;
+
+    private static final int SEGMENT_SLOTS = 1 << 20;
+    private static final int BLOCK_SLOTS = 1024;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path file;
+    private final ByteBuffer[] segments;
+    private final int segmentShift;
+    private final int segmentMask;
+    /** the mapped table, checking each block the first time a lookup reads it */
+    private final Table table;
+    private final int mask;
+    private final int count;
+    private final int blockSlots;
+    private final ByteBuffer crcs;
+    private final ByteBuffer addressSection;
+    private final PublicKey[] addresses;
+    /** blocks whose CRC has been checked */
+    private final BitSet verified;
+    /** slots of the file that were spent or replaced after opening */
+    private final BitSet removed;
+    private int removedCount;
+
+    private UTXOSnapshot(Path file, ByteBuffer[] segments, int capacity, int count, int blockSlots,
+                         ByteBuffer crcs, ByteBuffer addressSection, int addressCount) {
+        this.file = file;
+        this.segments = segments;
+        int segmentSlots = Math.min(capacity, SEGMENT_SLOTS);
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSlots);
+        this.segmentMask = segmentSlots - 1;
+        this.mask = capacity - 1;
+        this.count = count;
+        this.blockSlots = blockSlots;
+        this.crcs = crcs;
+        this.addressSection = addressSection;
+        this.addresses = new PublicKey[addressCount];
+        this.verified = new BitSet();
+        this.removed = new BitSet();
+        this.table = new Table(segments, segmentShift, segmentMask, this::verify);
+    }
+
+    private UTXOSnapshot(UTXOSnapshot other) {
+        file = other.file;
+        segments = other.segments;
+        segmentShift = other.segmentShift;
+        segmentMask = other.segmentMask;
+        mask = other.mask;
+        count = other.count;
+        blockSlots = other.blockSlots;
+        crcs = other.crcs;
+        addressSection = other.addressSection;
+        addresses = other.addresses.clone();
+        verified = (BitSet) other.verified.clone();
+        removed = (BitSet) other.removed.clone();
+        removedCount = other.removedCount;
+        table = new Table(segments, segmentShift, segmentMask, this::verify);
+        for (UTXO ut : other.overlay()) {
+            super.addUTXO(ut, other.overlayOutput(ut));
+        }
+    }
+
+    /**
+     * Writes every entry of {@code pool} to {@code file}. The snapshot is written to a temporary
+     * file next to it and moved into place once it is complete, so a crash never leaves a
+     * half-written snapshot under {@code file}.
+     *
+     * @throws IllegalArgumentException if the pool holds a hash that is not 32 bytes long or an
+     *         address that does not belong to a {@link SignatureScheme}
+     */
+    public static void write(UTXOPool pool, Path file) throws IOException {
+        List<UTXO> utxos = pool.getAllUTXO();
+        int capacity = capacityFor(utxos.size());
+        int blockSlots = Math.min(capacity, BLOCK_SLOTS);
+        int blocks = capacity / blockSlots;
+
+        // addresses are stored once and referenced by id from the slots
+        Map<PublicKey, Integer> ids = new HashMap<>();
+        List<byte[]> encodedAddresses = new ArrayList<>();
+        List<Byte> schemes = new ArrayList<>();
+
+        long tableOffset = HEADER_SIZE;
+        long crcOffset = tableOffset + (long) capacity * SLOT_SIZE;
+        long addressOffset = crcOffset + (long) blocks * Integer.BYTES;
+
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer[] segments = mapTable(channel, FileChannel.MapMode.READ_WRITE, tableOffset, capacity);
+                int segmentShift = Integer.numberOfTrailingZeros(Math.min(capacity, SEGMENT_SLOTS));
+                int segmentMask = Math.min(capacity, SEGMENT_SLOTS) - 1;
+                Table table = new Table(segments, segmentShift, segmentMask, null);
+
+                for (UTXO ut : utxos) {
+                    byte[] hash = ut.getTxHash();
+                    if (hash.length != HASH_LENGTH) {
+                        throw new IllegalArgumentException("Snapshots only hold 32-byte transaction hashes");
+                    }
+                    Transaction.Output out = pool.getTxOutput(ut);
+                    int id = 0;
+                    if (out.address != null) {
+                        Integer known = ids.get(out.address);
+                        if (known == null) {
+                            SignatureScheme scheme = SignatureScheme.forKey(out.address);
+                            if (scheme == null) {
+                                throw new IllegalArgumentException("Output has an unsupported address type");
+                            }
+                            known = encodedAddresses.size() + 1;
+                            ids.put(out.address, known);
+                            encodedAddresses.add(out.address.getEncoded());
+                            schemes.add(scheme.getId());
+                        }
+                        id = known;
+                    }
+                    // outpoints are unique in a pool, so the probe always ends on a free slot
+                    int slot = ~OpenAddressing.find(table, capacity - 1, word(hash, 0), word(hash, 1),
+                            word(hash, 2), word(hash, 3), ut.getIndex());
+                    ByteBuffer b = table.segment(slot);
+                    int o = table.offset(slot);
+                    b.position(o);
+                    b.put(hash);
+                    b.putInt(o + INDEX_OFFSET, ut.getIndex());
+                    b.putInt(o + ADDRESS_OFFSET, id + 1);
+                    b.putDouble(o + VALUE_OFFSET, out.value);
+                }
+
+                // one CRC per block, now that the table is complete
+                ByteBuffer crcSection = ByteBuffer.allocate(blocks * Integer.BYTES);
+                for (int block = 0; block < blocks; block++) {
+                    crcSection.putInt(blockCrc(segments, segmentShift, segmentMask, block, blockSlots));
+                }
+                for (ByteBuffer segment : segments) {
+                    ((MappedByteBuffer) segment).force();
+                }
+                crcSection.flip();
+                writeFully(channel, crcSection, crcOffset);
+
+                int addressCount = encodedAddresses.size() + 1; // id 0 is the null address
+                int addressBytes = addressCount * Long.BYTES;
+                for (byte[] a : encodedAddresses) addressBytes += 1 + 2 + a.length;
+                ByteBuffer addressSection = ByteBuffer.allocate(addressBytes);
+                long next = (long) addressCount * Long.BYTES; // offsets are relative to the section
+                addressSection.putLong(-1); // null address
+                for (byte[] a : encodedAddresses) {
+                    addressSection.putLong(next);
+                    next += 1 + 2 + a.length;
+                }
+                for (int i = 0; i < encodedAddresses.size(); i++) {
+                    byte[] a = encodedAddresses.get(i);
+                    addressSection.put(schemes.get(i));
+                    addressSection.putShort((short) a.length);
+                    addressSection.put(a);
+                }
+                addressSection.flip();
+                CRC32C addressCrc = new CRC32C();
+                addressCrc.update(addressSection.duplicate());
+                writeFully(channel, addressSection, addressOffset);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC).put(VERSION).put(new byte[3]);
+                header.putInt(capacity).putInt(utxos.size()).putInt(blockSlots).putInt(addressCount);
+                header.putLong(tableOffset).putLong(crcOffset).putLong(addressOffset)
+                        .putLong(addressOffset + addressBytes);
+                header.putInt((int) addressCrc.getValue());
+                CRC32C headerCrc = new CRC32C();
+                headerCrc.update(header.array(), 0, HEADER_CRC_OFFSET);
+                header.putInt((int) headerCrc.getValue());
+                header.flip();
+                writeFully(channel, header, 0);
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Maps the snapshot in {@code file}. Only the header and the address section are checked here;
+     * each block of the table is checked the first time it is read.
+     *
+     * @throws IllegalArgumentException if the file is not a snapshot of this version or its header
+     *         or address section is corrupt
+     */
+    public static UTXOSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IllegalArgumentException("Not a UTXO snapshot");
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+            for (byte m : MAGIC) {
+                if (header.get() != m) throw new IllegalArgumentException("Not a UTXO snapshot");
+            }
+            byte version = header.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported snapshot format version " + version);
+            }
+            CRC32C headerCrc = new CRC32C();
+            headerCrc.update(header.array(), 0, HEADER_CRC_OFFSET);
+            if ((int) headerCrc.getValue() != header.getInt(HEADER_CRC_OFFSET)) {
+                throw new IllegalArgumentException("Snapshot header is corrupt");
+            }
+            header.position(8);
+            int capacity = header.getInt();
+            int count = header.getInt();
+            int blockSlots = header.getInt();
+            int addressCount = header.getInt();
+            long tableOffset = header.getLong();
+            long crcOffset = header.getLong();
+            long addressOffset = header.getLong();
+            long fileLength = header.getLong();
+            int addressCrc = header.getInt();
+            if (fileLength != channel.size()) {
+                throw new IllegalArgumentException("Snapshot is truncated");
+            }
+
+            ByteBuffer[] segments = mapTable(channel, FileChannel.MapMode.READ_ONLY, tableOffset, capacity);
+            ByteBuffer crcs = channel.map(FileChannel.MapMode.READ_ONLY, crcOffset, addressOffset - crcOffset);
+            ByteBuffer addressSection = channel.map(FileChannel.MapMode.READ_ONLY, addressOffset,
+                    fileLength - addressOffset);
+            CRC32C crc = new CRC32C();
+            crc.update(addressSection.duplicate());
+            if ((int) crc.getValue() != addressCrc) {
+                throw new IllegalArgumentException("Snapshot address section is corrupt");
+            }
+            return new UTXOSnapshot(file, segments, capacity, count, blockSlots, crcs, addressSection,
+                    addressCount);
+        }
+    }
+
+    /** @return the file this pool was opened from */
+    public Path getFile() {
+        return file;
+    }
+
+    /** @return a copy sharing the mapped file, with its own copy of the changes made since opening */
+    @Override
+    public UTXOSnapshot copy() {
+        return new UTXOSnapshot(this);
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        addUTXO(utxo.getTxHash(), utxo.getIndex(), txOut);
+    }
+
+    @Override
+    public void addUTXO(byte[] txHash, int index, Transaction.Output txOut) {
+        journal(txHash, index);
+        int slot = liveSlot(txHash, index);
+        if (slot >= 0) {
+            markRemoved(slot); // the new output replaces the one in the file
+        }
+        super.addUTXO(txHash, index, txOut);
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        removeUTXO(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public void removeUTXO(byte[] txHash, int index) {
+        journal(txHash, index);
+        if (super.contains(txHash, index)) {
+            super.removeUTXO(txHash, index);
+            return;
+        }
+        int slot = liveSlot(txHash, index);
+        if (slot >= 0) {
+            markRemoved(slot);
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return getTxOutput(ut.getTxHash(), ut.getIndex());
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        Transaction.Output out = super.getTxOutput(txHash, index);
+        if (out != null) return out;
+        int slot = liveSlot(txHash, index);
+        if (slot < 0) return null;
+        ByteBuffer b = segment(slot);
+        int o = offset(slot);
+        return new Transaction.Output(b.getDouble(o + VALUE_OFFSET), address(b.getInt(o + ADDRESS_OFFSET) - 1));
+    }
+
+    @Override
+    public double getValue(byte[] txHash, int index) {
+        if (super.contains(txHash, index)) return super.getValue(txHash, index);
+        int slot = liveSlot(txHash, index);
+        return slot < 0 ? Double.NaN : segment(slot).getDouble(offset(slot) + VALUE_OFFSET);
+    }
+
+    @Override
+    public PublicKey getAddress(byte[] txHash, int index) {
+        if (super.contains(txHash, index)) return super.getAddress(txHash, index);
+        int slot = liveSlot(txHash, index);
+        return slot < 0 ? null : address(segment(slot).getInt(offset(slot) + ADDRESS_OFFSET) - 1);
+    }
+
+    /** Looks the hash up in place while nothing was added on top of the file */
+    @Override
+    public double getValue(ByteBuffer buf, int offset, int length, int index) {
+        if (super.size() > 0 || length != HASH_LENGTH) {
+            return super.getValue(buf, offset, length, index);
+        }
+        int slot = liveSlot(buf, offset, index);
+        return slot < 0 ? Double.NaN : segment(slot).getDouble(offset(slot) + VALUE_OFFSET);
+    }
+
+    /** Looks the hash up in place while nothing was added on top of the file */
+    @Override
+    public PublicKey getAddress(ByteBuffer buf, int offset, int length, int index) {
+        if (super.size() > 0 || length != HASH_LENGTH) {
+            return super.getAddress(buf, offset, length, index);
+        }
+        int slot = liveSlot(buf, offset, index);
+        return slot < 0 ? null : address(segment(slot).getInt(offset(slot) + ADDRESS_OFFSET) - 1);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return super.contains(txHash, index) || liveSlot(txHash, index) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return count - removedCount + super.size();
+    }
+
+    /** Reads the whole table, checking every block that was not checked yet */
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> all = new ArrayList<UTXO>(size());
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int slot = 0; slot <= mask; slot++) {
+            verify(slot);
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            if (b.getInt(o + ADDRESS_OFFSET) == 0 || removed.get(slot)) continue;
+            for (int w = 0; w < 4; w++) {
+                LONGS.set(hash, w * Long.BYTES, b.getLong(o + w * Long.BYTES));
+            }
+            all.add(new UTXO(hash, b.getInt(o + INDEX_OFFSET)));
+        }
+        all.addAll(super.getAllUTXO());
+        return all;
+    }
+
+    private ArrayList<UTXO> overlay() {
+        return super.getAllUTXO();
+    }
+
+    private Transaction.Output overlayOutput(UTXO ut) {
+        return super.getTxOutput(ut);
+    }
+
+    private void markRemoved(int slot) {
+        removed.set(slot);
+        removedCount++;
+    }
+
+    /** @return the slot of the outpoint in the file, or -1 if it is not there or was removed */
+    private int liveSlot(byte[] txHash, int index) {
+        if (txHash == null || txHash.length != HASH_LENGTH) return -1;
+        int slot = OpenAddressing.find(table, mask, word(txHash, 0), word(txHash, 1), word(txHash, 2),
+                word(txHash, 3), index);
+        return slot < 0 || removed.get(slot) ? -1 : slot;
+    }
+
+    /** Same as {@link #liveSlot(byte[], int)} for the 32-byte hash at {@code offset} in {@code buf} */
+    private int liveSlot(ByteBuffer buf, int offset, int index) {
+        int slot = OpenAddressing.find(table, mask, word(buf, offset, 0), word(buf, offset, 1),
+                word(buf, offset, 2), word(buf, offset, 3), index);
+        return slot < 0 || removed.get(slot) ? -1 : slot;
+    }
+
+    /** Checks the block holding {@code slot} against its CRC the first time it is read */
+    private void verify(int slot) {
+        int block = slot / blockSlots;
+        if (verified.get(block)) return;
+        int crc = blockCrc(segments, segmentShift, segmentMask, block, blockSlots);
+        if (crc != crcs.getInt(block * Integer.BYTES)) {
+            throw new IllegalStateException("Block " + block + " of snapshot " + file + " is corrupt");
+        }
+        verified.set(block);
+    }
+
+    private PublicKey address(int id) {
+        if (id == 0) return null;
+        PublicKey key = addresses[id];
+        if (key == null) {
+            int offset = (int) addressSection.getLong(id * Long.BYTES);
+            byte scheme = addressSection.get(offset);
+            int length = Short.toUnsignedInt(addressSection.getShort(offset + 1));
+            key = TransactionCodec.decodeAddress(scheme, addressSection, offset + 3, length);
+            addresses[id] = key;
+        }
+        return key;
+    }
+
+    private ByteBuffer segment(int slot) {
+        return table.segment(slot);
+    }
+
+    private int offset(int slot) {
+        return table.offset(slot);
+    }
+
+    private static int blockCrc(ByteBuffer[] segments, int segmentShift, int segmentMask, int block,
+                                int blockSlots) {
+        int first = block * blockSlots;
+        ByteBuffer b = segments[first >>> segmentShift].duplicate();
+        int o = (first & segmentMask) * SLOT_SIZE;
+        b.limit(o + blockSlots * SLOT_SIZE).position(o);
+        CRC32C crc = new CRC32C();
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer[] mapTable(FileChannel channel, FileChannel.MapMode mode, long tableOffset,
+                                         int capacity) throws IOException {
+        int segmentSlots = Math.min(capacity, SEGMENT_SLOTS);
+        ByteBuffer[] segments = new ByteBuffer[capacity / segmentSlots];
+        long segmentBytes = (long) segmentSlots * SLOT_SIZE;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = channel.map(mode, tableOffset + i * segmentBytes, segmentBytes);
+        }
+        return segments;
+    }
+
+    private static long word(byte[] txHash, int w) {
+        return (long) LONGS.get(txHash, w * Long.BYTES);
+    }
+
+    private static long word(ByteBuffer buf, int offset, int w) {
+        return OpenAddressing.word(buf, offset, w, ByteOrder.BIG_ENDIAN);
+    }
+
+    private static int capacityFor(int size) {
+        return OpenAddressing.capacityFor(size, MAX_CAPACITY, "A snapshot");
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) throw new IllegalArgumentException("Snapshot is truncated");
+            position += n;
+        }
+    }
+
+    /**
+     * The slots of a mapped table, for {@link OpenAddressing} lookups. The table in the file is
+     * never changed in place, so only the read-only {@link OpenAddressing.Slots} are given.
+     */
+    private static final class Table implements OpenAddressing.Slots {
+        private final ByteBuffer[] segments;
+        private final int segmentShift;
+        private final int segmentMask;
+        /** called with each slot before it is read, or null */
+        private final IntConsumer check;
+
+        Table(ByteBuffer[] segments, int segmentShift, int segmentMask, IntConsumer check) {
+            this.segments = segments;
+            this.segmentShift = segmentShift;
+            this.segmentMask = segmentMask;
+            this.check = check;
+        }
+
+        ByteBuffer segment(int slot) {
+            return segments[slot >>> segmentShift];
+        }
+
+        int offset(int slot) {
+            return (slot & segmentMask) * SLOT_SIZE;
+        }
+
+        @Override
+        public boolean occupied(int slot) {
+            if (check != null) check.accept(slot);
+            return segment(slot).getInt(offset(slot) + ADDRESS_OFFSET) != 0;
+        }
+
+        @Override
+        public boolean holds(int slot, long w0, long w1, long w2, long w3, int index) {
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            return b.getInt(o + INDEX_OFFSET) == index && b.getLong(o) == w0 && b.getLong(o + 8) == w1
+                    && b.getLong(o + 16) == w2 && b.getLong(o + 24) == w3;
+        }
+    }
+}
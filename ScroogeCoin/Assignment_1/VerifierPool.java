@@ -0,0 +1,107 @@
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps {@link Signature} objects that are already initialised for verification, one set per
+ * thread.
+ * <p>
+ * {@code Signature.getInstance} does a provider lookup and {@code initVerify} parses the key; both
+ * cost a noticeable amount before the actual RSA math starts. After {@link Signature#verify} the
+ * object is reset to the state it had right after {@code initVerify}, so a verifier can be reused
+ * for every further input signed by the same key. Each thread keeps the verifiers of its most
+ * recently used keys, so no locking is needed.
+ */
+public class VerifierPool {
+
+    /** Number of pre-initialised verifiers kept per thread */
+    private static final int KEYS_PER_THREAD = 64;
+
+    private final String algorithm;
+
+    private final ThreadLocal<LinkedHashMap<PublicKey, Signature>> verifiers =
+            ThreadLocal.withInitial(() -> new LinkedHashMap<PublicKey, Signature>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PublicKey, Signature> eldest) {
+                    return size() > KEYS_PER_THREAD;
+                }
+            });
+
+    private final ThreadLocal<Signature> signers;
+
+    /**
+     * Creates a pool of verifiers for the given JCA signature algorithm, e.g. "SHA256withRSA".
+     *
+     * @throws IllegalStateException if the algorithm is not available in this JVM
+     */
+    public VerifierPool(String algorithm) {
+        this.algorithm = algorithm;
+        newSignature(); // fail fast on an unknown algorithm
+        signers = ThreadLocal.withInitial(this::newSignature);
+    }
+
+    /** @return the JCA algorithm name of the signatures in this pool */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under
+     *         {@code pubKey}. A missing argument, a key of the wrong type or a malformed signature
+     *         all make the signature invalid rather than raising an exception.
+     */
+    public boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (pubKey == null || message == null || signature == null) {
+            return false;
+        }
+        LinkedHashMap<PublicKey, Signature> cache = verifiers.get();
+        Signature sig = cache.get(pubKey);
+        if (sig == null) {
+            sig = newSignature();
+            try {
+                sig.initVerify(pubKey);
+            } catch (InvalidKeyException e) {
+                return false;
+            }
+            cache.put(pubKey, sig);
+        }
+        try {
+            sig.update(message);
+            return sig.verify(signature);
+        } catch (SignatureException e) {
+            // the object may have been left mid-operation, do not hand it out again
+            cache.remove(pubKey);
+            return false;
+        }
+    }
+
+    /**
+     * @return the signature of {@code message} under {@code privateKey}
+     * @throws IllegalArgumentException if the key cannot be used with this algorithm
+     */
+    public byte[] sign(PrivateKey privateKey, byte[] message) {
+        Signature signer = signers.get();
+        try {
+            signer.initSign(privateKey);
+            signer.update(message);
+            return signer.sign();
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException("Key cannot be used for " + algorithm, e);
+        } catch (SignatureException e) {
+            throw new IllegalStateException("Signing with " + algorithm + " failed", e);
+        }
+    }
+
+    private Signature newSignature() {
+        try {
+            return Signature.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " is not available", e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+
+/**
+ * Compares the throughput of {@link TxHandler#handleTxs} with and without a
+ * {@link WriteAheadLog}, and the time to recover the pool from the log.
+ * Run with an optional number of transactions (default 20000) and batch size (default 200);
+ * every batch is one {@code handleTxs} call and so one {@code fsync}.
+ */
+public class WalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        KeyPair alice = SignatureScheme.DEFAULT.generateKeyPair();
+        KeyPair bob = SignatureScheme.DEFAULT.generateKeyPair();
+
+        // one genesis output per transaction, each spent by a signed two-output payment
+        Transaction genesis = new Transaction();
+        for (int i = 0; i < count; i++) genesis.addOutput(10, alice.getPublic());
+        genesis.finalize();
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < count; i++) pool.addUTXO(genesis.getHash(), i, genesis.getOutput(i));
+
+        Transaction[] txs = new Transaction[count];
+        for (int i = 0; i < count; i++) {
+            Transaction tx = new Transaction();
+            tx.addInput(genesis.getHash(), i);
+            tx.addOutput(6, bob.getPublic());
+            tx.addOutput(3, alice.getPublic());
+            tx.addSignature(Crypto.sign(alice.getPrivate(), tx.getRawDataToSign(0)), 0);
+            tx.finalize();
+            txs[i] = tx;
+        }
+
+        run("warm-up", pool, txs, batchSize, null);
+        double memory = run("in memory", pool, txs, batchSize, null);
+
+        Path dir = Files.createTempDirectory("wal");
+        Path log = dir.resolve("utxo.wal");
+        try (WriteAheadLog wal = WriteAheadLog.open(log)) {
+            double logged = run("write-ahead log", pool, txs, batchSize, wal);
+            System.out.println(String.format("%d syncs, %d bytes logged, %.2fx the in-memory time",
+                    wal.getSyncCount(), Files.size(log), logged / memory));
+        }
+
+        long startTime = System.nanoTime();
+        UTXOPool recovered = new UTXOPool(pool);
+        long replayed = WriteAheadLog.replay(log, recovered);
+        double recovery = (System.nanoTime() - startTime) / 1_000_000.0;
+        System.out.println(String.format("Recovered %d transactions in %.1f ms, pool of %d outputs",
+                replayed, recovery, recovered.size()));
+
+        Files.delete(log);
+        Files.delete(dir);
+    }
+
+    /** @return the elapsed milliseconds */
+    private static double run(String name, UTXOPool pool, Transaction[] txs, int batchSize, WriteAheadLog wal) {
+        TxHandler handler = new TxHandler(pool);
+        handler.setWriteAheadLog(wal);
+        int accepted = 0;
+        long startTime = System.nanoTime();
+        for (int from = 0; from < txs.length; from += batchSize) {
+            Transaction[] batch = new Transaction[Math.min(batchSize, txs.length - from)];
+            System.arraycopy(txs, from, batch, 0, batch.length);
+            accepted += handler.handleTxs(batch).length;
+        }
+        double elapsed = (System.nanoTime() - startTime) / 1_000_000.0;
+        if (!name.equals("warm-up")) {
+            System.out.println(String.format("%-16s %8d txs %10.1f ms %10.0f tx/s", name, accepted, elapsed,
+                    accepted / (elapsed / 1000)));
+        }
+        return elapsed;
+    }
+}
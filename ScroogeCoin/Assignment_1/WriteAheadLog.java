@@ -0,0 +1,294 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the transactions a {@link TxHandler} applies to its pool, so that a crash
+ * between two snapshots loses nothing that {@link TxHandler#handleTxs} already returned.
+ * <p>
+ * Each accepted transaction is logged as its hash and its {@link TransactionCodec} encoding, which
+ * is also its UTXO delta: it spends the outputs its inputs name and creates its own outputs under
+ * its hash. Records are buffered in memory and {@link #commit()} writes them with a commit marker
+ * and a single {@code fsync}, so one {@code handleTxs} call costs one sync however many
+ * transactions it accepts. When several threads commit at the same time, one sync covers all of
+ * them. After a crash, {@link #recover} opens the last snapshot and replays every committed
+ * transaction; records after the last commit marker, including a torn final write, are dropped.
+ * <pre>
+ * log    = "SCWL" | version (u8) | record*
+ * record = length (i32) | crc32c of type and payload (i32) | type (u8) | payload
+ * tx     = hashLen (u16) | hash | encoded transaction      (type 1)
+ * commit = no payload                                       (type 2)
+ * </pre>
+ * Replaying a log over a snapshot that already contains its changes gives the same pool, because
+ * every key ends up with the last value the log gives it; this is what makes {@link #checkpoint}
+ * safe to interrupt between writing the snapshot and truncating the log.
+ */
+public class WriteAheadLog implements Closeable {
+
+    public static final byte VERSION = 1;
+
+    private static final byte[] MAGIC = {'S', 'C', 'W', 'L'};
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+    private static final byte TX = 1;
+    private static final byte COMMIT = 2;
+    /** length and CRC in front of every record */
+    private static final int RECORD_OVERHEAD = 2 * Integer.BYTES;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Object syncLock = new Object();
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    /** bytes handed to the channel so far */
+    private volatile long written;
+    /** bytes known to be on disk, guarded by syncLock */
+    private long synced;
+    private long syncCount;
+
+    private WriteAheadLog(Path file, FileChannel channel, long end) {
+        this.file = file;
+        this.channel = channel;
+        this.written = end;
+        this.synced = end;
+    }
+
+    /**
+     * Opens {@code file} for appending, creating it if needed. Anything after the last commit
+     * marker is cut off, so call {@link #recover} first if those transactions matter.
+     *
+     * @throws IllegalArgumentException if the file exists but is not a log of this version
+     */
+    public static WriteAheadLog open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long end;
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).put(VERSION);
+                header.flip();
+                writeFully(channel, header, 0);
+                channel.force(true);
+                end = HEADER_SIZE;
+            } else {
+                end = scan(channel, null, null);
+                channel.truncate(end);
+            }
+            return new WriteAheadLog(file, channel, end);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Rebuilds the pool as of the last commit: the snapshot in {@code snapshot} if that file exists
+     * (an empty pool otherwise) with every committed transaction of {@code log} applied on top.
+     */
+    public static UTXOPool recover(Path snapshot, Path log) throws IOException {
+        UTXOPool pool = Files.exists(snapshot) ? UTXOSnapshot.open(snapshot) : new UTXOPool();
+        replay(log, pool);
+        return pool;
+    }
+
+    /**
+     * Applies every committed transaction of {@code log} to {@code pool}, in order.
+     *
+     * @return the number of transactions applied
+     */
+    public static long replay(Path log, UTXOPool pool) throws IOException {
+        if (!Files.exists(log)) return 0;
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            if (channel.size() == 0) return 0; // created but never written
+            long[] applied = new long[1];
+            scan(channel, pool, applied);
+            return applied[0];
+        }
+    }
+
+    /** Logs {@code tx}, which must already be finalized; it is durable after the next {@link #commit()} */
+    public synchronized void append(Transaction tx) throws IOException {
+        byte[] hash = tx.getHash();
+        int payload = 2 + hash.length + TransactionCodec.encodedSize(tx);
+        ByteBuffer b = reserve(1 + payload);
+        int start = b.position();
+        b.put(TX);
+        b.putShort((short) hash.length).put(hash);
+        TransactionCodec.encode(tx, b);
+        sealRecord(b, start);
+    }
+
+    /** Writes a commit marker and everything before it to disk */
+    public void commit() throws IOException {
+        long end;
+        synchronized (this) {
+            ByteBuffer b = reserve(1);
+            int start = b.position();
+            b.put(COMMIT);
+            sealRecord(b, start);
+            flushBuffer();
+            end = written;
+        }
+        synchronized (syncLock) {
+            if (synced >= end) return; // another thread's sync already covered these records
+            long target = written;
+            channel.force(false);
+            synced = target;
+            syncCount++;
+        }
+    }
+
+    /**
+     * Writes {@code pool} to {@code snapshot} and empties the log, which from then on only holds
+     * changes made after the snapshot. The pool must reflect everything logged so far.
+     */
+    public synchronized void checkpoint(UTXOPool pool, Path snapshot) throws IOException {
+        commit();
+        pool.writeSnapshot(snapshot);
+        synchronized (syncLock) {
+            channel.truncate(HEADER_SIZE);
+            channel.force(true);
+            written = HEADER_SIZE;
+            synced = HEADER_SIZE;
+        }
+    }
+
+    /** @return the file this log appends to */
+    public Path getFile() {
+        return file;
+    }
+
+    /** @return the number of {@code fsync} calls made by {@link #commit()} */
+    public long getSyncCount() {
+        synchronized (syncLock) {
+            return syncCount;
+        }
+    }
+
+    /**
+     * Closes the file. Records appended since the last {@link #commit()} are dropped, just as they
+     * would be by a crash.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.clear();
+        channel.close();
+    }
+
+    /** @return the buffer, with room for a record of {@code size} bytes after the length and CRC */
+    private ByteBuffer reserve(int size) throws IOException {
+        int needed = RECORD_OVERHEAD + size;
+        if (buffer.remaining() < needed) {
+            flushBuffer();
+            if (buffer.capacity() < needed) {
+                buffer = ByteBuffer.allocate(needed);
+            }
+        }
+        buffer.position(buffer.position() + RECORD_OVERHEAD);
+        return buffer;
+    }
+
+    /** Fills in the length and CRC of the record whose type byte is at {@code start} */
+    private static void sealRecord(ByteBuffer b, int start) {
+        CRC32C crc = new CRC32C();
+        crc.update(b.array(), b.arrayOffset() + start, b.position() - start);
+        b.putInt(start - RECORD_OVERHEAD, b.position() - start);
+        b.putInt(start - Integer.BYTES, (int) crc.getValue());
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        long position = written;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        written = position;
+        buffer.clear();
+    }
+
+    /**
+     * Reads the log, applying the transactions of each committed group to {@code pool} and counting
+     * them in {@code applied[0]} if these are not null.
+     *
+     * @return the offset just past the last commit marker
+     */
+    private static long scan(FileChannel channel, UTXOPool pool, long[] applied) throws IOException {
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Write-ahead log over 2 GB, checkpoint more often");
+        }
+        ByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (log.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Not a write-ahead log");
+        }
+        for (byte m : MAGIC) {
+            if (log.get() != m) throw new IllegalArgumentException("Not a write-ahead log");
+        }
+        byte version = log.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported write-ahead log version " + version);
+        }
+
+        long committed = HEADER_SIZE;
+        int groupStart = log.position();
+        CRC32C crc = new CRC32C();
+        while (log.remaining() >= RECORD_OVERHEAD + 1) {
+            int length = log.getInt();
+            int expectedCrc = log.getInt();
+            if (length < 1 || length > log.remaining()) break; // torn write
+            ByteBuffer record = log.slice();
+            record.limit(length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != expectedCrc) break;
+            log.position(log.position() + length);
+
+            if (record.get() == COMMIT) {
+                if (pool != null) applyGroup(log, groupStart, log.position(), pool, applied);
+                committed = log.position();
+                groupStart = log.position();
+            }
+        }
+        return committed;
+    }
+
+    /** Applies the transaction records between {@code from} and {@code to} */
+    private static void applyGroup(ByteBuffer log, int from, int to, UTXOPool pool, long[] applied) {
+        ByteBuffer group = log.duplicate();
+        group.limit(to).position(from);
+        try {
+            while (group.hasRemaining()) {
+                int length = group.getInt();
+                group.getInt(); // CRC, already checked
+                int next = group.position() + length;
+                if (group.get() == TX) {
+                    byte[] hash = new byte[Short.toUnsignedInt(group.getShort())];
+                    group.get(hash);
+                    ByteBuffer encoded = group.slice();
+                    encoded.limit(next - group.position());
+                    Transaction tx = TransactionCodec.decode(encoded);
+                    tx.setHash(hash);
+                    for (Transaction.Input in : tx.getInputs()) {
+                        pool.removeUTXO(in.prevTxHash, in.outputIndex);
+                    }
+                    for (int i = 0; i < tx.numOutputs(); i++) {
+                        pool.addUTXO(hash, i, tx.getOutput(i));
+                    }
+                    applied[0]++;
+                }
+                group.position(next);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Corrupt write-ahead log record", e);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+}
@@ -31,11 +31,11 @@ public class BruteTest {
             super(new UTXOPool());   // dummy pool
             this.accepted = accepted;
 
-            // Put fake fees into the TxHandler.feeMap
+            // Put fake fees into the TxHandler.feeMap and fee index
             for (int i = 0; i < accepted.size(); i++) {
                 Transaction tx = accepted.get(i);
                 float fee = fees.get(i);
-                super.feeMap.put(tx.getHash(), (double) fee);
+                recordFee(tx, fee);
             }
         }
 
@@ -245,4 +245,39 @@ public class BruteTest {
         // We expect it to pick {10, 20} and skip -5
         assertArrayEquals(new float[]{10.0f, 20.0f}, result, 0.0001f);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testMaxAllHonoursFeasibility() {
+        List<Transaction> txs = Arrays.asList(
+                new MockTx(10.0f, 0),
+                new MockTx(5.0f, 1),
+                new MockTx(20.0f, 2)
+        );
+        MockTxHandler handler = new MockTxHandler(txs, Arrays.asList(10f, 5f, 20f));
+        // the first and the last transaction conflict
+        float[] result = Brute.BruteF_MaxAll(handler, mask -> (mask & 0b101) != 0b101);
+        Arrays.sort(result);
+
+        assertArrayEquals(new float[]{5.0f, 20.0f}, result, 0.0001f);
+    }
+
+    @Test
+    public void testBestSubsetMatchesPlainEnumeration() {
+        Random rnd = new Random(9);
+        double[] fees = new double[24]; // more than one leaf of the Gray code walk
+        for (int i = 0; i < fees.length; i++) fees[i] = rnd.nextInt(21) - 5;
+        // an arbitrary constraint: no two neighbours together
+        java.util.function.LongPredicate feasible = mask -> (mask & mask >>> 1) == 0;
+
+        long expected = 0;
+        double expectedSum = 0;
+        for (long mask = 0; mask < 1L << fees.length; mask++) {
+            if (!feasible.test(mask)) continue;
+            double sum = 0;
+            for (int i = 0; i < fees.length; i++) if ((mask & 1L << i) != 0) sum += fees[i];
+            if (sum > expectedSum) { expected = mask; expectedSum = sum; }
+        }
+        assertEquals(expected, Brute.bestSubset(fees, feasible));
+        assertEquals(-1, Brute.bestSubset(fees, mask -> false));
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.HashSet;
+
+/**
+ * The ledger most tests start from: Alice's and Bob's RSA-1024 key pairs, a genesis transaction
+ * paying {@link #VALUE} to Alice in each of its outputs, and a pool holding those outputs. The
+ * keys are generated once and shared by every fixture, since generating them is the slow part.
+ */
+final class LedgerFixture {
+
+    /** value of every genesis output */
+    static final double VALUE = 10.0;
+
+    private static final KeyPair ALICE;
+    private static final KeyPair BOB;
+
+    static {
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+            keyGen.initialize(1024);
+            ALICE = keyGen.generateKeyPair();
+            BOB = keyGen.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    final KeyPair pairAlice = ALICE;
+    final KeyPair pairBob = BOB;
+    final Transaction genesis;
+    /** a fresh pool holding the outputs of {@link #genesis} */
+    final UTXOPool pool;
+
+    LedgerFixture(int outputs) {
+        genesis = new Transaction();
+        for (int i = 0; i < outputs; i++) genesis.addOutput(VALUE, pairAlice.getPublic());
+        genesis.finalize();
+        pool = new UTXOPool();
+        for (int i = 0; i < outputs; i++) pool.addUTXO(genesis.getHash(), i, genesis.getOutput(i));
+    }
+
+    /** @return the key pair of whoever {@code address} belongs to, Alice or Bob */
+    KeyPair owner(PublicKey address) {
+        return address.equals(pairAlice.getPublic()) ? pairAlice : pairBob;
+    }
+
+    /** @return a transaction spending output {@code output} of {@code parent} to {@code to}, paying {@code fee} */
+    Transaction spend(Transaction parent, int output, double fee, PublicKey to) {
+        return spend(parent, new int[]{output}, to, parent.getOutput(output).value - fee);
+    }
+
+    /**
+     * @return a transaction spending outputs {@code outputs} of {@code parent}, with one output to
+     *         {@code to} for each of {@code values}; each input is signed by the owner it spends from
+     */
+    Transaction spend(Transaction parent, int[] outputs, PublicKey to, double... values) {
+        Transaction tx = new Transaction();
+        for (int o : outputs) tx.addInput(parent.getHash(), o);
+        for (double v : values) tx.addOutput(v, to);
+        for (int i = 0; i < outputs.length; i++) {
+            KeyPair signer = owner(parent.getOutput(outputs[i]).address);
+            tx.addSignature(Crypto.sign(signer.getPrivate(), tx.getRawDataToSign(i)), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /** Checks that both pools hold the same outputs at the same outpoints */
+    static void assertSamePool(UTXOPool expected, UTXOPool actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new HashSet<>(expected.getAllUTXO()), new HashSet<>(actual.getAllUTXO()));
+        for (UTXO ut : expected.getAllUTXO()) {
+            assertEquals(expected.getTxOutput(ut).value, actual.getTxOutput(ut).value);
+            assertEquals(expected.getTxOutput(ut).address, actual.getTxOutput(ut).address);
+        }
+    }
+}
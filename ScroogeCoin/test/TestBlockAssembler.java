@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class TestBlockAssembler {
+
+    private LedgerFixture ledger;
+    private UTXOPool pool;
+    private Transaction genesis;
+
+    @BeforeEach
+    public void setUp() {
+        ledger = new LedgerFixture(6);
+        pool = ledger.pool;
+        genesis = ledger.genesis;
+    }
+
+    /** @return a transaction spending one output of {@code parent} to Bob, split evenly over {@code outputs} outputs */
+    private Transaction spend(Transaction parent, int index, double fee, int outputs) {
+        double[] values = new double[outputs];
+        Arrays.fill(values, (parent.getOutput(index).value - fee) / outputs);
+        return ledger.spend(parent, new int[]{index}, ledger.pairBob.getPublic(), values);
+    }
+
+    private static long encodedSize(Transaction[] txs) {
+        long size = 0;
+        for (Transaction tx : txs) size += TransactionCodec.encodedSize(tx);
+        return size;
+    }
+
+    @Test
+    public void testImprovesOnFeeRateOrder() {
+        Transaction dense = spend(genesis, 0, 1.0, 1);
+        Transaction large = spend(genesis, 1, 1.9, 3);
+        long limit = TransactionCodec.encodedSize(large);
+        assertTrue(TransactionCodec.encodedSize(dense) < limit); // either fits, not both
+        Transaction[] candidates = {large, dense};
+        BlockAssembler assembler = new BlockAssembler(pool);
+
+        // the dense one goes first and leaves no room for the large one, which pays more
+        BlockAssembler.Block fast = assembler.assemble(candidates, limit);
+        assertArrayEquals(new Transaction[]{dense}, fast.getTransactions());
+        assertEquals(1.0, fast.getFee(), 1e-9);
+
+        BlockAssembler.Block improved = assembler.assemble(candidates, limit, 1000);
+        assertArrayEquals(new Transaction[]{large}, improved.getTransactions());
+        assertEquals(1.9, improved.getFee(), 1e-9);
+        assertEquals(limit, improved.getSize());
+    }
+
+    @Test
+    public void testRespectsLimitDependenciesAndConflicts() {
+        for (long seed = 0; seed < 4; seed++) {
+            Random rnd = new Random(seed);
+            List<Transaction> candidates = new ArrayList<>();
+            for (int t = 0; t < 30; t++) {
+                boolean child = t > 5 && rnd.nextBoolean();
+                Transaction parent = child ? candidates.get(rnd.nextInt(candidates.size())) : genesis;
+                int index = rnd.nextInt(parent.numOutputs());
+                candidates.add(spend(parent, index, rnd.nextInt(4) / 4.0, 1 + rnd.nextInt(3)));
+            }
+            Collections.shuffle(candidates, rnd);
+            Transaction[] txs = candidates.toArray(new Transaction[0]);
+
+            BlockAssembler assembler = new BlockAssembler(pool, new ParallelValidator(2));
+            assertArrayEquals(new Greedy(pool).selectPackages(txs),
+                    assembler.assemble(txs, Long.MAX_VALUE).getTransactions());
+            for (long limit : new long[]{500, 2000, 5000}) {
+                BlockAssembler.Block fast = assembler.assemble(txs, limit);
+                BlockAssembler.Block improved = assembler.assemble(txs, limit, 200);
+                for (BlockAssembler.Block block : new BlockAssembler.Block[]{fast, improved}) {
+                    Transaction[] chosen = block.getTransactions();
+                    assertEquals(encodedSize(chosen), block.getSize());
+                    assertTrue(block.getSize() <= limit, "seed " + seed);
+                    assertEquals(chosen.length, new TxHandler(pool).handleTxs(chosen).length, "seed " + seed);
+                }
+                assertTrue(improved.getFee() >= fast.getFee() - 1e-9);
+            }
+        }
+    }
+}
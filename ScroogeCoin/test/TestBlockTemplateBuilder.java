@@ -0,0 +1,131 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TestBlockTemplateBuilder {
+
+    private static final int OUTPUTS = 20;
+
+    private LedgerFixture ledger;
+    private TxHandler handler;
+    private Mempool mempool;
+    private Transaction genesis;
+    private int size;
+
+    @BeforeEach
+    public void setUp() {
+        ledger = new LedgerFixture(OUTPUTS);
+        genesis = ledger.genesis;
+        handler = new TxHandler(ledger.pool);
+        mempool = new Mempool(handler, 1 << 20);
+        size = TransactionCodec.encodedSize(spend(genesis, 0, 1.0));
+    }
+
+    /** @return a transaction spending one output of {@code parent}, paying {@code fee}; all have the same size */
+    private Transaction spend(Transaction parent, int output, double fee) {
+        return ledger.spend(parent, output, fee, ledger.pairAlice.getPublic());
+    }
+
+    @Test
+    public void testFollowsArrivalsAndRemovals() {
+        BlockTemplateBuilder builder = new BlockTemplateBuilder(mempool, 3L * size);
+        Transaction a = spend(genesis, 0, 1.0);
+        Transaction b = spend(genesis, 1, 2.0);
+        Transaction c = spend(genesis, 2, 3.0);
+        mempool.add(a);
+        mempool.add(b);
+        mempool.add(c);
+        assertArrayEquals(new Transaction[]{a, b, c}, builder.getTemplate());
+        assertEquals(6.0, builder.getFee(), 1e-9);
+
+        // a better arrival takes the place of the cheapest, a worse one waits
+        Transaction d = spend(genesis, 3, 4.0);
+        Transaction e = spend(genesis, 4, 0.5);
+        mempool.add(d);
+        mempool.add(e);
+        assertArrayEquals(new Transaction[]{b, c, d}, builder.getTemplate());
+        assertEquals(9.0, builder.getFee(), 1e-9);
+
+        // the best waiting transaction fills the space left
+        mempool.remove(c.getHash());
+        assertArrayEquals(new Transaction[]{b, d, a}, builder.getTemplate());
+        assertEquals(7.0, builder.getFee(), 1e-9);
+        assertEquals(3L * size, builder.getSize());
+    }
+
+    @Test
+    public void testChildPaysForParentAndBlockConnects() {
+        Transaction x = spend(genesis, 0, 3.0);
+        Transaction y = spend(genesis, 1, 2.0);
+        mempool.add(x);
+        mempool.add(y);
+        BlockTemplateBuilder builder = new BlockTemplateBuilder(mempool, 2L * size);
+        assertArrayEquals(new Transaction[]{x, y}, builder.getTemplate());
+
+        Transaction parent = spend(genesis, 2, 0.1);
+        Transaction child = spend(parent, 0, 6.0);
+        mempool.add(parent);
+        assertEquals(5.0, builder.getFee(), 1e-9);
+        mempool.add(child); // the pair pays 6.1, more than x and y together
+        assertArrayEquals(new Transaction[]{parent, child}, builder.getTemplate());
+        assertEquals(6.1, builder.getFee(), 1e-9);
+
+        Transaction[] block = handler.handleTxs(builder.getTemplate());
+        assertEquals(2, block.length);
+        assertTrue(builder.connectBlock(block).isEmpty());
+        assertArrayEquals(new Transaction[]{x, y}, builder.getTemplate());
+        assertEquals(2, mempool.size());
+    }
+
+    @Test
+    public void testStaysValidUnderChurn() {
+        BlockTemplateBuilder builder = new BlockTemplateBuilder(mempool, 6L * size);
+        Random rnd = new Random(3);
+        List<Transaction> created = new ArrayList<>();
+        for (int step = 0; step < 150; step++) {
+            int action = rnd.nextInt(10);
+            if (action < 7) {
+                // new payment or child of an earlier one; conflicts are turned away by the pool
+                Transaction parent = created.isEmpty() || rnd.nextBoolean()
+                        ? genesis : created.get(rnd.nextInt(created.size()));
+                Transaction tx = spend(parent, rnd.nextInt(parent.numOutputs()), rnd.nextInt(8) / 16.0);
+                created.add(tx);
+                mempool.add(tx);
+            } else if (action < 9 && mempool.size() > 0) {
+                Transaction[] pending = mempool.getTransactions();
+                mempool.remove(pending[rnd.nextInt(pending.length)].getHash());
+            } else {
+                builder.connectBlock(handler.handleTxs(builder.getTemplate()));
+            }
+
+            Transaction[] template = builder.getTemplate();
+            double fee = 0;
+            long bytes = 0;
+            for (Transaction tx : template) {
+                assertTrue(mempool.contains(tx.getHash()), "step " + step);
+                fee += mempool.getFee(tx);
+                bytes += TransactionCodec.encodedSize(tx);
+            }
+            assertEquals(fee, builder.getFee(), 1e-9, "step " + step);
+            assertEquals(bytes, builder.getSize(), "step " + step);
+            assertTrue(bytes <= builder.getMaxBytes(), "step " + step);
+            UTXOPool copy = handler.getUtxoPool().copy();
+            assertEquals(template.length, new TxHandler(copy).handleTxs(template).length, "step " + step);
+
+            // all transactions have the same size here, so local updates never fall behind a full pass
+            BlockAssembler.Block fresh = new BlockAssembler(handler.getUtxoPool())
+                    .assemble(mempool.getTransactions(), 6L * size);
+            assertEquals(fresh.getFee(), builder.getFee(), 1e-9, "step " + step);
+        }
+
+        double incremental = builder.getFee();
+        builder.rebuild();
+        assertArrayEquals(new BlockAssembler(handler.getUtxoPool()).assemble(mempool.getTransactions(), 6L * size)
+                .getTransactions(), builder.getTemplate());
+        assertEquals(incremental, builder.getFee(), 1e-9);
+    }
+}
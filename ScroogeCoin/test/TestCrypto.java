@@ -0,0 +1,168 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.EllipticCurve;
+
+public class TestCrypto {
+
+    private KeyPair pairAlice;
+    private KeyPair pairBob;
+    private SignatureCache previousCache;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        pairAlice = keyGen.generateKeyPair();
+        pairBob = keyGen.generateKeyPair();
+        previousCache = Crypto.getSignatureCache();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Crypto.setSignatureCache(previousCache);
+    }
+
+    @Test
+    public void testCacheHitsOnRepeatedVerification() {
+        SignatureCache cache = new SignatureCache(64);
+        Crypto.setSignatureCache(cache);
+
+        byte[] message = {1, 2, 3};
+        byte[] sig = Crypto.sign(pairAlice.getPrivate(), message);
+
+        assertTrue(Crypto.verifySignature(pairAlice.getPublic(), message, sig));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        assertTrue(Crypto.verifySignature(pairAlice.getPublic(), message, sig));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testInvalidSignaturesAreNotCached() {
+        SignatureCache cache = new SignatureCache(64);
+        Crypto.setSignatureCache(cache);
+
+        byte[] message = {1, 2, 3};
+        byte[] sig = Crypto.sign(pairBob.getPrivate(), message);
+
+        assertFalse(Crypto.verifySignature(pairAlice.getPublic(), message, sig));
+        assertFalse(Crypto.verifySignature(pairAlice.getPublic(), message, sig));
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.size());
+
+        // a cached signature for Alice must not validate the same bytes under Bob's key
+        byte[] aliceSig = Crypto.sign(pairAlice.getPrivate(), message);
+        assertTrue(Crypto.verifySignature(pairAlice.getPublic(), message, aliceSig));
+        assertFalse(Crypto.verifySignature(pairBob.getPublic(), message, aliceSig));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        SignatureCache cache = new SignatureCache(16);
+        Crypto.setSignatureCache(cache);
+
+        for (int i = 0; i < 200; i++) {
+            byte[] message = {(byte) i, (byte) (i >> 8)};
+            assertTrue(Crypto.verifySignature(pairAlice.getPublic(), message,
+                    Crypto.sign(pairAlice.getPrivate(), message)));
+        }
+        assertTrue(cache.size() <= cache.getCapacity());
+    }
+
+    @Test
+    public void testMalformedInputsAreInvalid() {
+        byte[] message = {1, 2, 3};
+        byte[] sig = Crypto.sign(pairAlice.getPrivate(), message);
+
+        assertFalse(Crypto.verifySignature(pairAlice.getPublic(), message, null));
+        assertFalse(Crypto.verifySignature(null, message, sig));
+        assertFalse(Crypto.verifySignature(pairAlice.getPublic(), message, new byte[]{0, 1}));
+        // a verifier left over from a failed check must still work
+        assertTrue(Crypto.verifySignature(pairAlice.getPublic(), message, sig));
+    }
+
+    @Test
+    public void testPooledVerifierIsReusedAcrossMessages() {
+        VerifierPool pool = new VerifierPool("SHA256withRSA");
+        for (int i = 0; i < 10; i++) {
+            byte[] message = {(byte) i};
+            byte[] sig = pool.sign(pairAlice.getPrivate(), message);
+            assertTrue(pool.verify(pairAlice.getPublic(), message, sig));
+            assertFalse(pool.verify(pairBob.getPublic(), message, sig));
+        }
+    }
+
+    @Test
+    public void testEveryAvailableSchemeSignsAndVerifies() {
+        for (SignatureScheme scheme : SignatureScheme.values()) {
+            if (!scheme.isAvailable()) continue;
+            KeyPair pair = scheme.generateKeyPair();
+            assertSame(scheme, SignatureScheme.forKey(pair.getPublic()));
+
+            byte[] message = {4, 5, 6};
+            byte[] sig = Crypto.sign(pair.getPrivate(), message);
+            assertTrue(Crypto.verifySignature(pair.getPublic(), message, sig), scheme.name());
+            assertFalse(Crypto.verifySignature(pairAlice.getPublic(), message, sig), scheme.name());
+
+            PublicKey decoded = scheme.decodePublicKey(pair.getPublic().getEncoded());
+            assertTrue(Crypto.verifySignature(decoded, message, sig), scheme.name());
+        }
+    }
+
+    @Test
+    public void testOnlyP256KeysAreEcdsaP256() {
+        // secp256k1 also has a 256-bit field, but other coefficients and generator
+        BigInteger p = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+        ECParameterSpec secp256k1 = new ECParameterSpec(
+                new EllipticCurve(new ECFieldFp(p), BigInteger.ZERO, BigInteger.valueOf(7)),
+                new ECPoint(new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16),
+                        new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16)),
+                new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16), 1);
+        ECPublicKey other = new ECPublicKey() {
+            @Override public ECPoint getW() { return secp256k1.getGenerator(); }
+            @Override public ECParameterSpec getParams() { return secp256k1; }
+            @Override public String getAlgorithm() { return "EC"; }
+            @Override public String getFormat() { return "X.509"; }
+            @Override public byte[] getEncoded() { return new byte[0]; }
+        };
+        assertNull(SignatureScheme.forKey(other));
+        assertFalse(Crypto.verifySignature(other, new byte[]{1}, new byte[]{2}));
+
+        if (SignatureScheme.ECDSA_P256.isAvailable()) {
+            assertSame(SignatureScheme.ECDSA_P256,
+                    SignatureScheme.forKey(SignatureScheme.ECDSA_P256.generateKeyPair().getPublic()));
+        }
+    }
+
+    @Test
+    public void testHandlerAcceptsEcdsaAddresses() {
+        KeyPair ec = SignatureScheme.ECDSA_P256.generateKeyPair();
+
+        Transaction genesis = new Transaction();
+        genesis.addOutput(10.0, ec.getPublic());
+        genesis.finalize();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(genesis.getHash(), 0), genesis.getOutput(0));
+
+        Transaction tx = new Transaction();
+        tx.addInput(genesis.getHash(), 0);
+        tx.addOutput(9.0, pairAlice.getPublic());
+        tx.addSignature(Crypto.sign(ec.getPrivate(), tx.getRawDataToSign(0)), 0);
+        tx.finalize();
+
+        assertTrue(new TxHandler(pool).isValidTx(tx));
+    }
+}
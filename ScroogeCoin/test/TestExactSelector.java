@@ -0,0 +1,124 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class TestExactSelector {
+
+    private LedgerFixture ledger;
+    private UTXOPool pool;
+    private Transaction genesis;
+
+    @BeforeEach
+    public void setUp() {
+        ledger = new LedgerFixture(4);
+        pool = ledger.pool;
+        genesis = ledger.genesis;
+    }
+
+    /** @return a transaction spending the given outputs of {@code parent} to Bob, signed by its owner */
+    private Transaction spend(Transaction parent, int[] outputs, double... values) {
+        return ledger.spend(parent, outputs, ledger.pairBob.getPublic(), values);
+    }
+
+    private void assertIsValidBlock(Transaction[] block) {
+        assertEquals(block.length, new TxHandler(pool).handleTxs(block).length);
+    }
+
+    @Test
+    public void testBeatsGreedyOnConflicts() {
+        Transaction both = spend(genesis, new int[]{0, 1}, 15.0);  // fee 5
+        Transaction first = spend(genesis, new int[]{0}, 6.0);     // fee 4
+        Transaction second = spend(genesis, new int[]{1}, 6.0);    // fee 4
+        Transaction[] candidates = {both, first, second};
+
+        assertEquals(1, new Greedy(pool).selectTransactions(candidates).length);
+        ExactSelector.Selection selection = new ExactSelector(pool).select(candidates, 1000);
+        assertTrue(selection.isOptimal());
+        assertEquals(8.0, selection.getFee(), 1e-9);
+        assertEquals(Set.of(first, second), Set.of(selection.getTransactions()));
+    }
+
+    @Test
+    public void testTakesParentForItsChild() {
+        Transaction parent = spend(genesis, new int[]{2}, 10.0);       // fee 0
+        Transaction child = spend(parent, new int[]{0}, 4.0);          // fee 6
+        Transaction rival = spend(genesis, new int[]{2}, 7.0);         // fee 3
+        Transaction orphan = spend(spend(genesis, new int[]{3}, 9.0), new int[]{0}, 1.0); // parent missing
+
+        Transaction[] block = new ExactSelector(pool).selectTransactions(new Transaction[]{child, rival, orphan, parent});
+        assertArrayEquals(new Transaction[]{parent, child}, block);
+        assertIsValidBlock(block);
+    }
+
+    @Test
+    public void testMatchesExhaustiveSearch() {
+        for (long seed = 0; seed < 4; seed++) {
+            Random rnd = new Random(seed);
+            List<Transaction> txs = new ArrayList<>();
+            for (int t = 0; t < 12; t++) {
+                Transaction parent = t > 3 && rnd.nextBoolean() ? txs.get(rnd.nextInt(txs.size())) : genesis;
+                int a = rnd.nextInt(parent.numOutputs());
+                int b = rnd.nextInt(parent.numOutputs());
+                int[] outputs = a == b || rnd.nextBoolean() ? new int[]{a} : new int[]{a, b};
+                double in = 0;
+                for (int o : outputs) in += parent.getOutput(o).value;
+                double fee = rnd.nextInt(4);
+                txs.add(spend(parent, outputs, (in - fee) / 2, (in - fee) / 2));
+            }
+            Transaction[] candidates = txs.toArray(new Transaction[0]);
+
+            ExactSelector.Selection selection = new ExactSelector(pool).select(candidates, 10_000);
+            assertTrue(selection.isOptimal());
+            assertEquals(bestFeeBySubsets(candidates), selection.getFee(), 1e-9, "seed " + seed);
+            assertIsValidBlock(selection.getTransactions());
+        }
+    }
+
+    /** @return the best fee of any valid block, trying every subset of {@code txs} */
+    private double bestFeeBySubsets(Transaction[] txs) {
+        Map<UTXO, Double> values = new HashMap<>();
+        for (UTXO ut : pool.getAllUTXO()) values.put(ut, pool.getTxOutput(ut).value);
+        for (Transaction tx : txs) {
+            for (int i = 0; i < tx.numOutputs(); i++) values.put(new UTXO(tx.getHash(), i), tx.getOutput(i).value);
+        }
+        double[] fees = new double[txs.length];
+        for (int t = 0; t < txs.length; t++) {
+            for (Transaction.Input in : txs[t].getInputs()) fees[t] += values.get(new UTXO(in.prevTxHash, in.outputIndex));
+            for (Transaction.Output o : txs[t].getOutputs()) fees[t] -= o.value;
+        }
+        long best = Brute.bestSubset(fees, Brute.validBlock(txs, pool));
+        double fee = 0;
+        for (int t = 0; t < txs.length; t++) if ((best & 1L << t) != 0) fee += fees[t];
+        return fee;
+    }
+
+    @Test
+    public void testSplitsIndependentGroupsAndKeepsBudget() {
+        // two separate copies of the case greedy gets wrong
+        Transaction[] candidates = new Transaction[6];
+        for (int g = 0; g < 2; g++) {
+            candidates[3 * g] = spend(genesis, new int[]{2 * g, 2 * g + 1}, 15.0);
+            candidates[3 * g + 1] = spend(genesis, new int[]{2 * g}, 6.0);
+            candidates[3 * g + 2] = spend(genesis, new int[]{2 * g + 1}, 6.0);
+        }
+        ExactSelector selector = new ExactSelector(pool, new ParallelValidator(2));
+        assertEquals(2, selector.componentCount(candidates));
+
+        ExactSelector.Selection exact = selector.select(candidates, 1000);
+        assertTrue(exact.isOptimal());
+        assertEquals(16.0, exact.getFee(), 1e-9);
+
+        // with no time at all each group keeps its greedy plan, which is still a valid block
+        ExactSelector.Selection rushed = selector.select(candidates, 0);
+        assertFalse(rushed.isOptimal());
+        assertEquals(10.0, rushed.getFee(), 1e-9);
+        assertIsValidBlock(rushed.getTransactions());
+    }
+}
@@ -3,9 +3,16 @@ import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.security.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class TestGreedy {
 
@@ -166,6 +173,178 @@ public class TestGreedy {
         assertEquals(0, result.length, "Should reject tampered transaction");
     }
 
+    @Test
+    public void testMatchesRescanningGreedy() throws Exception {
+        // six outputs for Alice, contended by random payments, chains of children and bad signatures
+        Transaction funding = new Transaction();
+        for (int i = 0; i < 6; i++) funding.addOutput(10.0, pairAlice.getPublic());
+        funding.finalize();
+        UTXOPool fundedPool = new UTXOPool();
+        for (int i = 0; i < 6; i++) fundedPool.addUTXO(funding.getHash(), i, funding.getOutput(i));
+
+        Transaction[] txs = contendedCandidates(funding, 17);
+
+        assertArrayEquals(rescanningGreedy(fundedPool, txs), new Greedy(fundedPool).selectTransactions(txs));
+        assertArrayEquals(rescanningGreedy(fundedPool, txs),
+                new Greedy(fundedPool, new ParallelValidator(2)).selectTransactions(txs));
+    }
+
+    @Test
+    public void testConcurrentSelectionsOnOneGreedy() throws Exception {
+        Transaction funding = new Transaction();
+        for (int i = 0; i < 6; i++) funding.addOutput(10.0, pairAlice.getPublic());
+        funding.finalize();
+        UTXOPool fundedPool = new UTXOPool();
+        for (int i = 0; i < 6; i++) fundedPool.addUTXO(funding.getHash(), i, funding.getOutput(i));
+        Transaction[][] batches = new Transaction[4][];
+        Transaction[][] expected = new Transaction[batches.length][];
+        for (int b = 0; b < batches.length; b++) {
+            batches[b] = contendedCandidates(funding, b);
+            expected[b] = rescanningGreedy(fundedPool, batches[b]);
+        }
+
+        // every call applies its selection to the shared pool and rolls it back
+        Greedy greedy = new Greedy(fundedPool);
+        ExecutorService threads = Executors.newFixedThreadPool(batches.length);
+        try {
+            List<Future<?>> runs = new ArrayList<>();
+            for (int b = 0; b < batches.length; b++) {
+                int batch = b;
+                runs.add(threads.submit(() -> {
+                    for (int round = 0; round < 20; round++) {
+                        assertArrayEquals(expected[batch], greedy.selectTransactions(batches[batch]));
+                    }
+                }));
+            }
+            for (Future<?> run : runs) run.get();
+        } finally {
+            threads.shutdown();
+        }
+        assertEquals(6, fundedPool.size());
+    }
+
+    /**
+     * @return 60 candidates paying from the six outputs of {@code funding}, contended by random
+     *         payments, chains of children and bad signatures, in a random order
+     */
+    private Transaction[] contendedCandidates(Transaction funding, long seed) {
+        Random rnd = new Random(seed);
+        List<Transaction> candidates = new ArrayList<>();
+        for (int t = 0; t < 60; t++) {
+            Transaction tx = new Transaction();
+            boolean child = t > 10 && rnd.nextBoolean();
+            Transaction parent = child ? candidates.get(rnd.nextInt(candidates.size())) : funding;
+            int index = rnd.nextInt(child ? parent.numOutputs() : 6);
+            tx.addInput(parent.getHash(), index);
+            double available = parent.getOutput(index).value;
+            tx.addOutput(available - rnd.nextInt(4), pairBob.getPublic()); // fees of 0-3 give ties
+            KeyPair signer = rnd.nextInt(10) == 0 ? pairCharlie
+                    : parent.getOutput(index).address.equals(pairAlice.getPublic()) ? pairAlice : pairBob;
+            tx.addSignature(Crypto.sign(signer.getPrivate(), tx.getRawDataToSign(0)), 0);
+            tx.finalize();
+            candidates.add(tx);
+        }
+        Collections.shuffle(candidates, rnd);
+        return candidates.toArray(new Transaction[0]);
+    }
+
+    @Test
+    public void testPackagesLetChildPayForParent() throws Exception {
+        // Parent pays nothing, its child pays 8; a rival of the parent pays 3 on its own
+        Transaction parent = new Transaction();
+        parent.addInput(genesis.getHash(), 0);
+        parent.addOutput(10.0, pairBob.getPublic());
+        parent.addSignature(Crypto.sign(pairAlice.getPrivate(), parent.getRawDataToSign(0)), 0);
+        parent.finalize();
+
+        Transaction child = new Transaction();
+        child.addInput(parent.getHash(), 0);
+        child.addOutput(2.0, pairCharlie.getPublic());
+        child.addSignature(Crypto.sign(pairBob.getPrivate(), child.getRawDataToSign(0)), 0);
+        child.finalize();
+
+        Transaction rival = new Transaction();
+        rival.addInput(genesis.getHash(), 0);
+        rival.addOutput(7.0, pairCharlie.getPublic());
+        rival.addSignature(Crypto.sign(pairAlice.getPrivate(), rival.getRawDataToSign(0)), 0);
+        rival.finalize();
+
+        Transaction[] candidates = { rival, child, parent };
+        Greedy greedy = new Greedy(pool);
+        assertArrayEquals(new Transaction[]{rival}, greedy.selectTransactions(candidates));
+        assertArrayEquals(new Transaction[]{parent, child}, greedy.selectPackages(candidates));
+        assertArrayEquals(new Transaction[]{parent, child},
+                new Greedy(pool, new ParallelValidator(2)).selectPackages(candidates));
+    }
+
+    @Test
+    public void testPackagesFormValidBlocks() throws Exception {
+        Transaction funding = new Transaction();
+        for (int i = 0; i < 6; i++) funding.addOutput(10.0, pairAlice.getPublic());
+        funding.finalize();
+        UTXOPool fundedPool = new UTXOPool();
+        for (int i = 0; i < 6; i++) fundedPool.addUTXO(funding.getHash(), i, funding.getOutput(i));
+
+        for (long seed = 0; seed < 5; seed++) {
+            Random rnd = new Random(seed);
+            List<Transaction> candidates = new ArrayList<>();
+            for (int t = 0; t < 40; t++) {
+                Transaction tx = new Transaction();
+                boolean child = t > 5 && rnd.nextBoolean();
+                Transaction parent = child ? candidates.get(rnd.nextInt(candidates.size())) : funding;
+                int index = rnd.nextInt(parent.numOutputs());
+                tx.addInput(parent.getHash(), index);
+                double available = parent.getOutput(index).value;
+                tx.addOutput((available - rnd.nextInt(4)) / 2, pairBob.getPublic());
+                tx.addOutput((available - rnd.nextInt(4)) / 2, pairBob.getPublic());
+                KeyPair signer = rnd.nextInt(10) == 0 ? pairCharlie
+                        : parent.getOutput(index).address.equals(pairAlice.getPublic()) ? pairAlice : pairBob;
+                tx.addSignature(Crypto.sign(signer.getPrivate(), tx.getRawDataToSign(0)), 0);
+                tx.finalize();
+                candidates.add(tx);
+            }
+            Collections.shuffle(candidates, rnd);
+            Transaction[] txs = candidates.toArray(new Transaction[0]);
+
+            Transaction[] block = new Greedy(fundedPool).selectPackages(txs);
+            // in order, every transaction of the block is valid against the ones before it
+            assertEquals(block.length, new TxHandler(fundedPool).handleTxs(block).length, "seed " + seed);
+            // and nothing valid was left out, the selection being unbounded
+            UTXOPool after = new UTXOPool(fundedPool);
+            for (Transaction tx : block) {
+                for (Transaction.Input in : tx.getInputs()) after.removeUTXO(in.prevTxHash, in.outputIndex);
+                for (int i = 0; i < tx.numOutputs(); i++) after.addUTXO(tx.getHash(), i, tx.getOutput(i));
+            }
+            TxHandler rest = new TxHandler(after);
+            for (Transaction tx : txs) {
+                if (!Arrays.asList(block).contains(tx)) assertFalse(rest.isValidTx(tx), "seed " + seed);
+            }
+        }
+    }
+
+    // The selector as first written: rescan every remaining candidate and take the best each round
+    private static Transaction[] rescanningGreedy(UTXOPool initial, Transaction[] candidates) {
+        UTXOPool p = new UTXOPool(initial);
+        List<Transaction> remaining = new ArrayList<>(Arrays.asList(candidates));
+        List<Transaction> accepted = new ArrayList<>();
+        while (true) {
+            Transaction best = null;
+            double bestFee = Double.NEGATIVE_INFINITY;
+            for (Transaction tx : remaining) {
+                if (!new TxHandler(p).isValidTx(tx)) continue;
+                double fee = -tx.getOutput(0).value;
+                for (Transaction.Input in : tx.getInputs()) fee += p.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex)).value;
+                if (fee > bestFee) { best = tx; bestFee = fee; }
+            }
+            if (best == null) break;
+            for (Transaction.Input in : best.getInputs()) p.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+            for (int i = 0; i < best.numOutputs(); i++) p.addUTXO(new UTXO(best.getHash(), i), best.getOutput(i));
+            accepted.add(best);
+            remaining.remove(best);
+        }
+        return accepted.toArray(new Transaction[0]);
+    }
+
     // Helper
     private static String bytesToHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,180 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+public class TestMempool {
+
+    private static final int OUTPUTS = 50;
+
+    private LedgerFixture ledger;
+    private TxHandler handler;
+    private Transaction genesis;
+
+    @BeforeEach
+    public void setUp() {
+        ledger = new LedgerFixture(OUTPUTS);
+        genesis = ledger.genesis;
+        handler = new TxHandler(ledger.pool);
+    }
+
+    /** @return a transaction spending one output of {@code parent} to Bob, paying {@code fee} */
+    private Transaction spend(Transaction parent, int output, double fee) {
+        return ledger.spend(parent, output, fee, ledger.pairBob.getPublic());
+    }
+
+    @Test
+    public void testIndexesAndExplainsRejections() {
+        Mempool mempool = new Mempool(handler, 1 << 20);
+        Transaction parent = spend(genesis, 0, 1.0);
+        Transaction child = spend(parent, 0, 1.0);
+        Transaction rival = spend(genesis, 0, 2.0);
+        Transaction orphan = spend(spend(genesis, 1, 1.0), 0, 1.0);
+        Transaction greedy = spend(genesis, 2, -5.0); // creates value
+
+        assertEquals(Mempool.Status.ADDED, mempool.add(parent));
+        assertEquals(Mempool.Status.ADDED, mempool.add(child));
+        assertEquals(Mempool.Status.DUPLICATE, mempool.add(child));
+        assertEquals(Mempool.Status.CONFLICT, mempool.add(rival));
+        assertEquals(Mempool.Status.MISSING_INPUTS, mempool.add(orphan));
+        assertEquals(Mempool.Status.INVALID, mempool.add(greedy));
+
+        assertEquals(2, mempool.size());
+        assertSame(child, mempool.get(child.getHash()));
+        assertSame(parent, mempool.getSpender(new UTXO(genesis.getHash(), 0)));
+        assertSame(child, mempool.getSpender(new UTXO(parent.getHash(), 0)));
+        assertEquals(1.0, mempool.getFee(child), 1e-9);
+        assertEquals(TransactionCodec.encodedSize(parent) + TransactionCodec.encodedSize(child), mempool.getBytes());
+
+        // removing the parent takes the child with it
+        assertEquals(List.of(parent, child), mempool.remove(parent.getHash()));
+        assertEquals(0, mempool.size());
+        assertEquals(0, mempool.getBytes());
+        assertEquals(Mempool.Status.ADDED, mempool.add(rival));
+    }
+
+    @Test
+    public void testEvictsLowestFeeRateWhenFull() {
+        int size = TransactionCodec.encodedSize(spend(genesis, 0, 1.0));
+        Mempool mempool = new Mempool(handler, 3L * size);
+
+        Transaction a = spend(genesis, 0, 3.0);
+        Transaction b = spend(genesis, 1, 1.0);
+        Transaction c = spend(genesis, 2, 2.0);
+        Transaction d = spend(genesis, 3, 4.0);
+        Transaction cheap = spend(genesis, 4, 0.5);
+        for (Transaction tx : new Transaction[]{a, b, c, d}) assertEquals(Mempool.Status.ADDED, mempool.add(tx));
+
+        assertEquals(Set.of(a, c, d), Set.of(mempool.getTransactions()));
+        // cheap would be the first to go again, so it is turned away and nothing else is evicted
+        assertEquals(Mempool.Status.FULL, mempool.add(cheap));
+        assertEquals(1, mempool.getEvictedCount());
+        assertEquals(Set.of(a, c, d), Set.of(mempool.getTransactions()));
+        assertTrue(mempool.getBytes() <= mempool.getMaxBytes());
+    }
+
+    @Test
+    public void testOversizedTransactionEvictsNothing() {
+        int size = TransactionCodec.encodedSize(spend(genesis, 0, 1.0));
+        Mempool mempool = new Mempool(handler, 3L * size);
+        Transaction a = spend(genesis, 0, 1.0);
+        Transaction b = spend(genesis, 1, 2.0);
+        mempool.add(a);
+        mempool.add(b);
+
+        // pays almost all of its input as fee, but alone does not fit the budget
+        double[] dust = new double[10];
+        Arrays.fill(dust, 0.001);
+        Transaction huge = ledger.spend(genesis, new int[]{2, 3}, ledger.pairBob.getPublic(), dust);
+        assertTrue(TransactionCodec.encodedSize(huge) > mempool.getMaxBytes());
+        assertEquals(Mempool.Status.FULL, mempool.add(huge));
+
+        assertEquals(Set.of(a, b), Set.of(mempool.getTransactions()));
+        assertEquals(0, mempool.getEvictedCount());
+        assertNull(mempool.getSpender(new UTXO(genesis.getHash(), 2)));
+    }
+
+    @Test
+    public void testCheapChildDoesNotEvictItsParent() {
+        int size = TransactionCodec.encodedSize(spend(genesis, 0, 1.0));
+        Mempool mempool = new Mempool(handler, 3L * size);
+        Transaction parent = spend(genesis, 0, 0.1);
+        Transaction x = spend(genesis, 1, 3.0);
+        Transaction y = spend(genesis, 2, 4.0);
+        for (Transaction tx : new Transaction[]{parent, x, y}) assertEquals(Mempool.Status.ADDED, mempool.add(tx));
+
+        // making room would evict the parent, and the child with it
+        assertEquals(Mempool.Status.FULL, mempool.add(spend(parent, 0, 0.05)));
+        assertEquals(Set.of(parent, x, y), Set.of(mempool.getTransactions()));
+        assertEquals(0, mempool.getEvictedCount());
+        assertEquals(3L * size, mempool.getBytes());
+        assertEquals(0.1 / size, mempool.getFeeRate(parent), 1e-12);
+    }
+
+    @Test
+    public void testChildPaysToKeepItsParent() {
+        int size = TransactionCodec.encodedSize(spend(genesis, 0, 1.0));
+        Mempool mempool = new Mempool(handler, 3L * size);
+
+        Transaction parent = spend(genesis, 0, 0.1);
+        Transaction child = spend(parent, 0, 5.0);
+        Transaction middling = spend(genesis, 1, 1.0);
+        Transaction better = spend(genesis, 2, 2.0);
+        mempool.add(parent);
+        mempool.add(child);
+        mempool.add(middling);
+
+        // the parent scores as a package paying 5.1 over two transactions, above the middling one
+        assertEquals(Mempool.Status.ADDED, mempool.add(better));
+        assertEquals(Set.of(parent, child, better), Set.of(mempool.getTransactions()));
+
+        // better now scores lowest; after it the parent goes, and its child can only go with it
+        Transaction best = spend(genesis, 3, 9.0);
+        Transaction best2 = spend(genesis, 4, 8.0);
+        mempool.add(best);
+        assertEquals(Set.of(parent, child, best), Set.of(mempool.getTransactions()));
+        mempool.add(best2);
+        assertEquals(Set.of(best, best2), Set.of(mempool.getTransactions()));
+        assertEquals(4, mempool.getEvictedCount());
+        assertNull(mempool.getSpender(new UTXO(parent.getHash(), 0)));
+    }
+
+    @Test
+    public void testSpamBurstKeepsBestTransactions() {
+        int size = TransactionCodec.encodedSize(spend(genesis, 0, 1.0));
+        Mempool mempool = new Mempool(handler, 10L * size);
+        for (int i = 0; i < OUTPUTS; i++) {
+            mempool.add(spend(genesis, i, (i * 7 % OUTPUTS) / 10.0));
+            assertTrue(mempool.getBytes() <= mempool.getMaxBytes());
+        }
+        assertEquals(10, mempool.size());
+        for (Transaction tx : mempool.getTransactions()) {
+            assertTrue(mempool.getFee(tx) >= (OUTPUTS - 10) / 10.0 - 1e-9);
+        }
+    }
+
+    @Test
+    public void testHandsOffToHandler() {
+        Mempool mempool = new Mempool(handler, 1 << 20);
+        Transaction parent = spend(genesis, 0, 1.0);
+        Transaction child = spend(parent, 0, 1.0);
+        Transaction other = spend(genesis, 1, 1.0);
+        Transaction rival = spend(genesis, 1, 3.0);
+        mempool.add(parent);
+        mempool.add(child);
+        mempool.add(other);
+
+        // a block from elsewhere confirms the parent and a rival of other
+        handler.handleTxs(new Transaction[]{parent, rival});
+        assertEquals(List.of(other), mempool.removeConfirmed(new Transaction[]{parent, rival}));
+        assertArrayEquals(new Transaction[]{child}, mempool.getTransactions());
+        assertEquals(TransactionCodec.encodedSize(child), mempool.getBytes());
+
+        assertArrayEquals(new Transaction[]{child}, mempool.submit());
+        assertEquals(0, mempool.size());
+        assertTrue(handler.getUtxoPool().contains(child.getHash(), 0));
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestOrphanPool {
+
+    private LedgerFixture ledger;
+    private UTXOPool pool;
+    private Transaction genesis;
+
+    @BeforeEach
+    public void setUp() {
+        ledger = new LedgerFixture(4);
+        pool = ledger.pool;
+        genesis = ledger.genesis;
+    }
+
+    /** @return a transaction spending output {@code index} of {@code parent} */
+    private Transaction spend(Transaction parent, int index) {
+        return ledger.spend(parent, index, 1.0, ledger.pairAlice.getPublic());
+    }
+
+    private static Set<ByteArrayWrapper> parentOf(Transaction tx) {
+        return Set.of(new ByteArrayWrapper(tx.getInput(0).prevTxHash));
+    }
+
+    @Test
+    public void testHandlerPromotesOrphansWhenParentArrives() {
+        Transaction parent = spend(genesis, 0);
+        Transaction child = spend(parent, 0);
+        Transaction grandchild = spend(child, 0);
+
+        OrphanPool orphans = new OrphanPool();
+        TxHandler handler = new TxHandler(pool);
+        handler.setOrphanPool(orphans);
+
+        assertEquals(0, handler.handleTxs(new Transaction[]{grandchild}).length);
+        assertEquals(0, handler.handleTxs(new Transaction[]{child}).length);
+        assertEquals(2, orphans.size());
+
+        // accepting the parent wakes the whole chain in the same call
+        assertArrayEquals(new Transaction[]{parent, child, grandchild},
+                handler.handleTxs(new Transaction[]{parent}));
+        assertEquals(0, orphans.size());
+        assertTrue(handler.getUtxoPool().contains(grandchild.getHash(), 0));
+    }
+
+    @Test
+    public void testLimitsSizeAndAge() {
+        AtomicLong now = new AtomicLong();
+        OrphanPool orphans = new OrphanPool(2, 1000, now::get);
+        Transaction[] txs = new Transaction[3];
+        for (int i = 0; i < 3; i++) {
+            txs[i] = spend(spend(genesis, i), 0);
+            assertTrue(orphans.add(txs[i], parentOf(txs[i])));
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(400));
+        }
+        // full: the oldest was dropped
+        assertFalse(orphans.contains(txs[0].getHash()));
+        assertEquals(2, orphans.size());
+        assertFalse(orphans.add(txs[2], parentOf(txs[2])));
+
+        // at 1500 ms txs[1], which arrived at 400 ms, is past the limit and txs[2] is not
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(300));
+        orphans.expire();
+        assertEquals(1, orphans.size());
+        assertTrue(orphans.contains(txs[2].getHash()));
+
+        assertEquals(List.of(txs[2]), orphans.takeChildren(txs[2].getInput(0).prevTxHash));
+        assertEquals(0, orphans.size());
+        assertTrue(orphans.takeChildren(txs[2].getInput(0).prevTxHash).isEmpty());
+    }
+
+    @Test
+    public void testMempoolAddsOrphansWhenParentArrives() {
+        Mempool mempool = new Mempool(new TxHandler(pool), 1 << 20);
+        OrphanPool orphans = new OrphanPool();
+        mempool.setOrphanPool(orphans);
+
+        Transaction parent = spend(genesis, 1);
+        Transaction child = spend(parent, 0);
+        Transaction grandchild = spend(child, 0);
+        assertEquals(Mempool.Status.MISSING_INPUTS, mempool.add(grandchild));
+        assertEquals(Mempool.Status.MISSING_INPUTS, mempool.add(child));
+        assertEquals(2, orphans.size());
+
+        assertEquals(Mempool.Status.ADDED, mempool.add(parent));
+        assertArrayEquals(new Transaction[]{parent, child, grandchild}, mempool.getTransactions());
+        assertEquals(0, orphans.size());
+    }
+
+    @Test
+    public void testDoubleSpendIsNotHeldAsOrphan() {
+        Transaction first = spend(genesis, 0);
+        Transaction second = ledger.spend(genesis, 0, 5.0, ledger.pairAlice.getPublic());
+
+        OrphanPool orphans = new OrphanPool();
+        TxHandler handler = new TxHandler(pool);
+        handler.setOrphanPool(orphans);
+        assertEquals(1, handler.handleTxs(new Transaction[]{first}).length);
+        assertEquals(0, handler.handleTxs(new Transaction[]{second}).length);
+        assertEquals(0, orphans.size());
+
+        // the same through a mempool, whose handler has confirmed the first spend
+        Mempool mempool = new Mempool(handler, 1 << 20);
+        mempool.setOrphanPool(orphans);
+        assertEquals(Mempool.Status.MISSING_INPUTS, mempool.add(second));
+        assertEquals(0, orphans.size());
+
+        // a transaction spending from one never seen is still held
+        Transaction unknown = spend(spend(genesis, 1), 0);
+        assertEquals(Mempool.Status.MISSING_INPUTS, mempool.add(unknown));
+        assertTrue(orphans.contains(unknown.getHash()));
+    }
+}
@@ -0,0 +1,384 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+
+public class TestTransaction {
+
+    private KeyPair pairAlice;
+    private KeyPair pairBob;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        pairAlice = keyGen.generateKeyPair();
+        pairBob = keyGen.generateKeyPair();
+    }
+
+    private Transaction sampleTransaction(int numInputs, int numOutputs) {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < numInputs; i++) {
+            byte[] prevHash = new byte[32];
+            prevHash[0] = (byte) i;
+            tx.addInput(prevHash, i);
+        }
+        for (int i = 0; i < numOutputs; i++) {
+            tx.addOutput(i * 1.25, (i % 2 == 0 ? pairAlice : pairBob).getPublic());
+        }
+        for (int i = 0; i < numInputs; i++) {
+            tx.addSignature(Crypto.sign(pairAlice.getPrivate(), tx.getRawDataToSign(i)), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /**
+     * The original format of the data to sign, written out plainly as the oracle: the spent hash
+     * (if any), the output index as a big-endian int, then each output's value as a big-endian
+     * double followed by its encoded address.
+     */
+    private static byte[] rawDataToSign(Transaction tx, int index) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Transaction.Input in = tx.getInput(index);
+        if (in.prevTxHash != null) out.writeBytes(in.prevTxHash);
+        out.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(in.outputIndex).array());
+        writeOutputs(tx, out);
+        return out.toByteArray();
+    }
+
+    /** The original format of a whole transaction: each input with its signature, then the outputs */
+    private static byte[] rawTx(Transaction tx) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null) out.writeBytes(in.prevTxHash);
+            out.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(in.outputIndex).array());
+            if (in.signature != null) out.writeBytes(in.signature);
+        }
+        writeOutputs(tx, out);
+        return out.toByteArray();
+    }
+
+    private static void writeOutputs(Transaction tx, ByteArrayOutputStream out) {
+        for (Transaction.Output op : tx.getOutputs()) {
+            out.writeBytes(ByteBuffer.allocate(Double.BYTES).putDouble(op.value).array());
+            out.writeBytes(op.address.getEncoded());
+        }
+    }
+
+    @Test
+    public void testSerializationMatchesOriginalFormat() {
+        for (int inputs = 0; inputs <= 3; inputs++) {
+            for (int outputs = 0; outputs <= 3; outputs++) {
+                Transaction tx = sampleTransaction(inputs, outputs);
+                assertArrayEquals(rawTx(tx), tx.getRawTx());
+                for (int i = 0; i < inputs; i++) {
+                    assertArrayEquals(rawDataToSign(tx, i),
+                            tx.getRawDataToSign(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNullHashAndSignatureAreSkipped() {
+        Transaction tx = new Transaction();
+        tx.addInput(null, 7);
+        tx.addOutput(1.0, pairAlice.getPublic());
+        assertArrayEquals(rawTx(tx), tx.getRawTx());
+        assertArrayEquals(rawDataToSign(tx, 0), tx.getRawDataToSign(0));
+
+        // fixed bytes: output index 7, then the value 1.0, then the address
+        byte[] prefix = {0, 0, 0, 7, 0x3F, (byte) 0xF0, 0, 0, 0, 0, 0, 0};
+        assertArrayEquals(prefix, Arrays.copyOf(tx.getRawDataToSign(0), prefix.length));
+        assertEquals(prefix.length + pairAlice.getPublic().getEncoded().length, tx.getRawTx().length);
+    }
+
+    @Test
+    public void testCachedOutputsAreInvalidatedOnMutation() {
+        Transaction tx = sampleTransaction(2, 2);
+        byte[] before = tx.getRawDataToSign(1);
+
+        tx.addOutput(3.0, pairBob.getPublic());
+        byte[] afterOutput = tx.getRawDataToSign(1);
+        assertFalse(Arrays.equals(before, afterOutput));
+        assertArrayEquals(rawDataToSign(tx, 1), afterOutput);
+
+        tx.addInput(new byte[32], 5);
+        tx.removeInput(0);
+        assertArrayEquals(rawDataToSign(tx, 1), tx.getRawDataToSign(1));
+        assertArrayEquals(rawTx(tx), tx.getRawTx());
+    }
+
+    @Test
+    public void testDataToSignIsAFreshCopy() {
+        Transaction tx = sampleTransaction(1, 2);
+        byte[] first = tx.getRawDataToSign(0);
+        first[first.length - 1]++;
+        assertArrayEquals(rawDataToSign(tx, 0), tx.getRawDataToSign(0));
+    }
+
+    @Test
+    public void testHashFollowsMutations() {
+        Transaction tx = sampleTransaction(1, 1);
+        byte[] hash = tx.getHash();
+        assertSame(hash, tx.getHash(), "hash should be memoized");
+
+        tx.addOutput(2.0, pairBob.getPublic());
+        byte[] changed = tx.getHash();
+        assertFalse(Arrays.equals(hash, changed));
+
+        // re-signing through the input itself must invalidate the hash too
+        tx.getInput(0).addSignature(Crypto.sign(pairAlice.getPrivate(), tx.getRawDataToSign(0)));
+        assertFalse(Arrays.equals(changed, tx.getHash()));
+
+        Transaction copy = new Transaction();
+        copy.addInput(tx.getInput(0).prevTxHash, tx.getInput(0).outputIndex);
+        copy.addSignature(tx.getInput(0).signature, 0);
+        copy.addOutput(0.0, pairAlice.getPublic());
+        copy.addOutput(2.0, pairBob.getPublic());
+        assertArrayEquals(tx.getHash(), copy.getHash());
+    }
+
+    @Test
+    public void testFinalizeReplacesExplicitHash() {
+        Transaction tx = sampleTransaction(1, 1);
+        byte[] real = tx.getHash().clone();
+        tx.setHash(new byte[]{1});
+        assertArrayEquals(new byte[]{1}, tx.getHash());
+        tx.finalize();
+        assertArrayEquals(real, tx.getHash());
+    }
+
+    @Test
+    public void testSigningACopyLeavesTheOriginal() {
+        Transaction tx = sampleTransaction(1, 1);
+        tx.finalize();
+        byte[] original = tx.getHash().clone();
+
+        Transaction copy = new Transaction(tx);
+        copy.addSignature(Crypto.sign(pairBob.getPrivate(), copy.getRawDataToSign(0)), 0);
+        copy.finalize();
+        assertArrayEquals(original, tx.getHash());
+        assertArrayEquals(rawTx(tx), tx.getRawTx());
+
+        Transaction fresh = new Transaction();
+        fresh.addInput(copy.getInput(0).prevTxHash, copy.getInput(0).outputIndex);
+        fresh.addSignature(copy.getInput(0).signature, 0);
+        fresh.addOutput(copy.getOutput(0).value, copy.getOutput(0).address);
+        assertArrayEquals(fresh.getRawTx(), copy.getRawTx());
+        assertArrayEquals(fresh.getHash(), copy.getHash());
+    }
+
+    @Test
+    public void testFinalizePicksUpDirectFieldWrites() {
+        Transaction tx = sampleTransaction(1, 1);
+        byte[] before = tx.getHash().clone();
+        tx.getOutput(0).value = 42.0;
+        tx.getInput(0).outputIndex = 9;
+        tx.finalize();
+        assertFalse(Arrays.equals(before, tx.getHash()));
+        assertArrayEquals(rawTx(tx), tx.getRawTx());
+        assertArrayEquals(Crypto.sha256().digest(rawTx(tx)), tx.getHash());
+    }
+
+    @Test
+    public void testFinalizeAllMatchesSequentialHashing() {
+        Transaction[] txs = new Transaction[600];
+        byte[][] expected = new byte[txs.length][];
+        for (int i = 0; i < txs.length; i++) {
+            txs[i] = new Transaction();
+            byte[] prevHash = new byte[32];
+            prevHash[0] = (byte) i;
+            prevHash[1] = (byte) (i >> 8);
+            txs[i].addInput(prevHash, i);
+            txs[i].addOutput(i, pairAlice.getPublic());
+
+            Transaction reference = new Transaction();
+            reference.addInput(prevHash, i);
+            reference.addOutput(i, pairAlice.getPublic());
+            reference.finalize();
+            expected[i] = reference.getHash();
+        }
+        Transactions.finalizeAll(txs);
+        for (int i = 0; i < txs.length; i++) {
+            assertArrayEquals(expected[i], txs[i].getHash());
+        }
+    }
+
+    @Test
+    public void testCodecRoundTrip() {
+        Transaction tx = sampleTransaction(3, 2);
+        byte[] encoded = TransactionCodec.encode(tx);
+        assertEquals(TransactionCodec.encodedSize(tx), encoded.length);
+
+        Transaction decoded = TransactionCodec.decode(encoded);
+        assertArrayEquals(tx.getRawTx(), decoded.getRawTx());
+        assertArrayEquals(tx.getHash(), decoded.getHash());
+        assertEquals(tx.getOutput(1).address, decoded.getOutput(1).address);
+    }
+
+    @Test
+    public void testCodecKeepsNullFields() {
+        Transaction tx = new Transaction();
+        tx.addInput(null, 3);
+        tx.addOutput(1.5, pairAlice.getPublic());
+        Transaction decoded = TransactionCodec.decode(TransactionCodec.encode(tx));
+        assertNull(decoded.getInput(0).prevTxHash);
+        assertNull(decoded.getInput(0).signature);
+        assertEquals(3, decoded.getInput(0).outputIndex);
+    }
+
+    @Test
+    public void testCodecRejectsBadData() {
+        byte[] encoded = TransactionCodec.encode(sampleTransaction(1, 1));
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length - 10);
+        assertThrows(IllegalArgumentException.class, () -> TransactionCodec.decode(truncated));
+
+        encoded[0] = 99;
+        assertThrows(IllegalArgumentException.class, () -> TransactionCodec.decode(encoded));
+    }
+
+    @Test
+    public void testBatchFileThroughMappedBuffer() throws IOException {
+        Transaction[] txs = {sampleTransaction(1, 1), sampleTransaction(2, 3), sampleTransaction(0, 1)};
+        Path file = Files.createTempFile("txs", ".bin");
+        try {
+            try (TransactionCodec.Writer writer = new TransactionCodec.Writer(Files.newOutputStream(file))) {
+                writer.writeAll(txs);
+                assertEquals(3, writer.getCount());
+            }
+            ByteBuffer mapped = TransactionCodec.map(file);
+            TransactionCodec.Reader reader = new TransactionCodec.Reader(mapped);
+            for (Transaction tx : txs) {
+                assertTrue(reader.hasNext());
+                assertArrayEquals(tx.getHash(), reader.next().getHash());
+            }
+            assertFalse(reader.hasNext());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testViewMatchesDecodedTransaction() {
+        TransactionView view = new TransactionView(ByteBuffer.wrap(TransactionCodec.encode(new Transaction())));
+        for (int inputs = 0; inputs <= 3; inputs++) {
+            for (int outputs = 0; outputs <= 3; outputs++) {
+                Transaction tx = sampleTransaction(inputs, outputs);
+                view.wrap(ByteBuffer.wrap(TransactionCodec.encode(tx)));
+                assertEquals(inputs, view.numInputs());
+                assertEquals(outputs, view.numOutputs());
+                assertArrayEquals(tx.getHash(), view.getHash());
+                for (int i = 0; i < inputs; i++) {
+                    assertArrayEquals(tx.getRawDataToSign(i), view.getRawDataToSign(i));
+                    assertArrayEquals(tx.getSignature(i), view.getSignature(i));
+                    assertEquals(tx.getOutputIndex(i), view.getOutputIndex(i));
+                }
+                for (int i = 0; i < outputs; i++) {
+                    assertEquals(tx.getOutputValue(i), view.getOutputValue(i));
+                    assertEquals(tx.getOutputAddress(i), view.getOutputAddress(i));
+                }
+            }
+        }
+
+        Transaction withNulls = new Transaction();
+        withNulls.addInput(null, 4);
+        withNulls.addOutput(2.0, pairBob.getPublic());
+        view.wrap(ByteBuffer.wrap(TransactionCodec.encode(withNulls)));
+        assertNull(view.getPrevTxHash(0));
+        assertNull(view.getSignature(0));
+        assertArrayEquals(withNulls.getRawDataToSign(0), view.getRawDataToSign(0));
+        assertArrayEquals(withNulls.getHash(), view.getHash());
+        assertThrows(IndexOutOfBoundsException.class, () -> view.getSignature(1));
+        assertTrue(Double.isNaN(view.getSpentValue(new UTXOPool(), 0)));
+        assertNull(view.getSpentAddress(new UTXOPool(), 0));
+        assertFalse(view.spendSameOutput(0, 0));
+    }
+
+    @Test
+    public void testViewLooksSpentOutputsUpInPlace() {
+        Transaction tx = sampleTransaction(3, 1);
+        tx.addInput(tx.getPrevTxHash(1), tx.getOutputIndex(1)); // spends input 1's output again
+        tx.addInput(tx.getPrevTxHash(1), 7);
+        UTXOPool hashMapPool = new UTXOPool();
+        hashMapPool.addUTXO(tx.getPrevTxHash(0), tx.getOutputIndex(0),
+                new Transaction.Output(4.0, pairBob.getPublic()));
+        hashMapPool.addUTXO(tx.getPrevTxHash(2), tx.getOutputIndex(2),
+                new Transaction.Output(6.0, pairAlice.getPublic()));
+        TransactionView view = new TransactionView(ByteBuffer.wrap(TransactionCodec.encode(tx)));
+
+        for (UTXOPool pool : new UTXOPool[]{hashMapPool, new PackedUTXOPool(hashMapPool),
+                new OffHeapUTXOPool(hashMapPool), new PersistentUTXOPool(hashMapPool)}) {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                assertEquals(tx.getSpentValue(pool, i), view.getSpentValue(pool, i), 0.0, "input " + i);
+                assertEquals(tx.getSpentAddress(pool, i), view.getSpentAddress(pool, i), "input " + i);
+            }
+        }
+        assertEquals(4.0, view.getSpentValue(hashMapPool, 0));
+        assertTrue(Double.isNaN(view.getSpentValue(hashMapPool, 1)));
+
+        for (int i = 0; i < tx.numInputs(); i++) {
+            for (int j = 0; j < tx.numInputs(); j++) {
+                assertEquals(tx.spendSameOutput(i, j), view.spendSameOutput(i, j), i + ", " + j);
+            }
+        }
+        assertTrue(view.spendSameOutput(3, 1));
+        assertFalse(view.spendSameOutput(4, 1));
+        assertTrue(Transactions.hasDuplicateInputs(view));
+    }
+
+    @Test
+    public void testFailedWrapKeepsView() {
+        Transaction tx = sampleTransaction(2, 2);
+        TransactionView view = new TransactionView(ByteBuffer.wrap(TransactionCodec.encode(tx)));
+        byte[] other = TransactionCodec.encode(sampleTransaction(3, 1));
+        // cut inside the outputs, after every input has been parsed
+        byte[] truncated = Arrays.copyOf(other, other.length - 4);
+        assertThrows(IllegalArgumentException.class, () -> view.wrap(ByteBuffer.wrap(truncated)));
+
+        assertEquals(2, view.numInputs());
+        assertEquals(2, view.numOutputs());
+        assertArrayEquals(tx.getHash(), view.getHash());
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(tx.getRawDataToSign(i), view.getRawDataToSign(i));
+            assertEquals(tx.getOutputIndex(i), view.getOutputIndex(i));
+            assertEquals(tx.getOutputValue(i), view.getOutputValue(i));
+        }
+    }
+
+    @Test
+    public void testHandlerAndGreedyAcceptViews() {
+        Transaction coinbase = new Transaction();
+        coinbase.addOutput(10, pairAlice.getPublic());
+        coinbase.finalize();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(coinbase.getHash(), 0), coinbase.getOutput(0));
+
+        Transaction spend = new Transaction();
+        spend.addInput(coinbase.getHash(), 0);
+        spend.addOutput(9, pairBob.getPublic());
+        spend.addSignature(Crypto.sign(pairAlice.getPrivate(), spend.getRawDataToSign(0)), 0);
+        spend.finalize();
+
+        byte[] encoded = TransactionCodec.encode(spend);
+        TransactionView view = new TransactionView(ByteBuffer.wrap(encoded));
+        assertTrue(new TxHandler(pool).isValidTx(view));
+
+        ReadableTransaction[] selected = new Greedy(pool).selectTransactions(new ReadableTransaction[]{view});
+        assertEquals(1, selected.length);
+        assertSame(view, selected[0]);
+
+        // version, input count, hash length, hash, output index and signature length come first
+        encoded[1 + 4 + 2 + 32 + 4 + 2] ^= 1;
+        assertFalse(new TxHandler(pool).isValidTx(view.wrap(ByteBuffer.wrap(encoded))));
+    }
+}
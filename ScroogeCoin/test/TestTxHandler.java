@@ -0,0 +1,187 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.security.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class TestTxHandler {
+
+    private KeyPair pairAlice;
+    private KeyPair pairBob;
+    private UTXOPool pool;
+    private Transaction genesis;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        pairAlice = keyGen.generateKeyPair();
+        pairBob = keyGen.generateKeyPair();
+
+        // Genesis: Alice gets 100.0 coins
+        genesis = new Transaction();
+        genesis.addOutput(100.0, pairAlice.getPublic());
+        genesis.finalize();
+
+        pool = new UTXOPool();
+        pool.addUTXO(new UTXO(genesis.getHash(), 0), genesis.getOutput(0));
+    }
+
+    /** Builds a chain genesis -> tx0 -> tx1 -> ... where each tx pays a fee of 1.0 */
+    private List<Transaction> buildChain(int length) {
+        List<Transaction> chain = new ArrayList<>();
+        byte[] prevHash = genesis.getHash();
+        double value = 100.0;
+        for (int i = 0; i < length; i++) {
+            value -= 1.0;
+            Transaction tx = new Transaction();
+            tx.addInput(prevHash, 0);
+            tx.addOutput(value, pairAlice.getPublic());
+            tx.addSignature(Crypto.sign(pairAlice.getPrivate(), tx.getRawDataToSign(0)), 0);
+            tx.finalize();
+            chain.add(tx);
+            prevHash = tx.getHash();
+        }
+        return chain;
+    }
+
+    @Test
+    public void testChainInReverseOrder() {
+        List<Transaction> chain = buildChain(20);
+        List<Transaction> reversed = new ArrayList<>(chain);
+        Collections.reverse(reversed);
+
+        TxHandler handler = new TxHandler(pool);
+        Transaction[] accepted = handler.handleTxs(reversed.toArray(new Transaction[0]));
+
+        assertEquals(chain.size(), accepted.length);
+        // Parents must always be accepted before their children
+        for (int i = 0; i < chain.size(); i++) {
+            assertSame(chain.get(i), accepted[i]);
+            assertEquals(1.0, handler.getTxFee(chain.get(i)), 1e-9);
+        }
+        assertEquals(1, handler.getUtxoPool().getAllUTXO().size());
+    }
+
+    @Test
+    public void testChildOfRejectedParentIsRejected() {
+        List<Transaction> chain = buildChain(3);
+
+        // Bob signs the first link, so it and everything after it is invalid
+        Transaction forged = new Transaction();
+        forged.addInput(genesis.getHash(), 0);
+        forged.addOutput(99.0, pairBob.getPublic());
+        forged.addSignature(Crypto.sign(pairBob.getPrivate(), forged.getRawDataToSign(0)), 0);
+        forged.finalize();
+
+        Transaction child = new Transaction();
+        child.addInput(forged.getHash(), 0);
+        child.addOutput(98.0, pairBob.getPublic());
+        child.addSignature(Crypto.sign(pairBob.getPrivate(), child.getRawDataToSign(0)), 0);
+        child.finalize();
+
+        TxHandler handler = new TxHandler(pool);
+        Transaction[] accepted = handler.handleTxs(new Transaction[]{child, forged, chain.get(0)});
+
+        assertEquals(1, accepted.length);
+        assertSame(chain.get(0), accepted[0]);
+    }
+
+    @Test
+    public void testDoubleSpendAcceptsOnlyOne() {
+        Transaction a = new Transaction();
+        a.addInput(genesis.getHash(), 0);
+        a.addOutput(90.0, pairBob.getPublic());
+        a.addSignature(Crypto.sign(pairAlice.getPrivate(), a.getRawDataToSign(0)), 0);
+        a.finalize();
+
+        Transaction b = new Transaction();
+        b.addInput(genesis.getHash(), 0);
+        b.addOutput(80.0, pairBob.getPublic());
+        b.addSignature(Crypto.sign(pairAlice.getPrivate(), b.getRawDataToSign(0)), 0);
+        b.finalize();
+
+        TxHandler handler = new TxHandler(pool);
+        Transaction[] accepted = handler.handleTxs(new Transaction[]{a, b});
+
+        assertEquals(1, accepted.length);
+        assertSame(a, accepted[0]);
+    }
+
+    @Test
+    public void testNullInputsAreNeverDuplicates() {
+        // the same answer below and above the size where a hash set takes over from pairwise checks
+        for (int inputs : new int[]{2, 20}) {
+            Transaction tx = new Transaction();
+            for (int i = 0; i < inputs; i++) tx.addInput(null, 0);
+            assertFalse(Transactions.hasDuplicateInputs(tx), inputs + " inputs");
+            tx.addInput(genesis.getHash(), 0);
+            tx.addInput(genesis.getHash(), 0);
+            assertTrue(Transactions.hasDuplicateInputs(tx), inputs + " inputs");
+        }
+    }
+
+    @Test
+    public void testTopKOrdersByFeeThenAcceptance() {
+        // genesis output split five ways, then each piece spent with fees 3, 1, 5, 3, 2
+        Transaction split = new Transaction();
+        split.addInput(genesis.getHash(), 0);
+        for (int i = 0; i < 5; i++) split.addOutput(20.0, pairAlice.getPublic());
+        split.addSignature(Crypto.sign(pairAlice.getPrivate(), split.getRawDataToSign(0)), 0);
+        split.finalize();
+        double[] fees = {3, 1, 5, 3, 2};
+        Transaction[] spends = new Transaction[fees.length];
+        for (int i = 0; i < fees.length; i++) {
+            Transaction tx = new Transaction();
+            tx.addInput(split.getHash(), i);
+            tx.addOutput(20.0 - fees[i], pairBob.getPublic());
+            tx.addSignature(Crypto.sign(pairAlice.getPrivate(), tx.getRawDataToSign(0)), 0);
+            tx.finalize();
+            spends[i] = tx;
+        }
+
+        TxHandler handler = new TxHandler(pool);
+        handler.handleTxs(new Transaction[]{split});
+        handler.handleTxs(spends);
+
+        assertEquals(List.of(spends[2], spends[0], spends[3]), handler.topK(3));
+        assertEquals(6, handler.topK(10).size());
+        assertSame(split, handler.topK(10).get(5));
+        assertTrue(handler.topK(0).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> handler.topK(-1));
+        assertArrayEquals(new float[]{5f, 3f, 3f}, Brute.BruteF_Three(handler));
+    }
+
+    @Test
+    public void testParallelValidatorMatchesSequential() throws Exception {
+        UtxoTestSet testSet = UtxoTestSet.builder()
+                .setPeopleSize(10)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(10)
+                .setMaxInput(10)
+                .setMaxOutput(10)
+                .setInvalidPrivateKeys(true)
+                .setForceCorruptedSignature(true)
+                .setCorruptedPercentage(.30)
+                .build();
+        Transaction[] txs = testSet.getValidationLists().allElements().toArray(new Transaction[0]);
+
+        ParallelValidator validator = new ParallelValidator(4);
+        try {
+            Transaction[] sequential = new TxHandler(testSet.getUtxoPool()).handleTxs(txs);
+            Transaction[] parallel = new TxHandler(testSet.getUtxoPool(), validator).handleTxs(txs);
+            assertArrayEquals(sequential, parallel);
+
+            Transaction[] greedySequential = new Greedy(testSet.getUtxoPool()).selectTransactions(txs);
+            Transaction[] greedyParallel = new Greedy(testSet.getUtxoPool(), validator).selectTransactions(txs);
+            assertArrayEquals(greedySequential, greedyParallel);
+        } finally {
+            validator.shutdown();
+        }
+    }
+}
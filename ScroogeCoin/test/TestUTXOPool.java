@@ -0,0 +1,383 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+public class TestUTXOPool {
+
+    private KeyPair pairAlice;
+    private KeyPair pairBob;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        pairAlice = keyGen.generateKeyPair();
+        pairBob = keyGen.generateKeyPair();
+    }
+
+    private static byte[] hash(Random rnd) {
+        byte[] h = new byte[32];
+        rnd.nextBytes(h);
+        return h;
+    }
+
+    /** Applies the same random adds and removes to {@code pool} and a plain UTXOPool */
+    private void assertBehavesLikeHashMapPool(UTXOPool pool) {
+        assertBehavesLikeHashMapPool(pool, new UTXOPool());
+    }
+
+    /** Same, for a {@code pool} that starts with the entries of {@code reference} */
+    private void assertBehavesLikeHashMapPool(UTXOPool pool, UTXOPool reference) {
+        Random rnd = new Random(42);
+        List<UTXO> live = reference.getAllUTXO();
+        for (int step = 0; step < 20_000; step++) {
+            if (live.isEmpty() || rnd.nextInt(3) > 0) {
+                UTXO ut = new UTXO(hash(rnd), rnd.nextInt(4));
+                Transaction.Output out = new Transaction.Output(rnd.nextInt(1000) / 8.0,
+                        rnd.nextBoolean() ? pairAlice.getPublic() : pairBob.getPublic());
+                pool.addUTXO(ut, out);
+                reference.addUTXO(ut, out);
+                live.add(ut);
+            } else {
+                UTXO ut = live.remove(rnd.nextInt(live.size()));
+                pool.removeUTXO(ut.getTxHash(), ut.getIndex());
+                reference.removeUTXO(ut);
+                assertFalse(pool.contains(ut));
+            }
+        }
+        assertEquals(reference.size(), pool.size());
+        assertEquals(new HashSet<>(reference.getAllUTXO()), new HashSet<>(pool.getAllUTXO()));
+        for (UTXO ut : reference.getAllUTXO()) {
+            Transaction.Output expected = reference.getTxOutput(ut);
+            Transaction.Output actual = pool.getTxOutput(ut.getTxHash(), ut.getIndex());
+            assertEquals(expected.value, actual.value);
+            assertEquals(expected.address, actual.address);
+            assertEquals(expected.value, pool.getValue(ut.getTxHash(), ut.getIndex()));
+            assertEquals(expected.address, pool.getAddress(ut.getTxHash(), ut.getIndex()));
+            assertFoundInPlace(pool, ut, expected);
+        }
+        assertNull(pool.getTxOutput(hash(rnd), 0));
+        assertTrue(Double.isNaN(pool.getValue(hash(rnd), 0)));
+        assertNull(pool.getAddress(hash(rnd), 0));
+        assertFoundInPlace(pool, new UTXO(hash(rnd), 0), null);
+    }
+
+    /** Looks {@code ut} up from the middle of a buffer, in either byte order */
+    private static void assertFoundInPlace(UTXOPool pool, UTXO ut, Transaction.Output expected) {
+        byte[] hash = ut.getTxHash();
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            ByteBuffer buf = ByteBuffer.allocate(hash.length + 8).order(order);
+            buf.position(5);
+            buf.put(hash).flip();
+            double value = pool.getValue(buf, 5, hash.length, ut.getIndex());
+            if (expected == null) {
+                assertTrue(Double.isNaN(value));
+                assertNull(pool.getAddress(buf, 5, hash.length, ut.getIndex()));
+            } else {
+                assertEquals(expected.value, value);
+                assertEquals(expected.address, pool.getAddress(buf, 5, hash.length, ut.getIndex()));
+            }
+            assertEquals(0, buf.position());
+        }
+    }
+
+    @Test
+    public void testPackedPoolMatchesHashMapPool() {
+        assertBehavesLikeHashMapPool(new PackedUTXOPool());
+    }
+
+    @Test
+    public void testPackedPoolReplacesExistingEntry() {
+        PackedUTXOPool pool = new PackedUTXOPool();
+        byte[] h = hash(new Random(1));
+        pool.addUTXO(h, 0, new Transaction.Output(1.0, pairAlice.getPublic()));
+        pool.addUTXO(new UTXO(h, 0), new Transaction.Output(2.0, pairBob.getPublic()));
+        assertEquals(1, pool.size());
+        assertEquals(2.0, pool.getTxOutput(h, 0).value);
+        assertEquals(pairBob.getPublic(), pool.getTxOutput(h, 0).address);
+        assertFalse(pool.contains(h, 1));
+        assertFalse(pool.contains(null, 0));
+    }
+
+    @Test
+    public void testPackedCopyIsIndependent() {
+        PackedUTXOPool pool = new PackedUTXOPool();
+        Random rnd = new Random(7);
+        byte[] kept = hash(rnd);
+        byte[] odd = {1, 2, 3}; // not a SHA-256 hash, stored in the fallback map
+        pool.addUTXO(kept, 0, new Transaction.Output(5.0, pairAlice.getPublic()));
+        pool.addUTXO(odd, 1, new Transaction.Output(6.0, pairBob.getPublic()));
+
+        UTXOPool copy = pool.copy();
+        assertTrue(copy instanceof PackedUTXOPool);
+        copy.removeUTXO(kept, 0);
+        copy.addUTXO(hash(rnd), 0, new Transaction.Output(7.0, pairBob.getPublic()));
+
+        assertTrue(pool.contains(kept, 0));
+        assertEquals(2, pool.size());
+        assertEquals(6.0, copy.getTxOutput(odd, 1).value);
+        assertEquals(2, copy.size());
+
+        UTXOPool plain = new UTXOPool(pool);
+        assertEquals(new HashSet<>(pool.getAllUTXO()), new HashSet<>(plain.getAllUTXO()));
+    }
+
+    @Test
+    public void testHandlerGivesSameResultOnEveryPool() throws Exception {
+        UtxoTestSet testSet = UtxoTestSet.builder()
+                .setPeopleSize(10)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(10)
+                .setMaxInput(10)
+                .setMaxOutput(10)
+                .setInvalidPrivateKeys(true)
+                .setForceCorruptedSignature(true)
+                .setCorruptedPercentage(.30)
+                .build();
+        Transaction[] txs = testSet.getValidationLists().allElements().toArray(new Transaction[0]);
+        UTXOPool packed = new PackedUTXOPool(testSet.getUtxoPool());
+
+        assertArrayEquals(new TxHandler(testSet.getUtxoPool()).handleTxs(txs),
+                new TxHandler(packed).handleTxs(txs));
+        assertArrayEquals(new Greedy(testSet.getUtxoPool()).selectTransactions(txs),
+                new Greedy(packed).selectTransactions(txs));
+        assertArrayEquals(new TxHandler(testSet.getUtxoPool()).handleTxs(txs),
+                new TxHandler(new OffHeapUTXOPool(testSet.getUtxoPool())).handleTxs(txs));
+        assertArrayEquals(new Greedy(testSet.getUtxoPool()).selectTransactions(txs),
+                new Greedy(new PersistentUTXOPool(testSet.getUtxoPool())).selectTransactions(txs));
+    }
+
+    @Test
+    public void testPersistentPoolMatchesHashMapPool() {
+        assertBehavesLikeHashMapPool(new PersistentUTXOPool());
+    }
+
+    @Test
+    public void testPersistentCopiesAreIndependent() {
+        PersistentUTXOPool pool = new PersistentUTXOPool(randomPool(5_000, 3));
+        UTXOPool before = new UTXOPool(pool);
+        PersistentUTXOPool copy = pool.copy();
+        PersistentUTXOPool copyOfCopy = copy.copy();
+
+        // both sides of every copy keep changing, and must not see each other's changes
+        assertBehavesLikeHashMapPool(copy, new UTXOPool(before));
+        UTXOPool reference = new UTXOPool(before);
+        assertBehavesLikeHashMapPool(pool, reference);
+        assertEquals(new HashSet<>(before.getAllUTXO()), new HashSet<>(copyOfCopy.getAllUTXO()));
+        assertEquals(new HashSet<>(reference.getAllUTXO()), new HashSet<>(pool.getAllUTXO()));
+    }
+
+    @Test
+    public void testPersistentPoolHandlesHashCollisions() {
+        PersistentUTXOPool pool = new PersistentUTXOPool();
+        byte[] a = {0, 31};
+        byte[] b = {1, 0}; // same Arrays.hashCode as a, so the two outpoints share a collision node
+        pool.addUTXO(a, 0, new Transaction.Output(1.0, pairAlice.getPublic()));
+        pool.addUTXO(b, 0, new Transaction.Output(2.0, pairBob.getPublic()));
+        PersistentUTXOPool copy = pool.copy();
+        copy.addUTXO(b, 0, new Transaction.Output(3.0, pairBob.getPublic()));
+        copy.removeUTXO(a, 0);
+
+        assertEquals(2, pool.size());
+        assertEquals(1.0, pool.getTxOutput(a, 0).value);
+        assertEquals(2.0, pool.getTxOutput(b, 0).value);
+        assertEquals(1, copy.size());
+        assertFalse(copy.contains(a, 0));
+        assertEquals(3.0, copy.getTxOutput(b, 0).value);
+        assertFalse(pool.contains(new byte[]{0, 31}, 1));
+    }
+
+    @Test
+    public void testOffHeapPoolMatchesHashMapPool() {
+        assertBehavesLikeHashMapPool(new OffHeapUTXOPool());
+    }
+
+    @Test
+    public void testOffHeapPoolSpansSeveralSegments() {
+        OffHeapUTXOPool pool = new OffHeapUTXOPool();
+        pool.ensureCapacity(1_000_000);
+        assertTrue(pool.capacity() > 1 << 20);
+        assertEquals((long) pool.capacity() * 48, pool.offHeapBytes());
+
+        Random rnd = new Random(3);
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            byte[] h = hash(rnd);
+            hashes.add(h);
+            pool.addUTXO(h, i, new Transaction.Output(i, pairAlice.getPublic()));
+        }
+        OffHeapUTXOPool copy = pool.copy();
+        for (int i = 0; i < hashes.size(); i += 2) copy.removeUTXO(hashes.get(i), i);
+
+        assertEquals(5000, pool.size());
+        assertEquals(2500, copy.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            assertEquals((double) i, pool.getTxOutput(hashes.get(i), i).value);
+            assertEquals(i % 2 == 1, copy.contains(hashes.get(i), i));
+        }
+    }
+
+    private UTXOPool randomPool(int size, long seed) {
+        UTXOPool pool = new UTXOPool();
+        Random rnd = new Random(seed);
+        for (int i = 0; i < size; i++) {
+            pool.addUTXO(hash(rnd), i % 5, new Transaction.Output(i / 4.0,
+                    i % 3 == 0 ? pairAlice.getPublic() : pairBob.getPublic()));
+        }
+        return pool;
+    }
+
+    /** Rolls random changes back through nested savepoints and checks the pool is as it was */
+    private void assertSavepointsRestore(UTXOPool pool) {
+        UTXOPool original = new UTXOPool(pool);
+        List<UTXO> utxos = original.getAllUTXO();
+        Random rnd = new Random(5);
+
+        int outer = pool.savepoint();
+        for (int i = 0; i < 300; i++) {
+            UTXO ut = utxos.get(rnd.nextInt(utxos.size()));
+            switch (rnd.nextInt(3)) {
+                case 0: pool.removeUTXO(ut); break;
+                case 1: pool.addUTXO(ut, new Transaction.Output(-1.0, pairBob.getPublic())); break;
+                default: pool.addUTXO(hash(rnd), 0, new Transaction.Output(2.0, pairAlice.getPublic()));
+            }
+        }
+        UTXOPool middle = new UTXOPool(pool);
+        int inner = pool.savepoint();
+        for (UTXO ut : utxos) pool.removeUTXO(ut.getTxHash(), ut.getIndex());
+        pool.addUTXO(utxos.get(0), new Transaction.Output(3.0, pairAlice.getPublic()));
+
+        pool.rollbackTo(inner);
+        LedgerFixture.assertSamePool(middle, pool);
+        pool.rollbackTo(outer);
+        LedgerFixture.assertSamePool(original, pool);
+        assertThrows(IllegalStateException.class, () -> pool.rollbackTo(inner + 1));
+
+        // released changes stay, and are no longer recorded
+        pool.removeUTXO(utxos.get(1));
+        pool.release(outer);
+        assertFalse(pool.contains(utxos.get(1)));
+        assertThrows(IllegalStateException.class, () -> pool.rollbackTo(outer));
+    }
+
+    @Test
+    public void testNestedSavepointsWithoutChangesBetween() {
+        UTXOPool pool = randomPool(100, 17);
+        UTXOPool original = new UTXOPool(pool);
+        UTXO ut = original.getAllUTXO().get(0);
+
+        int outer = pool.savepoint();
+        int inner = pool.savepoint(); // nothing changed since outer
+        assertNotEquals(outer, inner);
+        pool.removeUTXO(ut);
+        pool.rollbackTo(inner);
+        LedgerFixture.assertSamePool(original, pool);
+
+        // releasing the outer one closes both and stops recording
+        pool.release(outer);
+        assertThrows(IllegalStateException.class, () -> pool.rollbackTo(inner));
+        assertThrows(IllegalStateException.class, () -> pool.release(outer));
+        pool.removeUTXO(ut);
+        int again = pool.savepoint();
+        pool.rollbackTo(again);
+        assertFalse(pool.contains(ut));
+        pool.release(again);
+    }
+
+    @Test
+    public void testSavepointsRestoreEveryPool() throws IOException {
+        UTXOPool pool = randomPool(2000, 13);
+        assertSavepointsRestore(new UTXOPool(pool));
+        assertSavepointsRestore(new PackedUTXOPool(pool));
+        assertSavepointsRestore(new OffHeapUTXOPool(pool));
+        assertSavepointsRestore(new PersistentUTXOPool(pool));
+        Path file = Files.createTempFile("utxo", ".snapshot");
+        try {
+            pool.writeSnapshot(file);
+            assertSavepointsRestore(UTXOSnapshot.open(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        UTXOPool pool = randomPool(3000, 11);
+        Path file = Files.createTempFile("utxo", ".snapshot");
+        Path rewritten = Files.createTempFile("utxo", ".snapshot");
+        try {
+            pool.writeSnapshot(file);
+            UTXOSnapshot snapshot = UTXOSnapshot.open(file);
+            assertEquals(pool.size(), snapshot.size());
+            assertEquals(new HashSet<>(pool.getAllUTXO()), new HashSet<>(snapshot.getAllUTXO()));
+            for (UTXO ut : pool.getAllUTXO()) {
+                assertEquals(pool.getTxOutput(ut).value, snapshot.getTxOutput(ut).value);
+                assertEquals(pool.getTxOutput(ut).address, snapshot.getTxOutput(ut).address);
+                assertFoundInPlace(snapshot, ut, pool.getTxOutput(ut));
+            }
+
+            // spend one output from the file, replace another and add a new one
+            List<UTXO> utxos = pool.getAllUTXO();
+            UTXOSnapshot changed = snapshot.copy();
+            changed.removeUTXO(utxos.get(0));
+            changed.addUTXO(utxos.get(1), new Transaction.Output(99.0, pairAlice.getPublic()));
+            changed.addUTXO(new UTXO(new byte[32], 0), new Transaction.Output(1.0, pairBob.getPublic()));
+            assertEquals(3000, changed.size());
+            assertFalse(changed.contains(utxos.get(0)));
+            assertEquals(99.0, changed.getTxOutput(utxos.get(1)).value);
+            assertTrue(snapshot.contains(utxos.get(0)));
+            assertEquals(3000, snapshot.size());
+
+            changed.writeSnapshot(rewritten);
+            UTXOSnapshot reopened = UTXOSnapshot.open(rewritten);
+            assertEquals(new HashSet<>(changed.getAllUTXO()), new HashSet<>(reopened.getAllUTXO()));
+            assertEquals(99.0, reopened.getTxOutput(utxos.get(1)).value);
+
+            assertBehavesLikeHashMapPool(UTXOSnapshot.open(file).copy(), pool);
+        } finally {
+            Files.delete(file);
+            Files.delete(rewritten);
+        }
+    }
+
+    @Test
+    public void testSnapshotDetectsCorruption() throws IOException {
+        UTXOPool pool = randomPool(500, 12);
+        Path file = Files.createTempFile("utxo", ".snapshot");
+        try {
+            pool.writeSnapshot(file);
+            byte[] data = Files.readAllBytes(file);
+
+            byte[] table = data.clone();
+            table[64 + 7] ^= 1; // the table starts after the 64-byte header
+            Files.write(file, table);
+            UTXOSnapshot snapshot = UTXOSnapshot.open(file); // blocks are only checked when read
+            assertThrows(IllegalStateException.class, snapshot::getAllUTXO);
+
+            byte[] header = data.clone();
+            header[10] ^= 1;
+            Files.write(file, header);
+            assertThrows(IllegalArgumentException.class, () -> UTXOSnapshot.open(file));
+
+            Files.write(file, Arrays.copyOf(data, data.length - 1));
+            assertThrows(IllegalArgumentException.class, () -> UTXOSnapshot.open(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class TestWriteAheadLog {
+
+    private LedgerFixture ledger;
+    private UTXOPool pool;
+    private Transaction genesis;
+    private Path dir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        ledger = new LedgerFixture(10);
+        pool = ledger.pool;
+        genesis = ledger.genesis;
+
+        dir = Files.createTempDirectory("wal");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (var files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+
+    private Transaction spend(int output) {
+        return ledger.spend(genesis, new int[]{output}, ledger.pairBob.getPublic(), 7.0, 2.0);
+    }
+
+    @Test
+    public void testReplayRebuildsHandlerPool() throws IOException {
+        Path log = dir.resolve("utxo.wal");
+        TxHandler handler = new TxHandler(pool);
+        try (WriteAheadLog wal = WriteAheadLog.open(log)) {
+            handler.setWriteAheadLog(wal);
+            handler.handleTxs(new Transaction[]{spend(0), spend(1), spend(2)});
+            handler.handleTxs(new Transaction[]{spend(3), spend(0)}); // the second spend(0) is rejected
+            assertEquals(2, wal.getSyncCount());
+        }
+
+        UTXOPool recovered = new UTXOPool(pool);
+        assertEquals(4, WriteAheadLog.replay(log, recovered));
+        LedgerFixture.assertSamePool(handler.getUtxoPool(), recovered);
+    }
+
+    @Test
+    public void testUncommittedTailIsDropped() throws IOException {
+        Path log = dir.resolve("utxo.wal");
+        try (WriteAheadLog wal = WriteAheadLog.open(log)) {
+            TxHandler handler = new TxHandler(pool);
+            handler.setWriteAheadLog(wal);
+            handler.handleTxs(new Transaction[]{spend(0)});
+            wal.append(spend(1)); // never committed
+        }
+        // simulate a torn write after the last record
+        Files.write(log, new byte[]{0, 0, 0, 99, 1, 2}, StandardOpenOption.APPEND);
+
+        UTXOPool recovered = new UTXOPool(pool);
+        assertEquals(1, WriteAheadLog.replay(log, recovered));
+        assertTrue(recovered.contains(spend(0).getHash(), 0));
+        assertTrue(recovered.contains(genesis.getHash(), 1));
+
+        // reopening cuts the log back to the last commit and appends after it
+        try (WriteAheadLog wal = WriteAheadLog.open(log)) {
+            wal.append(spend(2));
+            wal.commit();
+        }
+        recovered = new UTXOPool(pool);
+        assertEquals(2, WriteAheadLog.replay(log, recovered));
+        assertFalse(recovered.contains(genesis.getHash(), 2));
+    }
+
+    @Test
+    public void testRecoverFromCheckpoint() throws IOException {
+        Path log = dir.resolve("utxo.wal");
+        Path snapshot = dir.resolve("utxo.snapshot");
+        TxHandler handler = new TxHandler(pool);
+        try (WriteAheadLog wal = WriteAheadLog.open(log)) {
+            handler.setWriteAheadLog(wal);
+            handler.handleTxs(new Transaction[]{spend(0), spend(1)});
+            wal.checkpoint(handler.getUtxoPool(), snapshot);
+            handler.handleTxs(new Transaction[]{spend(2)});
+        }
+
+        UTXOPool recovered = WriteAheadLog.recover(snapshot, log);
+        assertTrue(recovered instanceof UTXOSnapshot);
+        LedgerFixture.assertSamePool(handler.getUtxoPool(), recovered);
+        assertEquals(1, WriteAheadLog.replay(log, new UTXOPool()));
+    }
+}